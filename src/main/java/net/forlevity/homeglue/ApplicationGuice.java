@@ -29,12 +29,16 @@ import net.forlevity.homeglue.sink.IftttDeviceEventService;
 import net.forlevity.homeglue.upnp.SsdpDiscoveryService;
 import net.forlevity.homeglue.upnp.SsdpSearcher;
 import net.forlevity.homeglue.upnp.SsdpSearcherImpl;
+import net.forlevity.homeglue.util.CoalescingQueue.OverflowPolicy;
 import net.forlevity.homeglue.util.FanoutExchange;
 import net.forlevity.homeglue.util.Json;
 import net.forlevity.homeglue.util.ServiceDependencies;
+import net.forlevity.homeglue.util.TimerWheel;
 import net.forlevity.homeglue.web.WebserverService;
 
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.function.Consumer;
@@ -57,8 +61,7 @@ public class ApplicationGuice extends AbstractModule {
         bind(HomeglueApplication.class);
 
         // device events: exchange
-        bind(new TypeLiteral<Consumer<DeviceEvent>>(){})
-                .to(new TypeLiteral<FanoutExchange<DeviceEvent>>(){}).in(Scopes.SINGLETON);
+        bind(new TypeLiteral<Consumer<DeviceEvent>>(){}).to(new TypeLiteral<FanoutExchange<DeviceEvent>>(){});
         // device events: consumers
         Multibinder<Consumer<DeviceEvent>> eventSinkBinder =
                 Multibinder.newSetBinder(binder(), new TypeLiteral<Consumer<DeviceEvent>>(){});
@@ -95,6 +98,29 @@ public class ApplicationGuice extends AbstractModule {
         return new ScheduledThreadPoolExecutor(threads);
     }
 
+    @Provides
+    @Singleton
+    TimerWheel timerWheel(ScheduledExecutorService executor,
+                          @Named("timer.tick.millis") int tickMillis,
+                          @Named("timer.wheel.size") int wheelSize) {
+        return new TimerWheel(executor, tickMillis, wheelSize);
+    }
+
+    @Provides
+    @Singleton
+    FanoutExchange<DeviceEvent> deviceEventExchange(Set<Consumer<DeviceEvent>> sinks,
+                                                    @Named("events.fanout.async") boolean async,
+                                                    @Named("events.sink.queue.capacity") int capacity,
+                                                    @Named("events.sink.policy") OverflowPolicy defaultPolicy,
+                                                    @Named("events.sink.policies") String policies) {
+        if (!async) {
+            return new FanoutExchange<>(sinks);
+        } // else
+        Map<String, OverflowPolicy> policyBySink = FanoutExchange.parsePolicies(policies);
+        return new FanoutExchange<>(DeviceEvent.class, sinks, capacity,
+                sink -> policyBySink.getOrDefault(sink.getClass().getSimpleName(), defaultPolicy));
+    }
+
     @Provides
     @Singleton
     Json json(@Named("json.pretty") boolean prettyPrintJson) {
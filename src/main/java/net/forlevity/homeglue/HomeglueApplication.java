@@ -14,11 +14,16 @@ import com.google.inject.Singleton;
 import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.extern.log4j.Log4j2;
+import net.forlevity.homeglue.device.DeviceEvent;
+import net.forlevity.homeglue.device.DeviceModelService;
 import net.forlevity.homeglue.device.DeviceStateProcessorService;
 import net.forlevity.homeglue.device.OfflineMarkerService;
+import net.forlevity.homeglue.http.SimpleHttpClientImpl;
 import net.forlevity.homeglue.persistence.PersistenceService;
 import net.forlevity.homeglue.sink.IftttDeviceEventService;
 import net.forlevity.homeglue.upnp.SsdpDiscoveryService;
+import net.forlevity.homeglue.util.FanoutExchange;
+import net.forlevity.homeglue.util.TimerWheel;
 import net.forlevity.homeglue.web.WebserverService;
 import org.apache.logging.log4j.LogManager;
 
@@ -38,6 +43,10 @@ public class HomeglueApplication {
     @Getter(AccessLevel.PACKAGE)
     private final ServiceManager serviceManager;
 
+    private final TimerWheel timerWheel;
+
+    private final SimpleHttpClientImpl httpClient;
+
     @VisibleForTesting
     @Getter
     private volatile boolean stopped = true;
@@ -45,21 +54,29 @@ public class HomeglueApplication {
     @Inject
     public HomeglueApplication(
             PersistenceService persistenceService,
+            DeviceModelService deviceModelService,
             DeviceStateProcessorService deviceStateProcessorService,
             OfflineMarkerService offlineMarkerService,
             SsdpDiscoveryService ssdpDiscoveryService,
             IftttDeviceEventService iftttDeviceEventService,
+            FanoutExchange<DeviceEvent> deviceEventExchange,
             WebserverService webserverService,
-            Set<Service> deviceManagers) {
+            Set<Service> deviceManagers,
+            TimerWheel timerWheel,
+            SimpleHttpClientImpl httpClient) {
         List<Service> services = new ArrayList<>();
         services.add(persistenceService);
+        services.add(deviceModelService);
         services.add(deviceStateProcessorService);
         services.add(offlineMarkerService);
         services.add(iftttDeviceEventService);
+        services.add(deviceEventExchange);
         services.add(ssdpDiscoveryService);
         services.add(webserverService);
         services.addAll(deviceManagers);
         serviceManager = new ServiceManager(services);
+        this.timerWheel = timerWheel;
+        this.httpClient = httpClient;
     }
 
     public void start() {
@@ -77,6 +94,8 @@ public class HomeglueApplication {
             stopped = true;
             System.out.print(" shutting down...");
             serviceManager.stopAsync().awaitStopped();
+            timerWheel.stop(); // after services, which cancel their timeouts as they stop
+            httpClient.close();
             System.out.println(" shutdown complete.");
         }
     }
@@ -9,6 +9,7 @@ package net.forlevity.homeglue.api;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import lombok.extern.log4j.Log4j2;
+import net.forlevity.homeglue.device.DeviceModelService;
 import net.forlevity.homeglue.entity.ApplianceDetector;
 import net.forlevity.homeglue.entity.Device;
 import net.forlevity.homeglue.persistence.PersistenceService;
@@ -22,6 +23,7 @@ import javax.ws.rs.core.MediaType;
 public class ApplianceDetectorResource {
 
     private final PersistenceService persistence;
+    private final DeviceModelService deviceModel;
     private final String deviceDetectionId;
 
     interface Factory {
@@ -29,8 +31,11 @@ public class ApplianceDetectorResource {
     }
 
     @Inject
-    public ApplianceDetectorResource(PersistenceService persistence, @Assisted String deviceDetectionId) {
+    public ApplianceDetectorResource(PersistenceService persistence,
+                                     DeviceModelService deviceModel,
+                                     @Assisted String deviceDetectionId) {
         this.persistence = persistence;
+        this.deviceModel = deviceModel;
         this.deviceDetectionId = deviceDetectionId;
     }
 
@@ -46,7 +51,7 @@ public class ApplianceDetectorResource {
             throw new BadRequestException("invalid configuration");
         }
         log.info("updating appliance configuration for {} : {}", deviceDetectionId, newConfig);
-        return persistence.exec(session -> {
+        ApplianceDetectorDto result = persistence.exec(session -> {
             ApplianceDetector applianceDetector = getApplianceDetector(session);
             applianceDetector.setMinWatts(newConfig.getMinWatts());
             applianceDetector.setOffDelaySecs(newConfig.getOffDelaySeconds());
@@ -54,6 +59,8 @@ public class ApplianceDetectorResource {
             session.saveOrUpdate(applianceDetector);
             return ApplianceDetectorDto.from(applianceDetector);
         });
+        deviceModel.reload(deviceDetectionId);
+        return result;
     }
 
     private ApplianceDetector getApplianceDetector(Session session) {
@@ -0,0 +1,39 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.api;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+import net.forlevity.homeglue.util.CircuitBreaker;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@ToString
+@JsonAutoDetect
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class CircuitMetricsDto {
+
+    private Map<CircuitBreaker.State, Integer> states;
+    private Map<String, CircuitBreaker.Snapshot> hosts;
+
+    public static CircuitMetricsDto from(Map<String, CircuitBreaker.Snapshot> snapshots) {
+        Map<CircuitBreaker.State, Integer> states = new EnumMap<>(CircuitBreaker.State.class);
+        for (CircuitBreaker.State state : CircuitBreaker.State.values()) {
+            states.put(state, 0);
+        }
+        snapshots.values().forEach(snapshot -> states.merge(snapshot.getState(), 1, Integer::sum));
+        return new CircuitMetricsDto(states, snapshots);
+    }
+}
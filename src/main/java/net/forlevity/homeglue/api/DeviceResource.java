@@ -8,6 +8,7 @@ package net.forlevity.homeglue.api;
 
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
+import net.forlevity.homeglue.device.DeviceModelService;
 import net.forlevity.homeglue.device.DeviceStateProcessorService;
 import net.forlevity.homeglue.entity.Device;
 import net.forlevity.homeglue.entity.Relay;
@@ -21,6 +22,7 @@ import javax.ws.rs.core.MediaType;
 public class DeviceResource {
 
     private final PersistenceService persistence;
+    private final DeviceModelService deviceModel;
     private final DeviceStateProcessorService stateProcessor;
     private final RelayResource.Factory relayResourceFactory;
     private final ApplianceDetectorResource.Factory applianceDetectorResourceFactory;
@@ -32,11 +34,13 @@ public class DeviceResource {
 
     @Inject
     public DeviceResource(PersistenceService persistence,
+                          DeviceModelService deviceModel,
                           DeviceStateProcessorService stateProcessor,
                           RelayResource.Factory relayResourceFactory,
                           ApplianceDetectorResource.Factory applianceDetectorResourceFactory,
                           @Assisted String detectionId) {
         this.persistence = persistence;
+        this.deviceModel = deviceModel;
         this.stateProcessor = stateProcessor;
         this.relayResourceFactory = relayResourceFactory;
         this.applianceDetectorResourceFactory = applianceDetectorResourceFactory;
@@ -61,7 +65,7 @@ public class DeviceResource {
         if (dto.getFriendlyName() == null) {
             throw new BadRequestException("no name specified");
         }
-        return persistence.exec(session -> {
+        DeviceDto result = persistence.exec(session -> {
             Device device = getDevice(session, detectionId);
             if (dto.getFriendlyName().equals("")) {
                 device.setFriendlyName(null);
@@ -71,6 +75,8 @@ public class DeviceResource {
             session.saveOrUpdate(device);
             return DeviceDto.from(device, stateProcessor.getLastState(detectionId));
         });
+        deviceModel.reload(detectionId);
+        return result;
     }
 
     @Path("relay")
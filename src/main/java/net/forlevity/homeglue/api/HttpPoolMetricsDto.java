@@ -0,0 +1,44 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.api;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+import net.forlevity.homeglue.http.HttpPoolMetrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@ToString
+@JsonAutoDetect
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class HttpPoolMetricsDto {
+
+    private int leased;
+    private int available;
+    private int pending;
+    private int max;
+    private int maxPerHost;
+    private Map<String, HttpPoolMetrics.Host> hosts;
+
+    public static HttpPoolMetricsDto from(HttpPoolMetrics metrics) {
+        return new HttpPoolMetricsDto(
+                metrics.getLeased(),
+                metrics.getAvailable(),
+                metrics.getPending(),
+                metrics.getMax(),
+                metrics.getMaxPerHost(),
+                new TreeMap<>(metrics.getHosts()));
+    }
+}
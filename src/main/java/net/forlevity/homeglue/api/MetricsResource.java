@@ -0,0 +1,147 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.api;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Inject;
+import net.forlevity.homeglue.device.DeviceConnectorInstances;
+import net.forlevity.homeglue.device.DeviceEvent;
+import net.forlevity.homeglue.device.DeviceStateProcessorServiceImpl;
+import net.forlevity.homeglue.device.PollMetrics;
+import net.forlevity.homeglue.device.generic_upnp.GenericUpnpManagerService;
+import net.forlevity.homeglue.device.wemo.WemoInsightManagerService;
+import net.forlevity.homeglue.http.HttpPoolMetrics;
+import net.forlevity.homeglue.http.SimpleHttpClient;
+import net.forlevity.homeglue.sink.IftttDeviceEventService;
+import net.forlevity.homeglue.util.CircuitBreakers;
+import net.forlevity.homeglue.util.FanoutExchange;
+import net.forlevity.homeglue.util.QueueWorkerService;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.Provider;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+@Provider
+@Path("/metrics")
+@Produces(MediaType.APPLICATION_JSON)
+public class MetricsResource {
+
+    private final DeviceStateProcessorServiceImpl deviceStateProcessor;
+    private final List<QueueWorkerService<?>> queueServices;
+    private final FanoutExchange<DeviceEvent> deviceEventExchange;
+    private final SimpleHttpClient httpClient;
+    private final CircuitBreakers circuitBreakers;
+    private final DeviceConnectorInstances deviceConnectors;
+
+    @Inject
+    public MetricsResource(DeviceStateProcessorServiceImpl deviceStateProcessor,
+                           IftttDeviceEventService iftttDeviceEventService,
+                           WemoInsightManagerService wemoInsightManagerService,
+                           GenericUpnpManagerService genericUpnpManagerService,
+                           FanoutExchange<DeviceEvent> deviceEventExchange,
+                           SimpleHttpClient httpClient,
+                           CircuitBreakers circuitBreakers,
+                           DeviceConnectorInstances deviceConnectors) {
+        this.deviceStateProcessor = deviceStateProcessor;
+        this.queueServices = ImmutableList.of(deviceStateProcessor, iftttDeviceEventService,
+                wemoInsightManagerService, genericUpnpManagerService);
+        this.deviceEventExchange = deviceEventExchange;
+        this.httpClient = httpClient;
+        this.circuitBreakers = circuitBreakers;
+        this.deviceConnectors = deviceConnectors;
+    }
+
+    /**
+     * Get queue metrics for each queue worker service, one entry per partition.
+     *
+     * @return map of service name to metrics
+     */
+    @GET
+    @Path("/queues")
+    public Map<String, List<QueueMetricsDto>> getQueues() {
+        Map<String, List<QueueMetricsDto>> result = new LinkedHashMap<>();
+        queueServices.forEach(service -> result.put(service.getClass().getSimpleName(),
+                service.getMetrics().stream().map(QueueMetricsDto::from).collect(Collectors.toList())));
+        return result;
+    }
+
+    /**
+     * Get the number of device states processed and skipped as unchanged.
+     *
+     * @return metrics
+     */
+    @GET
+    @Path("/states")
+    public StateMetricsDto getStates() {
+        return StateMetricsDto.from(deviceStateProcessor);
+    }
+
+    /**
+     * Get queue metrics for each device event consumer. Empty if device events are delivered synchronously.
+     *
+     * @return map of consumer name to metrics
+     */
+    @GET
+    @Path("/sinks")
+    public Map<String, SinkMetricsDto> getSinks() {
+        Map<String, SinkMetricsDto> result = new LinkedHashMap<>();
+        deviceEventExchange.getAsyncSinks().forEach(sink -> result.put(sink.getName(), SinkMetricsDto.from(sink)));
+        return result;
+    }
+
+    /**
+     * Get HTTP connection pool metrics, in total and by device host.
+     *
+     * @return metrics
+     */
+    @GET
+    @Path("/http")
+    public HttpPoolMetricsDto getHttp() {
+        HttpPoolMetrics metrics = httpClient.getPoolMetrics();
+        if (metrics == null) {
+            throw new NotFoundException("http client does not pool connections");
+        } // else
+        return HttpPoolMetricsDto.from(metrics);
+    }
+
+    /**
+     * Get the number of device hosts with circuit breakers in each state, and the state of each one.
+     *
+     * @return metrics
+     */
+    @GET
+    @Path("/circuits")
+    public CircuitMetricsDto getCircuits() {
+        return CircuitMetricsDto.from(circuitBreakers.snapshots());
+    }
+
+    /**
+     * Get poll metrics for each polled device: schedule lateness, duration, deadline misses and skipped polls.
+     *
+     * @return map of device detection id to metrics
+     */
+    @GET
+    @Path("/polls")
+    public Map<String, PollMetricsDto> getPolls() {
+        Map<String, PollMetricsDto> result = new TreeMap<>();
+        deviceConnectors.forEach(connector -> {
+            PollMetrics metrics = connector.getPollMetrics();
+            if (metrics != null) {
+                result.put(connector.getDetectionId(), PollMetricsDto.from(metrics));
+            }
+        });
+        return result;
+    }
+}
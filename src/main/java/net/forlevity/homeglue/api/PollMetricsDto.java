@@ -0,0 +1,42 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.api;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+import net.forlevity.homeglue.device.PollMetrics;
+import net.forlevity.homeglue.util.Histogram;
+
+import java.util.Map;
+
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@ToString
+@JsonAutoDetect
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class PollMetricsDto {
+
+    private long polls;
+    private long deadlineExceeded;
+    private Map<PollMetrics.SkipReason, Long> skipped;
+    private Histogram.Snapshot latenessMillis;
+    private Histogram.Snapshot durationMillis;
+
+    public static PollMetricsDto from(PollMetrics metrics) {
+        return new PollMetricsDto(
+                metrics.getPolls(),
+                metrics.getDeadlineExceeded(),
+                metrics.getSkipped(),
+                metrics.getLatenessMillis().snapshot(),
+                metrics.getDurationMillis().snapshot());
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.api;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+import net.forlevity.homeglue.util.Histogram;
+import net.forlevity.homeglue.util.QueueMetrics;
+
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@ToString
+@JsonAutoDetect
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class QueueMetricsDto {
+
+    private long enqueued;
+    private long coalesced;
+    private long dropped;
+    private long dequeued;
+    private int depth;
+    private long peakDepth;
+    private Histogram.Snapshot queueMillis;
+    private Histogram.Snapshot handlerMicros;
+
+    public static QueueMetricsDto from(QueueMetrics metrics) {
+        return new QueueMetricsDto(
+                metrics.getEnqueued(),
+                metrics.getCoalesced(),
+                metrics.getDropped(),
+                metrics.getDequeued(),
+                metrics.getDepth(),
+                metrics.getPeakDepth(),
+                metrics.getQueueMillis().snapshot(),
+                metrics.getHandlerMicros().snapshot());
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.api;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+import net.forlevity.homeglue.util.CoalescingQueue.OverflowPolicy;
+import net.forlevity.homeglue.util.FanoutExchange;
+
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@ToString
+@JsonAutoDetect
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class SinkMetricsDto {
+
+    private OverflowPolicy overflowPolicy;
+    private long dropped;
+    private long spilled;
+    private QueueMetricsDto queue;
+
+    public static SinkMetricsDto from(FanoutExchange.Sink<?> sink) {
+        return new SinkMetricsDto(
+                sink.getOverflowPolicy(),
+                sink.getDropped(),
+                sink.getSpilled(),
+                QueueMetricsDto.from(sink.getMetrics()));
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.api;
+
+import com.google.inject.Inject;
+import net.forlevity.homeglue.upnp.UpnpEventSubscriber;
+
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Callback endpoint for UPnP event subscriptions. Devices send NOTIFY requests here.
+ */
+@Provider
+@Path("/upnp/event")
+public class UpnpEventResource {
+
+    /**
+     * The UPnP GENA NOTIFY method.
+     */
+    @Target(ElementType.METHOD)
+    @Retention(RetentionPolicy.RUNTIME)
+    @HttpMethod("NOTIFY")
+    public @interface NOTIFY {
+    }
+
+    private final UpnpEventSubscriber eventSubscriber;
+
+    @Inject
+    public UpnpEventResource(UpnpEventSubscriber eventSubscriber) {
+        this.eventSubscriber = eventSubscriber;
+    }
+
+    @NOTIFY
+    @Path("/{token}")
+    public Response receiveEvent(@PathParam("token") String token, @HeaderParam("SID") String sid, String body) {
+        if (eventSubscriber.handleNotify(token, sid, body)) {
+            return Response.ok().build();
+        } // else
+        return Response.status(Response.Status.PRECONDITION_FAILED).build();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.device;
+
+import com.google.common.base.Preconditions;
+import lombok.Getter;
+
+/**
+ * Decides how long to wait before the next poll of a power meter. The meter is polled at the minimum period while
+ * its reading is changing, or is close enough to its appliance threshold that the next reading could switch the
+ * appliance on or off. While readings are flat and far from the threshold, the period doubles after each poll, up to
+ * the maximum period.
+ */
+public class AdaptivePollingPolicy {
+
+    /** Readings that differ by less than this fraction of the previous reading are flat. */
+    static final double CHANGE_FRACTION = 0.1;
+
+    /** Readings that differ by less than this many watts are flat, so that noise around 0 W is ignored. */
+    static final double MIN_CHANGE_WATTS = 1.0;
+
+    /** Readings within this fraction of the appliance threshold are near it. */
+    static final double NEAR_THRESHOLD_FRACTION = 0.25;
+
+    @Getter
+    private final int minPeriodMillis;
+
+    @Getter
+    private final int maxPeriodMillis;
+
+    /**
+     * Create a polling policy.
+     *
+     * @param minPeriodMillis period while readings are changing or near threshold
+     * @param maxPeriodMillis longest period while readings are flat
+     */
+    public AdaptivePollingPolicy(int minPeriodMillis, int maxPeriodMillis) {
+        Preconditions.checkArgument(minPeriodMillis > 0, "minPeriodMillis must be positive");
+        Preconditions.checkArgument(maxPeriodMillis >= minPeriodMillis, "maxPeriodMillis must be >= minPeriodMillis");
+        this.minPeriodMillis = minPeriodMillis;
+        this.maxPeriodMillis = maxPeriodMillis;
+    }
+
+    /**
+     * Get the period until the next poll.
+     *
+     * @param periodMillis period before the poll that was just made
+     * @param previousWatts previous reading, or NaN if none
+     * @param watts latest reading, or NaN if the poll failed
+     * @param thresholdWatts appliance threshold, or NaN if no appliance detector
+     * @return period in milliseconds
+     */
+    public int nextPeriod(int periodMillis, double previousWatts, double watts, double thresholdWatts) {
+        if (Double.isNaN(watts) || Double.isNaN(previousWatts)
+                || changing(previousWatts, watts) || nearThreshold(watts, thresholdWatts)) {
+            return minPeriodMillis;
+        } // else
+        return (int) Math.min(maxPeriodMillis, Math.max(minPeriodMillis, 2L * periodMillis));
+    }
+
+    private static boolean changing(double previousWatts, double watts) {
+        double change = Math.abs(watts - previousWatts);
+        return change >= MIN_CHANGE_WATTS && change >= CHANGE_FRACTION * Math.abs(previousWatts);
+    }
+
+    private static boolean nearThreshold(double watts, double thresholdWatts) {
+        return !Double.isNaN(thresholdWatts)
+                && Math.abs(watts - thresholdWatts) <= NEAR_THRESHOLD_FRACTION * thresholdWatts;
+    }
+}
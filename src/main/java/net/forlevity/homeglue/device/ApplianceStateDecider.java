@@ -12,10 +12,9 @@ import lombok.extern.log4j.Log4j2;
 import net.forlevity.homeglue.entity.ApplianceDetector;
 import net.forlevity.homeglue.entity.Device;
 import net.forlevity.homeglue.entity.Relay;
+import net.forlevity.homeglue.util.HandleArray;
 
 import java.time.Instant;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Use device configuration and recent power meter reading(s) to determine whether an "appliance" attached to a
@@ -25,16 +24,17 @@ import java.util.concurrent.ConcurrentHashMap;
 @Log4j2
 public class ApplianceStateDecider {
 
-    private final Map<String, Instant> lastOverThresholdByDevice = new ConcurrentHashMap<>();
+    private final HandleArray<Instant> lastOverThresholdByDevice = new HandleArray<>();
 
     /**
      * Determine whether an appliance is on, given its meter's latest power meter reading.
      *
+     * @param handle device handle
      * @param applianceDetector device appliance detector configuration (must be inflated or session active)
      * @param watts latest watts
      * @return true if appliance is on
      */
-    public boolean applianceOn(ApplianceDetector applianceDetector, Double watts) {
+    public boolean applianceOn(int handle, ApplianceDetector applianceDetector, double watts) {
         Preconditions.checkNotNull(applianceDetector);
         Device device = applianceDetector.getDevice();
         if (device == null || device.getDetectionId() == null) {
@@ -44,13 +44,13 @@ public class ApplianceStateDecider {
         boolean on;
         Relay relay = device.getRelay();
         if (watts >= applianceDetector.getMinWatts()) {
-            lastOverThresholdByDevice.put(device.getDetectionId(), now);
+            lastOverThresholdByDevice.set(handle, now);
             // if it's over the threshold it's definitely on
             on = true;
         } else if (relay != null && !relay.isClosed()) {
             on = false;
         } else {
-            Instant lastOverThreshold = lastOverThresholdByDevice.get(device.getDetectionId());
+            Instant lastOverThreshold = lastOverThresholdByDevice.get(handle);
             if (lastOverThreshold == null) {
                 on = false; // can't remember it ever being over threshold (at least since we started up)
             } else {
@@ -60,4 +60,24 @@ public class ApplianceStateDecider {
         }
         return on;
     }
+
+    /**
+     * Get the last time a device's power reading was at or over its appliance threshold.
+     *
+     * @param handle device handle
+     * @return time, or null if not since startup
+     */
+    public Instant getLastOverThreshold(int handle) {
+        return lastOverThresholdByDevice.get(handle);
+    }
+
+    /**
+     * Record a reading at or over the appliance threshold, for a device already known to be on.
+     *
+     * @param handle device handle
+     * @param now time of reading
+     */
+    public void overThreshold(int handle, Instant now) {
+        lastOverThresholdByDevice.set(handle, now);
+    }
 }
@@ -36,4 +36,13 @@ public interface DeviceConnector extends DeviceConnectorInfo {
     default Future<Command.Result> dispatch(Command command) {
         return CompletableFuture.completedFuture(Command.Result.NOT_SUPPORTED);
     }
+
+    /**
+     * Get metrics for polls of the device.
+     *
+     * @return metrics, or null if the connector does not poll
+     */
+    default PollMetrics getPollMetrics() {
+        return null;
+    }
 }
@@ -6,34 +6,58 @@
 
 package net.forlevity.homeglue.device;
 
+import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import lombok.extern.log4j.Log4j2;
+import net.forlevity.homeglue.util.HandleArray;
 
-import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 @Singleton
 @Log4j2
 public class DeviceConnectorInstances {
 
-    private final Map<String, DeviceConnector> devices = new ConcurrentHashMap<>();
+    private final DeviceHandles handles;
+    private final HandleArray<DeviceConnector> devices = new HandleArray<>();
+
+    @Inject
+    public DeviceConnectorInstances(DeviceHandles handles) {
+        this.handles = handles;
+    }
 
     public void register(DeviceConnector deviceConnectorInstance) {
-        devices.put(deviceConnectorInstance.getDetectionId(), deviceConnectorInstance);
+        devices.set(handles.of(deviceConnectorInstance.getDetectionId()), deviceConnectorInstance);
     }
 
     public DeviceConnectorInfo get(String detectionId) {
-        return devices.get(detectionId);
+        return get(handles.find(detectionId));
+    }
+
+    public DeviceConnectorInfo get(int handle) {
+        return devices.get(handle);
+    }
+
+    /**
+     * Call a function for each registered connector.
+     *
+     * @param action function
+     */
+    public void forEach(Consumer<DeviceConnector> action) {
+        devices.forEach(action);
     }
 
     public Future<Command.Result> dispatch(String deviceDetectionId, Command command) {
-        DeviceConnector device = devices.get(deviceDetectionId);
+        return dispatch(handles.find(deviceDetectionId), command);
+    }
+
+    public Future<Command.Result> dispatch(int handle, Command command) {
+        DeviceConnector device = devices.get(handle);
         if (device == null) {
             return CompletableFuture.completedFuture(Command.Result.DEVICE_NOT_FOUND);
         } // else
-        log.info("command for device {} : {}", deviceDetectionId, command);
+        log.info("command for device {} : {}", device.getDetectionId(), command);
         return device.dispatch(command);
     }
 }
@@ -9,15 +9,20 @@ package net.forlevity.homeglue.device;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.NonNull;
+import lombok.Setter;
 import lombok.ToString;
+import lombok.experimental.Accessors;
 import net.forlevity.homeglue.entity.Device;
+import net.forlevity.homeglue.util.Timestamped;
 
+import java.time.Instant;
 import java.util.Map;
 
 @NoArgsConstructor
 @Getter
 @ToString
-public class DeviceEvent {
+@Accessors(chain = true)
+public class DeviceEvent implements Timestamped {
 
     // some built-in events
     public static final String CONNECTED = "connected";
@@ -30,8 +35,12 @@ public class DeviceEvent {
     public static final String NEW_DEVICE = "new_device";
     public static final String ON_TOO_LONG = "on_too_long";
 
+    private final Instant timestamp = Instant.now();
+
     @NonNull
     private String detectionId;
+    @Setter
+    private int handle = DeviceHandles.NONE;
     private String friendlyName;
     @NonNull
     private String event;
@@ -0,0 +1,78 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.device;
+
+import com.google.inject.Singleton;
+import net.forlevity.homeglue.util.HandleArray;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Registry of device handles. Each device detectionId is assigned a dense int handle the first time it is seen, which
+ * never changes while the application runs. Per-device state on hot paths is kept in HandleArrays indexed by handle,
+ * so that the detectionId is only hashed once per state. Handles are not persisted.
+ */
+@Singleton
+public class DeviceHandles {
+
+    /** Handle value meaning "not assigned". */
+    public static final int NONE = -1;
+
+    private final Map<String, Integer> handles = new ConcurrentHashMap<>();
+    private final HandleArray<String> detectionIds = new HandleArray<>();
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Get the handle for a device, assigning one if it does not have one yet.
+     *
+     * @param detectionId device detectionId
+     * @return handle
+     */
+    public int of(String detectionId) {
+        Integer handle = handles.get(detectionId);
+        if (handle != null) {
+            return handle;
+        } // else
+        return handles.computeIfAbsent(detectionId, id -> {
+            int newHandle = count.getAndIncrement();
+            detectionIds.set(newHandle, id);
+            return newHandle;
+        });
+    }
+
+    /**
+     * Get the handle for a device, without assigning one.
+     *
+     * @param detectionId device detectionId
+     * @return handle, or NONE if the device has never been seen
+     */
+    public int find(String detectionId) {
+        Integer handle = handles.get(detectionId);
+        return handle == null ? NONE : handle;
+    }
+
+    /**
+     * Get the detectionId for a handle.
+     *
+     * @param handle handle
+     * @return detectionId, or null if handle was never assigned
+     */
+    public String detectionId(int handle) {
+        return detectionIds.get(handle);
+    }
+
+    /**
+     * Get the number of handles assigned, which is also one more than the highest handle.
+     *
+     * @return count
+     */
+    public int size() {
+        return count.get();
+    }
+}
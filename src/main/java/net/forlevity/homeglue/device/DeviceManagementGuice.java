@@ -37,6 +37,9 @@ public class DeviceManagementGuice extends AbstractModule {
         // offline marker
         bind(OfflineMarkerService.class);
 
+        // in-memory device model with write-behind to database
+        bind(DeviceModelService.class);
+
         // device state processor (and online marker)
         bind(new TypeLiteral<Consumer<DeviceState>>(){}).to(DeviceStateProcessorService.class);
         bind(DeviceStateProcessorService.class).to(DeviceStateProcessorServiceImpl.class);
@@ -0,0 +1,323 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.device;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import lombok.extern.log4j.Log4j2;
+import net.forlevity.homeglue.entity.ApplianceDetector;
+import net.forlevity.homeglue.entity.Device;
+import net.forlevity.homeglue.entity.Relay;
+import net.forlevity.homeglue.persistence.PersistenceService;
+import org.hibernate.Session;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+/**
+ * Authoritative in-memory copy of the persistent device list. The device state processor reads and changes devices
+ * here, without opening a database session. Changed devices are written back to the database in the background
+ * (write-behind), in one transaction per flush. Devices are locked individually, so different devices can be
+ * updated concurrently.
+ *
+ * Only the state owned by the processor (connection, details, relay and appliance state) is written back. Settings
+ * changed through the API go straight to the database, after which the caller must reload() the device.
+ */
+@Log4j2
+@Singleton
+public class DeviceModelService extends AbstractIdleService {
+
+    private final PersistenceService persistence;
+    private final ScheduledExecutorService executor;
+    private final boolean ownsExecutor;
+    private final int flushPeriodMillis;
+    private final Map<String, Device> devices = new ConcurrentHashMap<>(); // entry guarded by lock(detectionId)
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private final Map<String, DeviceLock> locks = new ConcurrentHashMap<>();
+    private final Object flushLock = new Object();
+    private final AtomicLong reloads = new AtomicLong(); // devices loaded before a reload may be stale
+    private ScheduledFuture<?> flusher = null;
+
+    @Inject
+    public DeviceModelService(PersistenceService persistence,
+                              ScheduledExecutorService executor,
+                              @Named("device.model.flush.millis") int flushPeriodMillis) {
+        this(persistence, executor, false, flushPeriodMillis);
+    }
+
+    /**
+     * Create a device model with its own flush thread, which is shut down when the service stops.
+     *
+     * @param persistence persistence
+     */
+    public DeviceModelService(PersistenceService persistence) {
+        this(persistence, new ScheduledThreadPoolExecutor(1), true, 1000);
+    }
+
+    private DeviceModelService(PersistenceService persistence,
+                               ScheduledExecutorService executor,
+                               boolean ownsExecutor,
+                               int flushPeriodMillis) {
+        this.persistence = persistence;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.flushPeriodMillis = flushPeriodMillis;
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        persistence.awaitRunning();
+        persistence.beforeShutdown(this::tryFlush); // final flush, even if persistence is stopped first
+        flusher = executor.scheduleWithFixedDelay(this::tryFlush,
+                flushPeriodMillis, flushPeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        if (flusher != null) {
+            flusher.cancel(false);
+        }
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+        if (persistence.isRunning()) {
+            tryFlush();
+        } else if (!dirty.isEmpty()) {
+            log.warn("persistence stopped first, {} changed devices not written", dirty.size());
+        }
+    }
+
+    /**
+     * Run an operation on the in-memory copy of a device. The operation receives the device, or null if the device
+     * has never been seen. If it returns a device, that device becomes the current copy and will be written to the
+     * database on the next flush. If it returns null, nothing changed. The operation runs while holding the lock
+     * for this device, so it must be fast and must not block.
+     *
+     * @param detectionId device detection id
+     * @param operation operation
+     * @return the changed device, or null if the operation made no change
+     */
+    public Device update(String detectionId, UnaryOperator<Device> operation) {
+        Device loaded = null;
+        boolean triedLoading = false;
+        long loadedAfterReloads = 0;
+        DeviceLock lock = lock(detectionId);
+        while (true) {
+            synchronized (lock) {
+                Device device = devices.get(detectionId);
+                if (device == null && triedLoading && loadedAfterReloads != reloads.get()) {
+                    triedLoading = false; // stale, load again
+                } else if (device == null && loaded != null) {
+                    devices.put(detectionId, loaded);
+                    device = loaded;
+                }
+                if (device != null || triedLoading) {
+                    Device changed = operation.apply(device);
+                    if (changed != null) {
+                        devices.put(detectionId, changed);
+                        dirty.add(detectionId);
+                        lock.modifications++;
+                    }
+                    return changed;
+                }
+            }
+            // not in memory yet: try the database, without holding the lock
+            loadedAfterReloads = reloads.get();
+            loaded = persistence.exec(session -> load(session, detectionId));
+            triedLoading = true;
+        }
+    }
+
+    /**
+     * Get the number of changes made to a device so far, including reloads. A caller that reads this while
+     * holding the device in update() knows the device is unchanged for as long as the value stays the same.
+     *
+     * @param detectionId device detection id
+     * @return count
+     */
+    public long getModifications(String detectionId) {
+        return lock(detectionId).modifications;
+    }
+
+    /**
+     * Load any of the given devices that are not in memory yet, all in one transaction. This is optional, update()
+     * loads devices as needed, but one at a time.
+     *
+     * @param detectionIds device detection ids
+     */
+    public void preload(Collection<String> detectionIds) {
+        List<String> missing = detectionIds.stream()
+                .distinct()
+                .filter(detectionId -> !devices.containsKey(detectionId))
+                .collect(Collectors.toList());
+        if (missing.isEmpty()) {
+            return;
+        } // else
+        long loadedAfterReloads = reloads.get();
+        Map<String, Device> loaded = persistence.exec(session -> {
+            Map<String, Device> result = new HashMap<>();
+            missing.forEach(detectionId -> result.put(detectionId, load(session, detectionId)));
+            return result;
+        });
+        loaded.forEach((detectionId, device) -> {
+            if (device != null) {
+                synchronized (lock(detectionId)) {
+                    if (loadedAfterReloads == reloads.get()) {
+                        devices.putIfAbsent(detectionId, device);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Drop the in-memory copy of a device after its settings were changed in the database, so that the next update
+     * loads the new settings. Pending changes are written first.
+     *
+     * @param detectionId device detection id
+     */
+    public void reload(String detectionId) {
+        synchronized (flushLock) { // lock order is always flushLock, then device
+            DeviceLock lock = lock(detectionId);
+            synchronized (lock) {
+                flush();
+                devices.remove(detectionId);
+                reloads.incrementAndGet();
+                lock.modifications++;
+            }
+        }
+    }
+
+    /**
+     * Write all changed devices to the database in a single transaction.
+     *
+     * @return number of devices written
+     */
+    public int flush() {
+        synchronized (flushLock) {
+            List<Device> pending = new ArrayList<>();
+            for (String detectionId : dirty) {
+                dirty.remove(detectionId); // before copying, so that a concurrent change marks it dirty again
+                synchronized (lock(detectionId)) {
+                    pending.add(copyOf(devices.get(detectionId)));
+                }
+            }
+            if (pending.size() > 0) {
+                try {
+                    persistence.exec(session -> {
+                        pending.forEach(device -> save(session, device));
+                        return null;
+                    });
+                    log.debug("flushed {} changed devices", pending.size());
+                } catch (RuntimeException e) {
+                    // try again next time
+                    pending.forEach(device -> dirty.add(device.getDetectionId()));
+                    throw e;
+                }
+            }
+            return pending.size();
+        }
+    }
+
+    private DeviceLock lock(String detectionId) {
+        return locks.computeIfAbsent(detectionId, id -> new DeviceLock());
+    }
+
+    private void tryFlush() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.error("unexpected exception writing device changes (will retry)", e);
+        }
+    }
+
+    /**
+     * Load a device and its children from the database so it can be used outside of the session.
+     */
+    private Device load(Session session, String detectionId) {
+        Device device = session.bySimpleNaturalId(Device.class).load(detectionId);
+        if (device != null) {
+            device.getDetails(); // initialize collection
+            device.setRelay(persistence.unproxy(Relay.class, device.getRelay()));
+            device.setApplianceDetector(persistence.unproxy(ApplianceDetector.class, device.getApplianceDetector()));
+        }
+        return device;
+    }
+
+    private void save(Session session, Device changes) {
+        Device device = session.bySimpleNaturalId(Device.class).load(changes.getDetectionId());
+        if (device == null) {
+            device = changes;
+        } else {
+            copyState(changes, device);
+        }
+        session.saveOrUpdate(device);
+    }
+
+    private static Device copyOf(Device device) {
+        Device copy = new Device(device.getDetectionId());
+        if (device.getFriendlyName() != null) {
+            copy.setFriendlyName(device.getFriendlyName());
+        }
+        copyState(device, copy);
+        return copy;
+    }
+
+    /**
+     * Copy the state that the device state processor owns from one device to another. Settings are not copied,
+     * except when creating a relay or appliance detector that did not exist yet.
+     *
+     * @param from source
+     * @param to destination
+     */
+    private static void copyState(Device from, Device to) {
+        to.setConnected(from.isConnected());
+        to.setLastStateChange(from.getLastStateChange());
+        if (!to.getDetails().equals(from.getDetails())) {
+            to.setDetails(from.getDetails());
+        }
+        Relay relay = from.getRelay();
+        if (relay != null) {
+            if (to.getRelay() == null) {
+                to.setRelay(new Relay());
+            }
+            to.getRelay().setClosed(relay.isClosed()).setLastStateChange(relay.getLastStateChange());
+        }
+        ApplianceDetector applianceDetector = from.getApplianceDetector();
+        if (applianceDetector != null) {
+            if (to.getApplianceDetector() == null) {
+                to.setApplianceDetector(new ApplianceDetector()
+                        .setMinWatts(applianceDetector.getMinWatts())
+                        .setOffDelaySecs(applianceDetector.getOffDelaySecs())
+                        .setMaxOnSeconds(applianceDetector.getMaxOnSeconds()));
+            }
+            to.getApplianceDetector().setOn(applianceDetector.isOn());
+            to.getApplianceDetector().setLastStateChange(applianceDetector.getLastStateChange());
+        }
+    }
+
+    /**
+     * Lock for one device, which also counts the changes made to it.
+     */
+    private static class DeviceLock {
+        volatile long modifications = 0; // written while holding this lock
+    }
+}
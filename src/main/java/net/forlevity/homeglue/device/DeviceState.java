@@ -9,31 +9,38 @@ package net.forlevity.homeglue.device;
 import com.google.common.collect.ImmutableMap;
 import lombok.Getter;
 import lombok.NonNull;
-import lombok.Setter;
 import lombok.ToString;
 import lombok.experimental.Accessors;
+import net.forlevity.homeglue.util.Timestamped;
 
 import java.time.Instant;
 import java.util.Map;
 
 /**
- * State of a device at a point in time.
+ * State of a device at a point in time. Readings are stored as primitives: watts is NaN if not available, and the
+ * relay is one of RELAY_UNKNOWN, RELAY_OPEN or RELAY_CLOSED. The boxed DeviceInfo getters and setters are kept for
+ * callers that are not on the polling path. The device handle is assigned by the state processor if the producer did
+ * not set it.
  */
 @Getter
 @Accessors(chain = true)
-@ToString(of = {"detectionId", "details", "timestamp"})
-public class DeviceState implements DeviceInfo {
+@ToString(of = {"detectionId", "handle", "details", "timestampMillis", "watts", "relay"})
+public class DeviceState implements DeviceInfo, Timestamped {
 
-    private final Instant timestamp = Instant.now();
+    public static final byte RELAY_UNKNOWN = -1;
+    public static final byte RELAY_OPEN = 0;
+    public static final byte RELAY_CLOSED = 1;
+
+    private final long timestampMillis = System.currentTimeMillis();
 
     @NonNull
     private final String detectionId;
 
-    @Setter
-    private Double instantaneousWatts = null;
+    private int handle = DeviceHandles.NONE;
+
+    private double watts = Double.NaN;
 
-    @Setter
-    private Boolean relayClosed = null;
+    private byte relay = RELAY_UNKNOWN;
 
     private final Map<String, String> details;
 
@@ -48,7 +55,69 @@ public class DeviceState implements DeviceInfo {
 
     public DeviceState(DeviceInfo toCopy) {
         this(toCopy.getDetectionId(), null);
-        setInstantaneousWatts(toCopy.getInstantaneousWatts());
-        setRelayClosed(toCopy.getRelayClosed());
+        if (toCopy instanceof DeviceState) {
+            this.handle = ((DeviceState) toCopy).handle;
+            this.watts = ((DeviceState) toCopy).watts;
+            this.relay = ((DeviceState) toCopy).relay;
+        } else {
+            setInstantaneousWatts(toCopy.getInstantaneousWatts());
+            setRelayClosed(toCopy.getRelayClosed());
+        }
+    }
+
+    public boolean hasHandle() {
+        return handle != DeviceHandles.NONE;
+    }
+
+    public DeviceState setHandle(int handle) {
+        this.handle = handle;
+        return this;
+    }
+
+    public boolean hasWatts() {
+        return !Double.isNaN(watts);
+    }
+
+    public DeviceState setWatts(double watts) {
+        this.watts = watts;
+        return this;
+    }
+
+    public boolean hasRelay() {
+        return relay != RELAY_UNKNOWN;
+    }
+
+    public boolean isRelayClosed() {
+        return relay == RELAY_CLOSED;
+    }
+
+    public DeviceState setRelay(boolean closed) {
+        this.relay = closed ? RELAY_CLOSED : RELAY_OPEN;
+        return this;
+    }
+
+    @Override
+    public Instant getTimestamp() {
+        return Instant.ofEpochMilli(timestampMillis);
+    }
+
+    @Override
+    public Double getInstantaneousWatts() {
+        return hasWatts() ? watts : null;
+    }
+
+    public DeviceState setInstantaneousWatts(Double watts) {
+        this.watts = watts == null ? Double.NaN : watts;
+        return this;
+    }
+
+    @Override
+    public Boolean getRelayClosed() {
+        return hasRelay() ? isRelayClosed() : null;
+    }
+
+    public DeviceState setRelayClosed(Boolean relayClosed) {
+        this.relay = relayClosed == null ? RELAY_UNKNOWN : relayClosed ? RELAY_CLOSED : RELAY_OPEN;
+        return this;
     }
 }
@@ -32,4 +32,20 @@ public interface DeviceStateProcessorService extends Service, Consumer<DeviceSta
      * @return last known DeviceState or null
      */
     DeviceState getLastState(String deviceDetectionId);
+
+    /**
+     * Get the last reported state (since service startup) for the given device handle, or null if none.
+     *
+     * @param handle device handle
+     * @return last known DeviceState or null
+     */
+    DeviceState getLastState(int handle);
+
+    /**
+     * Get the appliance detector threshold for a device, as of the last state that was fully processed.
+     *
+     * @param handle device handle
+     * @return minimum watts, or NaN if the device has no appliance detector or has not been seen yet
+     */
+    double getApplianceThreshold(int handle);
 }
@@ -6,73 +6,308 @@
 
 package net.forlevity.homeglue.device;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 import lombok.extern.log4j.Log4j2;
 import net.forlevity.homeglue.entity.ApplianceDetector;
 import net.forlevity.homeglue.entity.Device;
 import net.forlevity.homeglue.entity.Relay;
-import net.forlevity.homeglue.persistence.PersistenceService;
+import net.forlevity.homeglue.util.CoalescingQueue;
+import net.forlevity.homeglue.util.CoalescingQueue.OverflowPolicy;
+import net.forlevity.homeglue.util.HandleArray;
 import net.forlevity.homeglue.util.QueueWorkerService;
+import net.forlevity.homeglue.util.RingBufferQueue;
+import net.forlevity.homeglue.util.RingBufferQueue.WaitStrategy;
 import net.forlevity.homeglue.util.ServiceDependencies;
-import org.hibernate.Session;
 
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
+import static org.apache.logging.log4j.util.Unbox.box;
+
+/**
+ * Applies device states to the device model and emits events. States are partitioned by device, so each device's states
+ * are handled in order, while different devices may be handled in parallel. Queued states are taken in batches, so that
+ * devices not yet in memory can be loaded in one transaction per batch. Each partition queue is bounded. With the
+ * default COALESCING queue, a pending state is replaced by a newer state for the same device unless that would lose a
+ * relay, details or appliance threshold change. The RING_BUFFER queue never coalesces or drops states, but is lock-free
+ * and does not allocate per state. Each state is tagged with its device handle as it is accepted, and per-device state
+ * on this path is kept in arrays indexed by handle.
+ *
+ * Most readings change nothing. After each full pass, the processor remembers what it established about the device
+ * (a Baseline). A later reading that matches the baseline, while no time-based rule (off delay, on too long) can
+ * fire and the device has not changed in the device model since, is skipped without touching the device model.
+ */
 @Log4j2
 @Singleton
 public class DeviceStateProcessorServiceImpl extends QueueWorkerService<DeviceState> implements DeviceStateProcessorService {
 
-    private final PersistenceService persistenceService;
+    /**
+     * Type of queue for each partition.
+     */
+    public enum QueueType {
+        COALESCING,
+        RING_BUFFER
+    }
+
+    private final DeviceModelService deviceModel;
     private final ApplianceStateDecider applianceStateDecider;
     private final Consumer<DeviceEvent> deviceEventConsumer;
     private final DeviceConnectorInstances deviceConnectorInstances;
-    private final Map<Long, Instant> onTooLongSince = new ConcurrentHashMap<>();
-    private final Map<String, DeviceState> lastState = new ConcurrentHashMap<>();
+    private final DeviceHandles handles;
+    private final HandleArray<Instant> onTooLongSince = new HandleArray<>();
+    private final HandleArray<DeviceState> lastState = new HandleArray<>();
+    private final HandleArray<Baseline> baselines;
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
 
     @Inject
     public DeviceStateProcessorServiceImpl(ServiceDependencies dependencies,
-                                           PersistenceService persistenceService,
+                                           DeviceHandles handles,
+                                           DeviceModelService deviceModel,
                                            ApplianceStateDecider applianceStateDecider,
                                            Consumer<DeviceEvent> deviceEventConsumer,
-                                           DeviceConnectorInstances deviceConnectorInstances) {
-        super(DeviceState.class, dependencies);
-        this.persistenceService = persistenceService;
+                                           DeviceConnectorInstances deviceConnectorInstances,
+                                           @Named("device.state.partitions") int partitions,
+                                           @Named("device.state.batch.size") int maxBatchSize,
+                                           @Named("device.state.batch.millis") long maxBatchWaitMillis,
+                                           @Named("device.state.queue.type") QueueType queueType,
+                                           @Named("device.state.queue.capacity") int queueCapacity,
+                                           @Named("device.state.queue.overflow") OverflowPolicy overflowPolicy,
+                                           @Named("device.state.queue.wait") WaitStrategy waitStrategy) {
+        this(dependencies, handles, deviceModel, applianceStateDecider, deviceEventConsumer, deviceConnectorInstances,
+                partitions, maxBatchSize, maxBatchWaitMillis, queueType, queueCapacity, overflowPolicy, waitStrategy,
+                new HandleArray<>());
+    }
+
+    private DeviceStateProcessorServiceImpl(ServiceDependencies dependencies,
+                                            DeviceHandles handles,
+                                            DeviceModelService deviceModel,
+                                            ApplianceStateDecider applianceStateDecider,
+                                            Consumer<DeviceEvent> deviceEventConsumer,
+                                            DeviceConnectorInstances deviceConnectorInstances,
+                                            int partitions,
+                                            int maxBatchSize,
+                                            long maxBatchWaitMillis,
+                                            QueueType queueType,
+                                            int queueCapacity,
+                                            OverflowPolicy overflowPolicy,
+                                            WaitStrategy waitStrategy,
+                                            HandleArray<Baseline> baselines) {
+        super(DeviceState.class, dependencies, partitions, DeviceState::getHandle,
+                maxBatchSize, maxBatchWaitMillis, queueType == QueueType.RING_BUFFER
+                        ? () -> new RingBufferQueue<>(queueCapacity, waitStrategy)
+                        : () -> new CoalescingQueue<>(DeviceState::getHandle,
+                                (pending, newer) -> canReplace(pending, newer,
+                                        applianceThreshold(baselines.get(pending.getHandle()))),
+                                queueCapacity, overflowPolicy));
+        this.deviceModel = deviceModel;
         this.applianceStateDecider = applianceStateDecider;
         this.deviceEventConsumer = deviceEventConsumer;
         this.deviceConnectorInstances = deviceConnectorInstances;
+        this.handles = handles;
+        this.baselines = baselines;
+    }
+
+    @Override
+    public void accept(DeviceState newDeviceState) {
+        assignHandle(newDeviceState); // before partitioning
+        super.accept(newDeviceState);
     }
 
     @Override
     public void handle(DeviceState newDeviceState) {
-        String detectionId = newDeviceState.getDetectionId();
-        lastState.put(detectionId, newDeviceState);
-        List<DeviceEvent> newEvents = persistenceService.exec(session -> {
-            List<DeviceEvent> events = new ArrayList<>();
-            Device device = session.bySimpleNaturalId(Device.class).load(detectionId);
-            handle(session, device, newDeviceState, events);
-            return events;
-        });
-        newEvents.forEach(deviceEventConsumer);
+        int handle = assignHandle(newDeviceState);
+        lastState.set(handle, newDeviceState);
+        if (unchanged(handle, newDeviceState)) {
+            skipped.increment();
+            return;
+        } // else
+        processed.increment();
+        List<DeviceEvent> newEvents = new ArrayList<>();
+        deviceModel.update(newDeviceState.getDetectionId(), device -> handle(device, newDeviceState, newEvents));
+        newEvents.forEach(event -> deviceEventConsumer.accept(event.setHandle(handle)));
+    }
+
+    private int assignHandle(DeviceState deviceState) {
+        if (!deviceState.hasHandle()) {
+            deviceState.setHandle(handles.of(deviceState.getDetectionId()));
+        }
+        return deviceState.getHandle();
+    }
+
+    /**
+     * Get the number of states that went through the device model.
+     *
+     * @return count
+     */
+    public long getProcessed() {
+        return processed.sum();
+    }
+
+    /**
+     * Get the number of states skipped because they could not change anything.
+     *
+     * @return count
+     */
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    @Override
+    protected void handleBatch(List<DeviceState> newDeviceStates) {
+        if (newDeviceStates.size() > 1) {
+            deviceModel.preload(newDeviceStates.stream()
+                    .map(DeviceState::getDetectionId)
+                    .collect(Collectors.toList()));
+        }
+        super.handleBatch(newDeviceStates);
+    }
+
+    /**
+     * Decide whether a pending state can be replaced by a newer state for the same device, without losing a
+     * transition. Connection changes are never lost, since the newer state still shows the device is connected.
+     * A power reading is only replaced by one on the same side of the appliance threshold, so that a short spike
+     * over the threshold still turns the appliance on. Before the device's first full pass the threshold is not
+     * known, and readings may be replaced freely.
+     *
+     * @param pending pending state
+     * @param newer newer state
+     * @param applianceThreshold appliance on threshold in Watts, or NaN if not known
+     * @return true if pending state can be discarded
+     */
+    @VisibleForTesting
+    static boolean canReplace(DeviceState pending, DeviceState newer, double applianceThreshold) {
+        return (!pending.hasRelay() || pending.getRelay() == newer.getRelay())
+                && (pending.getDetails() == null || pending.getDetails().equals(newer.getDetails()))
+                && (!pending.hasWatts() || Double.isNaN(applianceThreshold) || (newer.hasWatts()
+                        && (pending.getWatts() >= applianceThreshold) == (newer.getWatts() >= applianceThreshold)));
     }
 
     @Override
     public DeviceState getLastState(String deviceDetectionId) {
-        return lastState.get(deviceDetectionId);
+        return lastState.get(handles.find(deviceDetectionId));
+    }
+
+    @Override
+    public DeviceState getLastState(int handle) {
+        return lastState.get(handle);
+    }
+
+    @Override
+    public double getApplianceThreshold(int handle) {
+        return applianceThreshold(baselines.get(handle));
     }
 
-    private void handle(Session session, Device device, DeviceState newDeviceState, List<DeviceEvent> events) {
+    private static double applianceThreshold(Baseline baseline) {
+        return baseline == null || !baseline.hasApplianceDetector ? Double.NaN : baseline.minWatts;
+    }
+
+    /**
+     * Apply new state to the in-memory copy of a device. Add events to list.
+     *
+     * @param device device, or null if never seen before
+     * @param newDeviceState new state
+     * @param events events (mutable)
+     * @return Device entity if it changed and needs to be saved, otherwise null
+     */
+    private Device handle(Device device, DeviceState newDeviceState, List<DeviceEvent> events) {
+        long modifications = deviceModel.getModifications(newDeviceState.getDetectionId()); // device is locked
         device = handleDeviceConnection(device, newDeviceState, events);
         boolean forceSave = handleRelay(device, newDeviceState, events);
         forceSave |= handleApplianceDetection(device, newDeviceState, events);
-        if (events.size() > 0 || forceSave) {
-            session.saveOrUpdate(device);
+        baselines.set(newDeviceState.getHandle(), new Baseline(modifications, device));
+        return (events.size() > 0 || forceSave) ? device : null;
+    }
+
+    /**
+     * Check whether a state is certain to cause no events and no changes, given what the last full pass established
+     * about the device. Mirrors handle(), ApplianceStateDecider and the on too long rule; when unsure, returns false.
+     *
+     * @param handle device handle
+     * @param newDeviceState new state
+     * @return true if the state can be skipped
+     */
+    private boolean unchanged(int handle, DeviceState newDeviceState) {
+        Baseline baseline = baselines.get(handle);
+        if (baseline == null
+                || baseline.modifications != deviceModel.getModifications(newDeviceState.getDetectionId())) {
+            return false;
+        } // else
+        if (newDeviceState.getDetails() != null && !newDeviceState.getDetails().equals(baseline.details)) {
+            return false;
+        } // else
+        if (newDeviceState.hasRelay() && newDeviceState.getRelay() != baseline.relay) {
+            return false;
+        } // else
+        if (!newDeviceState.hasWatts()) {
+            return true;
+        } // else
+        if (!baseline.hasApplianceDetector) {
+            return false;
+        } // else
+        double watts = newDeviceState.getWatts();
+        Instant now = Instant.now();
+        boolean unchanged;
+        if (watts >= baseline.minWatts) {
+            unchanged = baseline.applianceOn && now.toEpochMilli() < baseline.onTooLongAtMillis;
+            if (unchanged) {
+                applianceStateDecider.overThreshold(handle, now);
+            }
+        } else if (!baseline.applianceOn) {
+            unchanged = true; // off stays off until over threshold
+        } else {
+            // on, but under threshold: stays on until off delay expires, unless relay is open
+            Instant lastOverThreshold = applianceStateDecider.getLastOverThreshold(handle);
+            unchanged = baseline.relay != DeviceState.RELAY_OPEN && lastOverThreshold != null
+                    && now.toEpochMilli() < lastOverThreshold.toEpochMilli() + baseline.offDelayMillis
+                    && now.toEpochMilli() < baseline.onTooLongAtMillis;
+        }
+        if (unchanged) {
+            log.debug("skipped power meter reading {} {}: {} Watts",
+                    newDeviceState.getDetectionId(), baseline.friendlyName, box(watts));
+        }
+        return unchanged;
+    }
+
+    /**
+     * What a full pass established about a device, copied while the device was locked.
+     */
+    private static class Baseline {
+        final long modifications;
+        final String friendlyName;
+        final Map<String, String> details;
+        final byte relay;
+        final boolean hasApplianceDetector;
+        final boolean applianceOn;
+        final double minWatts;
+        final long offDelayMillis;
+        final long onTooLongAtMillis;
+
+        Baseline(long modifications, Device device) {
+            this.modifications = modifications;
+            this.friendlyName = device.getFriendlyName();
+            this.details = ImmutableMap.copyOf(device.getDetails());
+            Relay relay = device.getRelay();
+            this.relay = relay == null ? DeviceState.RELAY_UNKNOWN
+                    : relay.isClosed() ? DeviceState.RELAY_CLOSED : DeviceState.RELAY_OPEN;
+            ApplianceDetector applianceDetector = device.getApplianceDetector();
+            this.hasApplianceDetector = applianceDetector != null;
+            this.applianceOn = hasApplianceDetector && applianceDetector.isOn();
+            this.minWatts = hasApplianceDetector ? applianceDetector.getMinWatts() : 0;
+            this.offDelayMillis = hasApplianceDetector ? applianceDetector.getOffDelaySecs() * 1000L : 0;
+            this.onTooLongAtMillis = applianceOn && applianceDetector.getMaxOnSeconds() > 0
+                    ? applianceDetector.getLastStateChange().toEpochMilli() + applianceDetector.getMaxOnSeconds() * 1000L
+                    : Long.MAX_VALUE;
         }
     }
 
@@ -116,8 +351,8 @@ public class DeviceStateProcessorServiceImpl extends QueueWorkerService<DeviceSt
     private boolean handleRelay(Device device, DeviceState newDeviceState, List<DeviceEvent> events) {
         // check for relay state change
         boolean forceSave = false;
-        if (newDeviceState.getRelayClosed() != null) {
-            boolean closed = newDeviceState.getRelayClosed();
+        if (newDeviceState.hasRelay()) {
+            boolean closed = newDeviceState.isRelayClosed();
             Relay relay = device.getRelay();
             if (relay == null) {
                 log.debug("relay discovered on device {}", device.getDetectionId());
@@ -146,19 +381,20 @@ public class DeviceStateProcessorServiceImpl extends QueueWorkerService<DeviceSt
     private boolean handleApplianceDetection(Device device, DeviceState newDeviceState, List<DeviceEvent> events) {
         boolean forceSave = false;
         // appliance detection config
-        if (newDeviceState.getInstantaneousWatts() != null) {
-            log.info("Read power meter {} {}: {} Watts", device.getDetectionId(), device.getFriendlyName(), newDeviceState.getInstantaneousWatts());
-            Double watts = newDeviceState.getInstantaneousWatts();
+        if (newDeviceState.hasWatts()) {
+            int handle = newDeviceState.getHandle();
+            double watts = newDeviceState.getWatts();
+            log.info("Read power meter {} {}: {} Watts", device.getDetectionId(), device.getFriendlyName(), box(watts));
             ApplianceDetector applianceDetector = device.getApplianceDetector();
             if (applianceDetector == null) {
                 log.info("creating default appliance config for meter on device {}", device.getDetectionId());
                 applianceDetector = new ApplianceDetector().withDefaultSettings();
                 device.setApplianceDetector(applianceDetector);
-                boolean initialOnState = applianceStateDecider.applianceOn(applianceDetector, watts);
+                boolean initialOnState = applianceStateDecider.applianceOn(handle, applianceDetector, watts);
                 applianceDetector.setOn(initialOnState);
                 forceSave = true; // no event
             } else {
-                boolean currentState = applianceStateDecider.applianceOn(applianceDetector, watts);
+                boolean currentState = applianceStateDecider.applianceOn(handle, applianceDetector, watts);
                 if (applianceDetector.isOn() != currentState) {
                     applianceDetector.setOn(currentState);
                     String event = currentState ? DeviceEvent.APPLIANCE_ON : DeviceEvent.APPLIANCE_OFF;
@@ -169,17 +405,17 @@ public class DeviceStateProcessorServiceImpl extends QueueWorkerService<DeviceSt
                         > applianceDetector.getMaxOnSeconds()) {
 
                     // only create one event when a device is on too long, don't keep creating more events
-                    Instant eventSentForStateChange = onTooLongSince.get(device.getId());
+                    Instant eventSentForStateChange = onTooLongSince.get(handle);
                     if (eventSentForStateChange == null
                             || !eventSentForStateChange.equals(applianceDetector.getLastStateChange())) {
-                        onTooLongSince.put(device.getId(), applianceDetector.getLastStateChange());
+                        onTooLongSince.set(handle, applianceDetector.getLastStateChange());
                         events.add(new DeviceEvent(device, DeviceEvent.ON_TOO_LONG));
                     }
 
                     Relay relay = device.getRelay();
                     if (relay != null) {
                         log.info("Device {} was on too long, opening relay", device.getDetectionId());
-                        deviceConnectorInstances.dispatch(device.getDetectionId(), new Command(Command.Action.OPEN_RELAY));
+                        deviceConnectorInstances.dispatch(handle, new Command(Command.Action.OPEN_RELAY));
                     }
                 }
             }
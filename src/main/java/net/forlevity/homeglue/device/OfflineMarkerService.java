@@ -12,16 +12,14 @@ import com.google.inject.Singleton;
 import lombok.extern.log4j.Log4j2;
 import net.forlevity.homeglue.entity.Device;
 import net.forlevity.homeglue.persistence.PersistenceService;
+import net.forlevity.homeglue.util.TimerWheel;
 import org.hibernate.Session;
 
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Root;
-import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
@@ -33,44 +31,50 @@ public class OfflineMarkerService extends AbstractIdleService implements Runnabl
     private static final long INITIAL_DELAY_MILLIS = 60 * 1000; // wait 1 minute before marking anything offline!
     private static final long DELAY_BETWEEN_MILLIS = 30 * 1000; // 30 seconds idle between checks
 
-    private final ScheduledExecutorService executor;
+    private final TimerWheel timer;
     private final PersistenceService persistence;
+    private final DeviceModelService deviceModel;
     private final DeviceConnectorInstances connectorInstances;
     private final DeviceStateProcessorService stateProcessor;
     private final Consumer<DeviceEvent> deviceEventConsumer;
-    private ScheduledFuture<?> checker;
+    private final DeviceHandles handles;
+    private TimerWheel.Timeout checker;
 
     @Inject
-    public OfflineMarkerService(ScheduledExecutorService executor,
+    public OfflineMarkerService(TimerWheel timer,
                                 PersistenceService persistence,
+                                DeviceModelService deviceModel,
                                 DeviceConnectorInstances connectorInstances,
                                 DeviceStateProcessorService stateProcessor,
-                                Consumer<DeviceEvent> deviceEventConsumer) {
-        this.executor = executor;
+                                Consumer<DeviceEvent> deviceEventConsumer,
+                                DeviceHandles handles) {
+        this.timer = timer;
         this.persistence = persistence;
+        this.deviceModel = deviceModel;
         this.connectorInstances = connectorInstances;
         this.stateProcessor = stateProcessor;
         this.deviceEventConsumer = deviceEventConsumer;
+        this.handles = handles;
     }
 
     @Override
     protected void startUp() throws Exception {
         persistence.awaitRunning();
         stateProcessor.awaitRunning();
-        checker = executor.scheduleWithFixedDelay(this, INITIAL_DELAY_MILLIS, DELAY_BETWEEN_MILLIS, TimeUnit.MILLISECONDS);
+        checker = timer.scheduleWithFixedDelay(this, INITIAL_DELAY_MILLIS, DELAY_BETWEEN_MILLIS, TimeUnit.MILLISECONDS);
     }
 
     @Override
     synchronized public void run() {
         try {
-            List<Device> marked = persistence.exec(this::markOffline);
-            if (marked.size() > 0) {
-                String devices = marked.stream().map(Device::getDetectionId)
+            List<String> connectedDevices = persistence.exec(this::connectedDeviceIds);
+            List<DeviceEvent> events = new ArrayList<>();
+            connectedDevices.forEach(id -> deviceModel.update(id, device -> checkOffline(device, events)));
+            if (events.size() > 0) {
+                String devices = events.stream().map(DeviceEvent::getDetectionId)
                         .collect(Collectors.joining(", "));
-                log.info("marked {} devices offline: {}", marked.size(), devices);
-                marked.forEach(device -> {
-                    deviceEventConsumer.accept(new DeviceEvent(device, DeviceEvent.CONNECTION_LOST));
-                });
+                log.info("marked {} devices offline: {}", events.size(), devices);
+                events.forEach(deviceEventConsumer);
             }
         } catch (RuntimeException e) {
             log.error("unexpected exception during offline marker (continuing)", e);
@@ -85,48 +89,53 @@ public class OfflineMarkerService extends AbstractIdleService implements Runnabl
      * @return true if the device was successfully marked offline (valid detectionId)
      */
     synchronized public boolean markOffline(String detectionId) {
-        return persistence.exec(session -> {
-            Device device = session.bySimpleNaturalId(Device.class).load(detectionId);
+        boolean[] found = new boolean[1];
+        deviceModel.update(detectionId, device -> {
             if (device == null) {
                 log.warn("can't mark unknown device offline: {}", detectionId);
-            } else if (!device.isConnected()) {
+                return null;
+            } // else
+            found[0] = true;
+            if (!device.isConnected()) {
                 log.debug("device was already marked offline: {}", detectionId);
-            } else {
-                device.setConnected(false);
-                session.saveOrUpdate(device);
-            }
-            return device != null;
+                return null;
+            } // else
+            device.setConnected(false);
+            return device;
         });
+        return found[0];
     }
 
-    private List<Device> markOffline(Session session) {
+    private List<String> connectedDeviceIds(Session session) {
 
-        // query: all devices where connected = true
+        // query: detectionId of all devices where connected = true
         CriteriaBuilder criteriaBuilder = session.getCriteriaBuilder();
-        CriteriaQuery<Device> query = criteriaBuilder.createQuery(Device.class);
+        CriteriaQuery<String> query = criteriaBuilder.createQuery(String.class);
         Root<Device> root = query.from(Device.class);
+        query.select(root.<String>get(Device._detectionId));
         query.where(criteriaBuilder.equal(root.get(Device._connected), true));
-        List<Device> onlineDevices = session.createQuery(query).list();
-
-        // call checkOffline on each device, return non-null results as list
-        return onlineDevices.stream().map(dev -> checkOffline(session, dev))
-                .filter(Objects::nonNull).collect(Collectors.toList());
+        return session.createQuery(query).list();
     }
 
     /**
-     * Mark a device offline, if it should be marked offline.
+     * Mark a device offline, if it should be marked offline. Runs on the in-memory device model.
      *
      * @param device device
-     * @return device detection id, if marked offline, or null if nothing happened
+     * @param events events (mutable)
+     * @return device, if marked offline, or null if nothing happened
      */
-    private Device checkOffline(Session session, Device device) {
-        String id = device.getDetectionId();
-        DeviceState lastState = stateProcessor.getLastState(id);
-        DeviceConnectorInfo connectorInfo = connectorInstances.get(id);
+    private Device checkOffline(Device device, List<DeviceEvent> events) {
+        if (device == null || !device.isConnected()) {
+            return null; // already offline, possibly not yet written to database
+        }
+        int handle = handles.find(device.getDetectionId());
+        DeviceState lastState = stateProcessor.getLastState(handle);
+        DeviceConnectorInfo connectorInfo = connectorInstances.get(handle);
         if (lastState == null || connectorInfo == null
-                || lastState.getTimestamp().plus(connectorInfo.getOfflineDelay()).isBefore(Instant.now())) {
+                || lastState.getTimestampMillis() + connectorInfo.getOfflineDelay().toMillis()
+                < System.currentTimeMillis()) {
             device.setConnected(false);
-            session.saveOrUpdate(device);
+            events.add(new DeviceEvent(device, DeviceEvent.CONNECTION_LOST).setHandle(handle));
             return device;
         } // else
         return null;
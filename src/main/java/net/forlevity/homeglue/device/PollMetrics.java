@@ -0,0 +1,89 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.device;
+
+import lombok.Getter;
+import net.forlevity.homeglue.util.Histogram;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timings for one PollerCommander. Lateness is measured for every poll trigger, from the time the
+ * trigger was scheduled for to the time it ran, so it shows how far behind the timer and its worker pool are.
+ * Duration is measured from the start of a poll to its end, including polls that exceeded their deadline.
+ */
+public class PollMetrics {
+
+    /**
+     * Why a poll trigger did not start a poll.
+     */
+    public enum SkipReason {
+        /** A poll or command was running. */
+        BUSY,
+        /** Commands were waiting, and go first. */
+        COMMANDS_PENDING,
+        /** The device had not been idle for long enough since the last poll or command. */
+        NOT_IDLE
+    }
+
+    private final LongAdder polls = new LongAdder();
+    private final LongAdder deadlineExceeded = new LongAdder();
+    private final Map<SkipReason, LongAdder> skipped = new EnumMap<>(SkipReason.class);
+
+    @Getter
+    private final Histogram latenessMillis = new Histogram();
+
+    @Getter
+    private final Histogram durationMillis = new Histogram();
+
+    public PollMetrics() {
+        for (SkipReason reason : SkipReason.values()) {
+            skipped.put(reason, new LongAdder());
+        }
+    }
+
+    public long getPolls() {
+        return polls.sum();
+    }
+
+    public long getDeadlineExceeded() {
+        return deadlineExceeded.sum();
+    }
+
+    public long getSkipped(SkipReason reason) {
+        return skipped.get(reason).sum();
+    }
+
+    /**
+     * Get the number of skipped triggers for each reason.
+     *
+     * @return map of reason to count
+     */
+    public Map<SkipReason, Long> getSkipped() {
+        Map<SkipReason, Long> result = new EnumMap<>(SkipReason.class);
+        skipped.forEach((reason, count) -> result.put(reason, count.sum()));
+        return result;
+    }
+
+    void recordTrigger(long latenessMillis) {
+        this.latenessMillis.record(latenessMillis);
+    }
+
+    void recordSkipped(SkipReason reason) {
+        skipped.get(reason).increment();
+    }
+
+    void recordPoll(long durationMillis, boolean exceededDeadline) {
+        polls.increment();
+        this.durationMillis.record(durationMillis);
+        if (exceededDeadline) {
+            deadlineExceeded.increment();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.device;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads the polls of many devices across their polling period, so that devices discovered at the same time do not
+ * all poll at the same moment. Each poller joins with its base period, and is given a phase: an offset into that
+ * period, shared with no other poller with the same period. Before each poll, the poller moves its start time to the
+ * nearest time that is in its phase. Pollers that poll less often (e.g. adaptive pollers backing off by doubling
+ * their period) stay in phase, because every multiple of the base period lines up with the same offset.
+ *
+ * In SPREAD mode, phases are evenly spaced, and are reassigned whenever a poller joins or leaves. In RANDOM mode,
+ * each poller gets a random phase when it joins, which never changes. In NONE mode, polls are not moved.
+ */
+@Singleton
+public class PollPhaser {
+
+    public enum Mode {
+        /** Poll when due. */
+        NONE,
+        /** Evenly spaced phases, rebalanced as pollers join and leave. */
+        SPREAD,
+        /** Random phase for each poller. */
+        RANDOM
+    }
+
+    /**
+     * A poller's place in its period.
+     */
+    public class Phase {
+
+        @Getter
+        private final int periodMillis;
+        private double fraction; // guarded by PollPhaser.this
+
+        private Phase(int periodMillis, double fraction) {
+            this.periodMillis = periodMillis;
+            this.fraction = fraction;
+        }
+
+        /**
+         * Get this phase as a fraction of the period. May change when other pollers join or leave.
+         *
+         * @return fraction, from 0 (inclusive) to 1 (exclusive)
+         */
+        public double getFraction() {
+            synchronized (PollPhaser.this) {
+                return fraction;
+            }
+        }
+
+        /**
+         * Adjust the delay until a poll, to start the poll in phase. The poll is moved to the nearest time in phase,
+         * up to half a period earlier or later, but not earlier than a minimum delay.
+         *
+         * @param delayMillis delay until poll is due
+         * @param minDelayMillis minimum delay, e.g. for the device to be idle long enough
+         * @return delay until poll should start
+         */
+        public long align(long delayMillis, long minDelayMillis) {
+            if (mode == Mode.NONE) {
+                return delayMillis;
+            } // else
+            long now = nowMillis();
+            long earliest = now + minDelayMillis;
+            long offset = (long) (getFraction() * periodMillis);
+            long start = Math.round((double) (now + delayMillis - offset) / periodMillis) * periodMillis + offset;
+            if (start < earliest) {
+                start += periodMillis * ((earliest - start + periodMillis - 1) / periodMillis);
+            }
+            return start - now;
+        }
+
+        /**
+         * Give up this phase, e.g. when the poller stops.
+         */
+        public void leave() {
+            PollPhaser.this.leave(this);
+        }
+    }
+
+    @Getter
+    private final Mode mode;
+
+    private final long startNanos = System.nanoTime();
+    private final Map<Integer, List<Phase>> phasesByPeriod = new HashMap<>(); // guarded by this
+
+    @Inject
+    public PollPhaser(@Named("poll.phase.mode") Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Get a phase for a new poller.
+     *
+     * @param periodMillis base period of poller
+     * @return phase
+     */
+    public synchronized Phase join(int periodMillis) {
+        Preconditions.checkArgument(periodMillis > 0, "periodMillis must be positive");
+        List<Phase> phases = phasesByPeriod.computeIfAbsent(periodMillis, period -> new ArrayList<>());
+        Phase phase = new Phase(periodMillis, mode == Mode.RANDOM ? ThreadLocalRandom.current().nextDouble() : 0);
+        phases.add(phase);
+        rebalance(phases);
+        return phase;
+    }
+
+    /**
+     * Get the number of pollers with a given base period.
+     *
+     * @param periodMillis base period
+     * @return count
+     */
+    public synchronized int size(int periodMillis) {
+        List<Phase> phases = phasesByPeriod.get(periodMillis);
+        return phases == null ? 0 : phases.size();
+    }
+
+    private synchronized void leave(Phase phase) {
+        List<Phase> phases = phasesByPeriod.get(phase.periodMillis);
+        if (phases != null && phases.remove(phase)) {
+            if (phases.isEmpty()) {
+                phasesByPeriod.remove(phase.periodMillis);
+            } else {
+                rebalance(phases);
+            }
+        }
+    }
+
+    /**
+     * Space phases evenly, keeping pollers in the order they joined so that most keep a phase close to their old one.
+     *
+     * @param phases phases with the same period
+     */
+    private void rebalance(List<Phase> phases) {
+        if (mode == Mode.SPREAD) {
+            for (int ix = 0; ix < phases.size(); ix++) {
+                phases.get(ix).fraction = (double) ix / phases.size();
+            }
+        }
+    }
+
+    @VisibleForTesting
+    long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+}
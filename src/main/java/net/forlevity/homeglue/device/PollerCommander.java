@@ -8,14 +8,34 @@ package net.forlevity.homeglue.device;
 
 import lombok.Getter;
 import lombok.extern.log4j.Log4j2;
+import net.forlevity.homeglue.util.TimerWheel;
 
 import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.Queue;
 import java.util.concurrent.*;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
 
 /**
- * Polls a device periodically, enforcing limits
+ * Polls a device periodically, and runs commands on it between polls, enforcing limits. Each poll is scheduled as a
+ * one-shot timer relative to the start of the previous one. In adaptive mode, the period is chosen again after every
+ * poll by calling a caller-supplied function.
+ *
+ * Only one poll or command runs at a time, and at least minIdleBetweenMillis passes between the end of one and the
+ * start of the next. This is a small state machine guarded by the object monitor, which is never held while talking
+ * to the device: a command that arrives too soon is queued and a timer is set for when the device will be ready, so
+ * no thread waits. Pending commands go before the next poll. A poll may be asynchronous, in which case the device is
+ * busy until the poll's future completes.
+ *
+ * Commands may name a target, e.g. a relay, and the value they set it to. A command for a target that already has a
+ * command waiting replaces the waiting one's operation, since only the latest value matters; a command that sets a
+ * target to the value a running command is setting it to is not run again. Either way, the callers share one future.
+ *
+ * An asynchronous poll may be given a deadline. If it has not completed by then, its future is cancelled, which should
+ * abort whatever it is waiting for, and the device is idle again. Lateness, duration and skipped polls are recorded
+ * in PollMetrics.
  */
 @Log4j2
 public class PollerCommander {
@@ -27,22 +47,132 @@ public class PollerCommander {
     private final String name;
 
     private final int periodMillis;
+    private final IntSupplier nextPeriodMillis;
     private final int minIdleBetweenMillis;
-    private final Runnable poller;
-    private final ScheduledExecutorService executor;
+    private final Supplier<? extends CompletionStage<?>> poller;
+    private final ExecutorService executor;
+    private final TimerWheel timer;
+    @Getter
+    private final PollMetrics metrics = new PollMetrics();
+
+    // state, guarded by this
     private long idleStartTime;
+    private boolean busy = false;
     private boolean commandJustIssued = false;
-    private ScheduledFuture<?> pollerFuture = null;
+    private boolean dispatchScheduled = false;
+    private final Queue<PendingCommand> commands = new ArrayDeque<>();
+    private PendingCommand runningCommand = null;
+    private long coalescedCommands = 0;
+    private TimerWheel.Timeout pollerFuture = null;
+    private PollPhaser phaser = null;
+    private PollPhaser.Phase phase = null;
+    private int deadlineMillis = 0;
+    private long intendedStartNanos;
+    private boolean stopped = false;
     private int ignoredMissedTriggers = 0;
-    private Lock pollingLock = new ReentrantLock();
 
-    public PollerCommander(ScheduledExecutorService executor,
+    /**
+     * A command waiting for the device to be idle. The operation and value of a waiting command may be replaced by a
+     * later command for the same target.
+     */
+    private static class PendingCommand {
+        final Object target;
+        Object value;
+        Callable<Command.Result> command;
+        final CompletableFuture<Command.Result> result = new CompletableFuture<>();
+
+        PendingCommand(Object target, Object value, Callable<Command.Result> command) {
+            this.target = target;
+            this.value = value;
+            this.command = command;
+        }
+    }
+
+    /**
+     * Create a poller with a fixed period.
+     *
+     * @param executor executor for commands
+     * @param timer timer for polls
+     * @param name name for logging
+     * @param poller poll operation
+     * @param periodMillis time between start of each poll
+     * @param minIdleBetweenMillis minimum time between end of a poll or command and start of the next
+     */
+    public PollerCommander(ExecutorService executor, TimerWheel timer,
                            String name, Runnable poller, int periodMillis, int minIdleBetweenMillis) {
+        this(executor, timer, name, synchronous(poller), periodMillis, null, minIdleBetweenMillis);
+    }
+
+    /**
+     * Create a poller with an adaptive period.
+     *
+     * @param executor executor for commands
+     * @param timer timer for polls
+     * @param name name for logging
+     * @param poller poll operation
+     * @param nextPeriodMillis function called after each poll, returning time from its start to start of the next
+     * @param minIdleBetweenMillis minimum time between end of a poll or command and start of the next
+     */
+    public PollerCommander(ExecutorService executor, TimerWheel timer,
+                           String name, Runnable poller, IntSupplier nextPeriodMillis, int minIdleBetweenMillis) {
+        this(executor, timer, name, synchronous(poller), 0, nextPeriodMillis, minIdleBetweenMillis);
+    }
+
+    /**
+     * Create a poller with an adaptive period and an asynchronous poll operation.
+     *
+     * @param executor executor for commands
+     * @param timer timer for polls
+     * @param name name for logging
+     * @param poller function that starts a poll operation and returns a future that completes when it is done
+     * @param nextPeriodMillis function called after each poll, returning time from its start to start of the next
+     * @param minIdleBetweenMillis minimum time between end of a poll or command and start of the next
+     */
+    public PollerCommander(ExecutorService executor, TimerWheel timer, String name,
+                           Supplier<? extends CompletionStage<?>> poller, IntSupplier nextPeriodMillis,
+                           int minIdleBetweenMillis) {
+        this(executor, timer, name, poller, 0, nextPeriodMillis, minIdleBetweenMillis);
+    }
+
+    private PollerCommander(ExecutorService executor, TimerWheel timer, String name,
+                            Supplier<? extends CompletionStage<?>> poller,
+                            int periodMillis, IntSupplier nextPeriodMillis, int minIdleBetweenMillis) {
         this.name = name;
         this.periodMillis = periodMillis;
+        this.nextPeriodMillis = nextPeriodMillis;
         this.poller = poller;
         this.minIdleBetweenMillis = minIdleBetweenMillis;
         this.executor = executor;
+        this.timer = timer;
+    }
+
+    /**
+     * Keep this poller's polls in a phase assigned by a phaser, to spread them out with other pollers' polls. Must be
+     * called before start().
+     *
+     * @param phaser phaser
+     * @return this
+     */
+    public synchronized PollerCommander setPhaser(PollPhaser phaser) {
+        if (isStarted()) {
+            throw new IllegalStateException("already started");
+        }
+        this.phaser = phaser;
+        return this;
+    }
+
+    /**
+     * Cancel polls that have not completed within a time limit. Must be called before start().
+     *
+     * @param deadlineMillis longest time a poll may take, or 0 for no limit
+     * @return this
+     */
+    public synchronized PollerCommander setDeadline(int deadlineMillis) {
+        if (isStarted()) {
+            throw new IllegalStateException("already started");
+        }
+        this.deadlineMillis = deadlineMillis;
+        return this;
     }
 
     public synchronized void start() {
@@ -50,54 +180,222 @@ public class PollerCommander {
             throw new IllegalStateException("already started");
         }
         idleStartTime = 0L;
-        pollerFuture = executor.scheduleAtFixedRate(this::tryPoll, 0L, periodMillis, TimeUnit.MILLISECONDS);
+        if (phaser != null) {
+            phase = phaser.join(nextPeriodMillis());
+        }
+        schedulePoll(align(0L, 0L));
+    }
+
+    /**
+     * Schedule the next poll. Must be called with the monitor held.
+     *
+     * @param delayMillis delay
+     */
+    private void schedulePoll(long delayMillis) {
+        intendedStartNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        pollerFuture = timer.schedule(this::chainedPoll, delayMillis, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * Stop polling. Commands that have not started yet are cancelled.
+     */
     public synchronized void stop() {
         if (!isStarted()) {
             throw new IllegalStateException("never started");
         }
+        stopped = true;
         pollerFuture.cancel(true);
+        if (phase != null) {
+            phase.leave();
+        }
+        PendingCommand pending;
+        while ((pending = commands.poll()) != null) {
+            pending.result.cancel(false);
+        }
     }
 
-    public boolean isStarted() {
+    /**
+     * Get the number of commands that did not run because they were coalesced with another command.
+     *
+     * @return count
+     */
+    public synchronized long getCoalescedCommands() {
+        return coalescedCommands;
+    }
+
+    public synchronized boolean isStarted() {
         return pollerFuture != null;
     }
 
     /**
-     * Run a command on a device that we are also polling. Don't do it too close to the same time as the poll.
+     * Run a command on a device that we are also polling. Don't do it too close to the same time as the poll. Returns
+     * right away; the command runs on the executor or timer once the device has been idle long enough.
      *
      * @param command command
      * @return future result (may take a few seconds)
      */
     public Future<Command.Result> runCommand(Callable<Command.Result> command) {
-        return executor.submit(() -> {
-            pollingLock.lock();
-            try {
-                long callableStartTime = Instant.now().toEpochMilli();
-                long idleMillis = callableStartTime - idleStartTime;
-                if (idleMillis < minIdleBetweenMillis) {
-                    Thread.sleep(minIdleBetweenMillis - idleMillis);
+        return runCommand(null, null, command);
+    }
+
+    /**
+     * Run a command that sets a target on the device to a value, coalescing it with other commands for the same
+     * target that have not finished.
+     *
+     * @param target what the command changes, e.g. "relay", or null to never coalesce
+     * @param value value the command sets
+     * @param command command
+     * @return future result, shared with any commands this one was coalesced with
+     */
+    public Future<Command.Result> runCommand(Object target, Object value, Callable<Command.Result> command) {
+        synchronized (this) {
+            if (stopped) {
+                CompletableFuture<Command.Result> cancelled = new CompletableFuture<>();
+                cancelled.cancel(false);
+                return cancelled;
+            } // else
+            if (target != null) {
+                for (PendingCommand waiting : commands) {
+                    if (target.equals(waiting.target)) {
+                        log.debug("Poller {} replacing waiting {} command {} with {}",
+                                getName(), target, waiting.value, value);
+                        waiting.value = value;
+                        waiting.command = command;
+                        coalescedCommands++;
+                        return waiting.result;
+                    }
                 }
-                try {
-                    return command.call();
-                } finally {
-                    idleStartTime = Instant.now().toEpochMilli();
-                    commandJustIssued = true;
+                if (runningCommand != null && target.equals(runningCommand.target)
+                        && Objects.equals(value, runningCommand.value)) {
+                    log.debug("Poller {} already setting {} to {}", getName(), target, value);
+                    coalescedCommands++;
+                    return runningCommand.result;
                 }
-            } finally {
-                pollingLock.unlock();
             }
-        });
+            PendingCommand pending = new PendingCommand(target, value, command);
+            commands.add(pending);
+            if (!busy && !dispatchScheduled) {
+                scheduleDispatch();
+            }
+            return pending.result;
+        }
+    }
+
+    /**
+     * Arrange for dispatchCommand to run on the timer when the device has been idle long enough, or on the executor
+     * if it already has. Must be called with the monitor held, while not busy.
+     */
+    private void scheduleDispatch() {
+        dispatchScheduled = true;
+        long waitMillis = idleStartTime + minIdleBetweenMillis - Instant.now().toEpochMilli();
+        try {
+            if (waitMillis > 0) {
+                timer.schedule(this::dispatchCommand, waitMillis, TimeUnit.MILLISECONDS);
+            } else {
+                executor.execute(this::dispatchCommand);
+            }
+        } catch (RejectedExecutionException | IllegalStateException e) {
+            log.warn("Poller {} could not schedule command", getName(), e);
+            dispatchScheduled = false;
+        }
     }
 
-    private void tryPoll() {
-        pollingLock.lock();
+    private void dispatchCommand() {
+        PendingCommand pending;
+        Callable<Command.Result> command;
+        synchronized (this) {
+            dispatchScheduled = false;
+            if (busy || commands.isEmpty()) {
+                return; // the running operation will schedule another dispatch when it ends
+            } // else
+            if (Instant.now().toEpochMilli() - idleStartTime < minIdleBetweenMillis) {
+                scheduleDispatch(); // woke early
+                return;
+            } // else
+            pending = commands.remove();
+            command = pending.command;
+            runningCommand = pending;
+            busy = true;
+        }
         try {
-            long pollStartTime = Instant.now().toEpochMilli();
-            long idleMillis = pollStartTime - idleStartTime;
-            if (idleMillis < minIdleBetweenMillis) {
-                if (!commandJustIssued) { // ignore skipped trigger if the last thing we did was issue a command
+            pending.result.complete(command.call());
+        } catch (Exception e) {
+            pending.result.completeExceptionally(e);
+        } finally {
+            finished(true);
+        }
+    }
+
+    /**
+     * Return to idle after a poll or command, and schedule the next pending command if any.
+     *
+     * @param wasCommand true if the operation was a command
+     */
+    private synchronized void finished(boolean wasCommand) {
+        busy = false;
+        if (wasCommand) {
+            runningCommand = null;
+        }
+        idleStartTime = Instant.now().toEpochMilli();
+        commandJustIssued = wasCommand;
+        if (!commands.isEmpty() && !dispatchScheduled) {
+            scheduleDispatch();
+        }
+    }
+
+    private static Supplier<CompletionStage<?>> synchronous(Runnable poller) {
+        return () -> {
+            poller.run();
+            return CompletableFuture.completedFuture(null);
+        };
+    }
+
+    /**
+     * Poll, then schedule the next poll with a one-shot timer, after the period from the start of this poll.
+     */
+    private void chainedPoll() {
+        long start = System.nanoTime();
+        CompletionStage<?> poll;
+        try {
+            poll = tryPoll();
+        } catch (RuntimeException e) {
+            log.error("unexpected exception in poller {} (continuing)", getName(), e);
+            poll = CompletableFuture.completedFuture(null);
+        }
+        poll.whenComplete((result, e) -> {
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            long delayMillis = Math.max(0L, nextPeriodMillis() - elapsedMillis);
+            synchronized (this) {
+                if (!stopped) {
+                    schedulePoll(align(delayMillis, minIdleBetweenMillis));
+                }
+            }
+        });
+    }
+
+    private int nextPeriodMillis() {
+        return nextPeriodMillis == null ? periodMillis : nextPeriodMillis.getAsInt();
+    }
+
+    private long align(long delayMillis, long minDelayMillis) {
+        return phase == null ? delayMillis : phase.align(delayMillis, minDelayMillis);
+    }
+
+    /**
+     * Start a poll, unless the device is busy, has commands waiting or has not been idle long enough.
+     *
+     * @return future that completes when the poll is done, or completed future if skipped
+     */
+    private CompletionStage<?> tryPoll() {
+        synchronized (this) {
+            metrics.recordTrigger(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - intendedStartNanos));
+            long idleMillis = Instant.now().toEpochMilli() - idleStartTime;
+            if (busy || !commands.isEmpty() || idleMillis < minIdleBetweenMillis) {
+                metrics.recordSkipped(busy ? PollMetrics.SkipReason.BUSY
+                        : !commands.isEmpty() ? PollMetrics.SkipReason.COMMANDS_PENDING
+                        : PollMetrics.SkipReason.NOT_IDLE);
+                // ignore skipped trigger if the device is busy with or just ran a command
+                if (!commandJustIssued && !busy && commands.isEmpty()) {
                     if (ignoredMissedTriggers < MISSED_TRIGGERS_PER_WARNING) {
                         ignoredMissedTriggers++;
                     } else {
@@ -106,16 +404,32 @@ public class PollerCommander {
                         ignoredMissedTriggers = 0;
                     }
                 }
-            } else {
-                try {
-                    poller.run(); // do poll operation
-                } finally {
-                    idleStartTime = Instant.now().toEpochMilli();
-                }
-            }
-        } finally {
-            commandJustIssued = false;
-            pollingLock.unlock();
+                commandJustIssued = false;
+                return CompletableFuture.completedFuture(null);
+            } // else
+            busy = true;
+        }
+        long start = System.nanoTime();
+        CompletableFuture<?> poll;
+        try {
+            poll = poller.get().toCompletableFuture(); // start poll operation
+        } catch (RuntimeException e) {
+            finished(false);
+            throw e;
         }
+        TimerWheel.Timeout deadline = deadlineMillis > 0 && !poll.isDone()
+                ? timer.schedule(() -> poll.cancel(true), deadlineMillis, TimeUnit.MILLISECONDS) : null;
+        return poll.whenComplete((result, e) -> {
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            if (poll.isCancelled()) {
+                log.warn("Poller {} poll did not complete within {} ms, cancelled", getName(), deadlineMillis);
+            } else if (e != null) {
+                log.error("unexpected exception in poller {} (continuing)", getName(), e);
+            }
+            metrics.recordPoll(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), poll.isCancelled());
+            finished(false);
+        });
     }
 }
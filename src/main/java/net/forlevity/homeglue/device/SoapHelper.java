@@ -6,20 +6,29 @@
 
 package net.forlevity.homeglue.device;
 
-import com.google.common.collect.ImmutableMap;
 import com.google.inject.Inject;
 import lombok.Getter;
 import lombok.extern.log4j.Log4j2;
+import net.forlevity.homeglue.http.ResponseParser;
 import net.forlevity.homeglue.http.SimpleHttpClient;
+import net.forlevity.homeglue.util.CircuitBreaker;
+import net.forlevity.homeglue.util.CircuitBreakers;
 import net.forlevity.homeglue.util.Xml;
-import org.apache.http.entity.ContentType;
+import org.apache.http.client.HttpResponseException;
 import org.w3c.dom.Document;
 
 import java.io.IOException;
+import java.net.URI;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
- * Helper for issuing SOAP requests and parsing XML results.
+ * Helper for issuing SOAP requests and parsing XML results. Request envelopes come from precompiled SoapOperations
+ * and are sent to the HTTP client already encoded, and responses are parsed as they are read from the connection.
+ * Requests to each host go through a circuit breaker, so that a device that stops responding is not sent a request
+ * (and waited on until timeout) every time it is polled. Only network failures count against the breaker: an HTTP
+ * error status means the device is there.
  */
 @Log4j2
 public class SoapHelper {
@@ -30,9 +39,21 @@ public class SoapHelper {
     @Getter
     private final Xml xml = new Xml();
 
-    @Inject
+    private final CircuitBreakers circuitBreakers;
+
+    /**
+     * Create a SOAP helper without circuit breakers.
+     *
+     * @param httpClient http client
+     */
     public SoapHelper(SimpleHttpClient httpClient) {
+        this(httpClient, null);
+    }
+
+    @Inject
+    public SoapHelper(SimpleHttpClient httpClient, CircuitBreakers circuitBreakers) {
         this.httpClient = httpClient;
+        this.circuitBreakers = circuitBreakers;
     }
 
     /**
@@ -44,21 +65,123 @@ public class SoapHelper {
      * @return DOM or null if request failed
      */
     public Document execSoapRequest(String url, String urn, String action, String params) {
-        String payload = String.format("<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
-                "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\">" +
-                    "<s:Body>" +
-                        "<u:%s xmlns:u=\"%s\">%s</u:%s>" +
-                    "</s:Body>" +
-                "</s:Envelope>", action, urn, params, action);
-
-        Document document = null;
+        return execSoapRequest(url, SoapOperation.of(urn, action), params, (body, charset) -> xml.parse(body));
+    }
+
+    /**
+     * Execute a SOAP-ish request to a device, and get the text of some elements from the response without building
+     * a DOM.
+     *
+     * @param url http endpoint URL
+     * @param operation SOAP operation
+     * @param elementNames names of response elements to get
+     * @return map of element name to text, without elements that were not found, or null if request failed
+     */
+    public Map<String, String> execSoapRequestForValues(String url, SoapOperation operation, String params,
+                                                        String... elementNames) {
+        return execSoapRequest(url, operation, params,
+                (body, charset) -> xml.extract(body, charset, elementNames));
+    }
+
+    /**
+     * Execute a SOAP-ish request to a device, without waiting for the response. Cancelling the returned future
+     * aborts the request.
+     *
+     * @param url http endpoint URL
+     * @param urn SOAP URN
+     * @param action SOAP action
+     * @return future DOM, or future null if request failed
+     */
+    public CompletableFuture<Document> execSoapRequestAsync(String url, String urn, String action, String params) {
+        return execSoapRequestAsync(url, SoapOperation.of(urn, action), params,
+                (body, charset) -> xml.parse(body));
+    }
+
+    /**
+     * Execute a SOAP-ish request to a device without waiting for the response, and get the text of some elements
+     * from the response without building a DOM. Cancelling the returned future aborts the request.
+     *
+     * @param url http endpoint URL
+     * @param operation SOAP operation
+     * @param elementNames names of response elements to get
+     * @return future map of element name to text, or future null if request failed
+     */
+    public CompletableFuture<Map<String, String>> execSoapRequestForValuesAsync(String url, SoapOperation operation,
+                                                                               String params, String... elementNames) {
+        return execSoapRequestAsync(url, operation, params,
+                (body, charset) -> xml.extract(body, charset, elementNames));
+    }
+
+    private <T> T execSoapRequest(String url, SoapOperation operation, String params, ResponseParser<T> parser) {
+        CircuitBreaker breaker = circuitBreaker(url);
+        if (breaker != null && !breaker.tryAcquire()) {
+            log.debug("not sending SOAP request, circuit open: {} {}", url, operation.getAction());
+            return null;
+        } // else
+        T parsed = null;
         try {
-            Map<String, String> extraHeaders = ImmutableMap.of("SOAPAction", String.format("\"%s#%s\"",urn,action));
-            String result = httpClient.post(url, extraHeaders, payload, ContentType.TEXT_XML);
-            document = xml.parse(result);
+            parsed = httpClient.postBytes(url, operation.getHeaders(), operation.envelope(params),
+                    SoapOperation.CONTENT_TYPE, parser);
+            reportOutcome(breaker, null);
         } catch (IOException e) {
             log.info("SOAP request failed: {} {}", e.getClass().getSimpleName(), e.getMessage());
+            reportOutcome(breaker, e);
+        }
+        return parsed;
+    }
+
+    private <T> CompletableFuture<T> execSoapRequestAsync(String url, SoapOperation operation, String params,
+                                                          ResponseParser<T> parser) {
+        CircuitBreaker breaker = circuitBreaker(url);
+        if (breaker != null && !breaker.tryAcquire()) {
+            log.debug("not sending SOAP request, circuit open: {} {}", url, operation.getAction());
+            return CompletableFuture.completedFuture(null);
+        } // else
+        CompletableFuture<T> response = httpClient.postBytesAsync(url, operation.getHeaders(),
+                operation.envelope(params), SoapOperation.CONTENT_TYPE, parser);
+        CompletableFuture<T> parsed = response.handle((result, e) -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            reportOutcome(breaker, cause);
+            if (cause != null) {
+                log.info("SOAP request failed: {} {}", cause.getClass().getSimpleName(), cause.getMessage());
+                return null;
+            } // else
+            return result;
+        });
+        parsed.whenComplete((result, e) -> {
+            if (parsed.isCancelled()) { // e.g. poll deadline passed: abort request, count as failure
+                response.cancel(true);
+                reportOutcome(breaker, e);
+            }
+        });
+        return parsed;
+    }
+
+    /**
+     * Get the circuit breaker for the host of a URL.
+     *
+     * @param url url
+     * @return breaker, or null if not using circuit breakers
+     */
+    private CircuitBreaker circuitBreaker(String url) {
+        if (circuitBreakers == null) {
+            return null;
+        } // else
+        try {
+            URI uri = URI.create(url);
+            return circuitBreakers.get(uri.getHost() + (uri.getPort() < 0 ? "" : ":" + uri.getPort()));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void reportOutcome(CircuitBreaker breaker, Throwable failure) {
+        if (breaker != null) {
+            if (failure == null || failure instanceof HttpResponseException) {
+                breaker.success();
+            } else {
+                breaker.failure();
+            }
         }
-        return document;
     }
 }
@@ -0,0 +1,97 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.device;
+
+import com.google.common.collect.ImmutableMap;
+import lombok.Getter;
+import lombok.ToString;
+import org.apache.http.entity.ContentType;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A SOAP action on a service, with its request headers and envelope encoded ahead of time. Only the parameters are
+ * encoded per request. Operations are kept in a registry, so each one is only built once.
+ */
+@ToString(of = {"urn", "action"})
+public class SoapOperation {
+
+    public static final ContentType CONTENT_TYPE = ContentType.TEXT_XML;
+
+    private static final Map<String, SoapOperation> registry = new ConcurrentHashMap<>();
+
+    @Getter
+    private final String urn;
+    @Getter
+    private final String action;
+    @Getter
+    private final Map<String, String> headers;
+
+    private final Charset charset = CONTENT_TYPE.getCharset();
+    private final byte[] prefix;
+    private final byte[] suffix;
+    private final byte[] emptyEnvelope;
+
+    private SoapOperation(String urn, String action) {
+        this.urn = urn;
+        this.action = action;
+        this.headers = ImmutableMap.of("SOAPAction", String.format("\"%s#%s\"", urn, action));
+        this.prefix = String.format("<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+                "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\">" +
+                    "<s:Body>" +
+                        "<u:%s xmlns:u=\"%s\">", action, urn).getBytes(charset);
+        this.suffix = String.format("</u:%s>" +
+                    "</s:Body>" +
+                "</s:Envelope>", action).getBytes(charset);
+        this.emptyEnvelope = envelope(prefix, new byte[0], suffix);
+    }
+
+    /**
+     * Get an operation from the registry, creating it if needed.
+     *
+     * @param urn SOAP URN
+     * @param action SOAP action
+     * @return operation
+     */
+    public static SoapOperation of(String urn, String action) {
+        return registry.computeIfAbsent(urn + '#' + action, key -> new SoapOperation(urn, action));
+    }
+
+    /**
+     * Get the request envelope with some parameters. The returned array must not be modified.
+     *
+     * @param params parameter elements, e.g. "&lt;BinaryState&gt;1&lt;/BinaryState&gt;", or empty string for none
+     * @return encoded envelope
+     */
+    public byte[] envelope(String params) {
+        if (params.isEmpty()) {
+            return emptyEnvelope;
+        } // else
+        int length = params.length();
+        byte[] result = new byte[prefix.length + length + suffix.length];
+        System.arraycopy(prefix, 0, result, 0, prefix.length);
+        for (int ix = 0; ix < length; ix++) {
+            char c = params.charAt(ix);
+            if (c >= 0x80) { // not ASCII, let the charset encode it
+                return envelope(prefix, params.getBytes(charset), suffix);
+            }
+            result[prefix.length + ix] = (byte) c;
+        }
+        System.arraycopy(suffix, 0, result, prefix.length + length, suffix.length);
+        return result;
+    }
+
+    private static byte[] envelope(byte[] prefix, byte[] params, byte[] suffix) {
+        byte[] result = new byte[prefix.length + params.length + suffix.length];
+        System.arraycopy(prefix, 0, result, 0, prefix.length);
+        System.arraycopy(params, 0, result, prefix.length, params.length);
+        System.arraycopy(suffix, 0, result, prefix.length + params.length, suffix.length);
+        return result;
+    }
+}
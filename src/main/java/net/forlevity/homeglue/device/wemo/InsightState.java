@@ -0,0 +1,173 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.device.wemo;
+
+import lombok.Getter;
+import lombok.ToString;
+import net.forlevity.homeglue.device.DeviceState;
+
+/**
+ * State of a WeMo Insight meter, with every field of its InsightParams, e.g.
+ * "8|1526997105|27829|24703|130320|426068|10|4155|5501513|23446319.000000|6000". Fields are decoded in one pass over
+ * the text, without allocating. The first 8 fields are required. Fields that are missing are -1, or NaN for power and
+ * energy.
+ */
+@Getter
+@ToString(callSuper = true)
+public class InsightState extends DeviceState {
+
+    public static final int STATE_OFF = 0;
+    public static final int STATE_ON = 1;
+    public static final int STATE_STANDBY = 8;
+
+    private static final int REQUIRED_FIELDS = 8;
+    private static final int MAX_DIGITS = 18;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18};
+
+    /** STATE_OFF, STATE_ON or STATE_STANDBY (on, but drawing less than the standby threshold). */
+    private int binaryState = -1;
+    /** Time of last on/off change, seconds since epoch. */
+    private long lastChangeSecs = -1;
+    /** Time on since last change. */
+    private long onForSecs = -1;
+    /** Time on today. */
+    private long onTodaySecs = -1;
+    /** Time on over the last time period. */
+    private long onTotalSecs = -1;
+    /** Length of the period that onTotalSecs covers. */
+    private long timePeriodSecs = -1;
+    /** Average power. */
+    private double averageWatts = Double.NaN;
+    /** Energy used today. */
+    private double todayWattHours = Double.NaN;
+    /** Energy used over the time period. */
+    private double totalWattHours = Double.NaN;
+    /** Below this power, an "on" meter reports standby. */
+    private double standbyThresholdWatts = Double.NaN;
+
+    public InsightState(String detectionId) {
+        super(detectionId);
+    }
+
+    /**
+     * Decode InsightParams into this state, including instantaneous power and relay state.
+     *
+     * @param insightParams pipe-delimited InsightParams
+     * @return true if decoded, false if there were too few fields or a required field was not a number
+     */
+    public boolean decode(CharSequence insightParams) {
+        int length = insightParams.length();
+        int start = 0;
+        for (int field = 0; field <= 10 && start <= length; field++) {
+            int end = start;
+            while (end < length && insightParams.charAt(end) != '|') {
+                end++;
+            }
+            if (!decodeField(field, insightParams, start, end) && field < REQUIRED_FIELDS) {
+                return false;
+            }
+            start = end + 1;
+            if (end == length && field < REQUIRED_FIELDS - 1) {
+                return false; // too few fields
+            }
+        }
+        setRelay(binaryState != STATE_OFF);
+        return true;
+    }
+
+    private boolean decodeField(int field, CharSequence text, int start, int end) {
+        switch (field) {
+            case 0:
+                binaryState = (int) parseLong(text, start, end);
+                return binaryState >= 0;
+            case 1:
+                lastChangeSecs = parseLong(text, start, end);
+                return lastChangeSecs >= 0;
+            case 2:
+                onForSecs = parseLong(text, start, end);
+                return onForSecs >= 0;
+            case 3:
+                onTodaySecs = parseLong(text, start, end);
+                return onTodaySecs >= 0;
+            case 4:
+                onTotalSecs = parseLong(text, start, end);
+                return onTotalSecs >= 0;
+            case 5:
+                timePeriodSecs = parseLong(text, start, end);
+                return timePeriodSecs >= 0;
+            case 6:
+                averageWatts = parseDecimal(text, start, end);
+                return !Double.isNaN(averageWatts);
+            case 7:
+                setWatts(parseDecimal(text, start, end) / 1000.0);
+                return hasWatts();
+            case 8:
+                todayWattHours = parseDecimal(text, start, end) / 60000.0; // milliwatt-minutes
+                return !Double.isNaN(todayWattHours);
+            case 9:
+                totalWattHours = parseDecimal(text, start, end) / 60000.0;
+                return !Double.isNaN(totalWattHours);
+            case 10:
+                standbyThresholdWatts = parseDecimal(text, start, end) / 1000.0;
+                return !Double.isNaN(standbyThresholdWatts);
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Parse a non-negative integer.
+     *
+     * @return value, or -1 if not a non-negative integer
+     */
+    private static long parseLong(CharSequence text, int start, int end) {
+        if (start == end || end - start > MAX_DIGITS) {
+            return -1;
+        } // else
+        long value = 0;
+        for (int ix = start; ix < end; ix++) {
+            char c = text.charAt(ix);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Parse a decimal number, e.g. "-12.50".
+     *
+     * @return value, or NaN if not a decimal number
+     */
+    private static double parseDecimal(CharSequence text, int start, int end) {
+        boolean negative = start < end && text.charAt(start) == '-';
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = -1; // -1 until decimal point
+        for (int ix = negative ? start + 1 : start; ix < end; ix++) {
+            char c = text.charAt(ix);
+            if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else if (c >= '0' && c <= '9' && digits < MAX_DIGITS) {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (fractionDigits >= 0) {
+                    fractionDigits++;
+                }
+            } else {
+                return Double.NaN;
+            }
+        }
+        if (digits == 0) {
+            return Double.NaN;
+        } // else
+        double value = fractionDigits > 0 ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+        return negative ? -value : value;
+    }
+}
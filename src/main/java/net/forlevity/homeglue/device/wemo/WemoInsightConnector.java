@@ -10,23 +10,32 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableMap;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
+import com.google.inject.name.Named;
 import lombok.*;
 import lombok.extern.log4j.Log4j2;
 import net.forlevity.homeglue.device.*;
 import net.forlevity.homeglue.entity.Device;
-import net.forlevity.homeglue.util.Xml;
-import org.w3c.dom.Document;
+import net.forlevity.homeglue.upnp.UpnpEventSubscriber;
+import net.forlevity.homeglue.util.TimerWheel;
 
 import java.io.IOException;
 import java.time.Duration;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 /**
  * Implementation of DeviceConnector that connects to and reads meter data from a Belkin WeMo Insight plug meter.
+ *
+ * If events are enabled, the connector also subscribes to UPnP events from the basicevent1 and insight1 services.
+ * While both subscriptions are active, the device tells us about relay and power changes, so polls are made at the
+ * maximum period, and skipped if an event arrived since the last one. If a subscription lapses, adaptive polling
+ * takes over again until it is renewed.
  */
 @Log4j2
 @ToString(of = {"hostAddress"}, callSuper = true)
@@ -40,8 +49,18 @@ public class WemoInsightConnector implements DeviceConnector {
     private static final String URN_BASICEVENT = "urn:Belkin:service:basicevent:1";
     private static final String CONTROL_BASICEVENT = "basicevent1";
     private static final String ACTION_SETBINARYSTATE = "SetBinaryState";
+    private static final String COMMAND_TARGET_RELAY = "relay";
+    private static final SoapOperation GET_INSIGHT_PARAMS = SoapOperation.of(URN_INSIGHT, ACTION_INSIGHTPARAMS);
+    private static final SoapOperation SET_BINARY_STATE = SoapOperation.of(URN_BASICEVENT, ACTION_SETBINARYSTATE);
+    // Insight has no embedded devices, so the first of each element in setup.xml is the root device's
+    private static final String[] SETUP_FIELDS =
+            {"macAddress", "modelDescription", "serialNumber", "friendlyName", "firmwareVersion"};
+    private static final String PARAMS_BINARYSTATE_0 = "<BinaryState>0</BinaryState>";
+    private static final String PARAMS_BINARYSTATE_1 = "<BinaryState>1</BinaryState>";
+
+    private static final String EVENT_INSIGHTPARAMS = "InsightParams";
+    private static final String EVENT_BINARYSTATE = "BinaryState";
 
-    private static final int POLLING_PERIOD_MILLIS = 2500;
     private static final int MIN_IDLE_MILLIS = 2000;
     private static final Duration OFFLINE_DELAY = Duration.ofMinutes(1);
     private static final int MAX_CONSECUTIVE_READ_ERRORS = 3;
@@ -65,14 +84,33 @@ public class WemoInsightConnector implements DeviceConnector {
     private final Consumer<DeviceState> deviceStateConsumer;
     private final OfflineMarkerService offlineMarkerService;
     private final String hostAddress;
+    private final DeviceHandles handles;
+    private final DeviceStateProcessorService stateProcessor;
+    private final AdaptivePollingPolicy pollingPolicy;
     private final PollerCommander poller;
+    private final UpnpEventSubscriber eventSubscriber;
+    private final boolean eventsEnabled;
+    private final List<UpnpEventSubscriber.Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private volatile long lastEventNanos;
     private int consecutiveReadErrors = 0;
+    private int handle = DeviceHandles.NONE;
+    private volatile int pollPeriodMillis;
+    private volatile double lastWatts = Double.NaN;
 
     @Inject
     WemoInsightConnector(SoapHelper soapHelper,
                          DeviceConnectorInstances registry,
                          Consumer<DeviceState> deviceStateConsumer,
-                         OfflineMarkerService offlineMarkerService, @Assisted String hostAddress, @Assisted int port, ScheduledExecutorService executor) {
+                         OfflineMarkerService offlineMarkerService, @Assisted String hostAddress, @Assisted int port, ScheduledExecutorService executor,
+                         TimerWheel timer,
+                         DeviceHandles handles,
+                         DeviceStateProcessorService stateProcessor,
+                         PollPhaser phaser,
+                         UpnpEventSubscriber eventSubscriber,
+                         @Named("wemo.poll.period.millis") int minPollPeriodMillis,
+                         @Named("wemo.poll.max.period.millis") int maxPollPeriodMillis,
+                         @Named("wemo.poll.deadline.millis") int pollDeadlineMillis,
+                         @Named("wemo.events.enabled") boolean eventsEnabled) {
 
         this.soap = soapHelper;
         this.registry = registry;
@@ -80,8 +118,17 @@ public class WemoInsightConnector implements DeviceConnector {
         this.offlineMarkerService = offlineMarkerService;
         this.hostAddress = hostAddress;
         this.port = port;
-        poller = new PollerCommander(executor, getClass().getSimpleName() + "@" + hostAddress, this::poll,
-                POLLING_PERIOD_MILLIS, MIN_IDLE_MILLIS);
+        this.handles = handles;
+        this.stateProcessor = stateProcessor;
+        this.pollingPolicy = new AdaptivePollingPolicy(minPollPeriodMillis, maxPollPeriodMillis);
+        this.pollPeriodMillis = minPollPeriodMillis;
+        this.eventSubscriber = eventSubscriber;
+        this.eventsEnabled = eventsEnabled;
+        this.lastEventNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(maxPollPeriodMillis);
+        poller = new PollerCommander(executor, timer, getClass().getSimpleName() + "@" + hostAddress,
+                this::pollAsync, this::nextPollPeriodMillis, MIN_IDLE_MILLIS)
+                .setPhaser(phaser)
+                .setDeadline(pollDeadlineMillis);
     }
 
     @Override
@@ -89,10 +136,15 @@ public class WemoInsightConnector implements DeviceConnector {
         String location = String.format("http://%s:%d/setup.xml", hostAddress, port);
         log.debug("trying to connect to wemo at {} ...", location);
         try {
-            String result = soap.getHttpClient().get(location);
-            connected = parseWemoSetup(result);
+            connected = parseWemoSetup(soap.getHttpClient().get(location,
+                    (body, charset) -> soap.getXml().extract(body, charset, SETUP_FIELDS)));
             if (connected) {
+                handle = handles.of(detectionId);
                 registry.register(this);
+                if (eventsEnabled) {
+                    subscribe(CONTROL_BASICEVENT);
+                    subscribe(CONTROL_INSIGHT);
+                }
                 poller.start();
             }
         } catch (IOException e) {
@@ -106,6 +158,72 @@ public class WemoInsightConnector implements DeviceConnector {
         if (poller.isStarted()) {
             poller.stop();
         }
+        subscriptions.forEach(UpnpEventSubscriber.Subscription::close);
+        subscriptions.clear();
+    }
+
+    private void subscribe(String service) {
+        String eventUrl = String.format("http://%s:%d/upnp/event/%s", hostAddress, port, service);
+        subscriptions.add(eventSubscriber.subscribe(eventUrl, new UpnpEventSubscriber.Listener() {
+            @Override
+            public void event(Map<String, String> properties) {
+                eventReceived(properties);
+            }
+
+            @Override
+            public void lapsed() {
+                log.info("{} event subscription lapsed, polling", WemoInsightConnector.this);
+                pollPeriodMillis = pollingPolicy.getMinPeriodMillis();
+            }
+        }));
+    }
+
+    /**
+     * Handle a NOTIFY from the device. Insight meters send the same fields in BinaryState as in InsightParams, but
+     * other WeMo switches send only the relay state.
+     *
+     * @param properties evented variables
+     */
+    private void eventReceived(Map<String, String> properties) {
+        String params = properties.getOrDefault(EVENT_INSIGHTPARAMS, properties.get(EVENT_BINARYSTATE));
+        if (params == null || !isConnected()) {
+            return;
+        } // else
+        DeviceState deviceState = processInsightParams(params);
+        if (deviceState == null && !params.isEmpty()) {
+            deviceState = new DeviceState(detectionId)
+                    .setHandle(handle)
+                    .setRelay(!params.startsWith("0"));
+        }
+        if (deviceState != null) {
+            lastEventNanos = System.nanoTime();
+            deviceStateConsumer.accept(deviceState);
+            if (deviceState.hasWatts()) {
+                lastWatts = deviceState.getWatts();
+            }
+        }
+    }
+
+    /**
+     * Check whether the device is telling us about changes.
+     *
+     * @return true if all event subscriptions are active
+     */
+    @VisibleForTesting
+    boolean isEventDriven() {
+        if (subscriptions.isEmpty()) {
+            return false;
+        } // else
+        for (UpnpEventSubscriber.Subscription subscription : subscriptions) {
+            if (!subscription.isActive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int nextPollPeriodMillis() {
+        return isEventDriven() ? pollingPolicy.getMaxPeriodMillis() : pollPeriodMillis;
     }
 
     @Override
@@ -125,18 +243,20 @@ public class WemoInsightConnector implements DeviceConnector {
     }
 
     private Future<Command.Result> changeRelay(boolean closed) {
-        String params = String.format("<BinaryState>%c</BinaryState>", closed ? '0' : '1');
-        return poller.runCommand(() -> {
+        String params = closed ? PARAMS_BINARYSTATE_0 : PARAMS_BINARYSTATE_1;
+        return poller.runCommand(COMMAND_TARGET_RELAY, closed, () -> {
             Command.Result result;
-            Document doc = execWemoInsightSoapRequest(CONTROL_BASICEVENT, URN_BASICEVENT, ACTION_SETBINARYSTATE, params);
-            if (doc != null) {
+            Map<String, String> values = execWemoInsightSoapRequest(
+                    CONTROL_BASICEVENT, SET_BINARY_STATE, params, EVENT_BINARYSTATE);
+            if (values != null) {
                 // result has a regular insightparams field, so let's process that
                 // since processing this command has probably caused us to miss a regular poll!
-                String insightParams = soap.getXml().nodeText(doc, "//BinaryState");
+                String insightParams = values.get(EVENT_BINARYSTATE);
                 if (insightParams != null) {
                     DeviceState deviceState = processInsightParams(insightParams);
                     if (deviceState != null) {
                         deviceStateConsumer.accept(deviceState);
+                        pollPeriodMillis = pollingPolicy.getMinPeriodMillis(); // expect power to change
                         result = Command.Result.SUCCESS;
                     } else {
                         log.warn("couldn't parse BinaryState from SetBinaryState response");
@@ -155,37 +275,73 @@ public class WemoInsightConnector implements DeviceConnector {
     }
 
     /**
-     * Extract meter metadata from setup.xml.
-     * @param setupXml xml
+     * Use meter metadata from setup.xml.
+     * @param setup values of SETUP_FIELDS from setup.xml
      * @return true if successfully parsed setup.xml
      */
-    private boolean parseWemoSetup(String setupXml) {
-        Xml xml = soap.getXml();
-        Document doc = xml.parse(setupXml);
+    private boolean parseWemoSetup(Map<String, String> setup) {
         boolean success = false;
-        String macAddress = xml.nodeText(doc, "/root/device/macAddress");
+        String macAddress = setup.get("macAddress");
         if (macAddress == null) {
             log.warn("xml did not contain device macAddress");
         } else {
             this.detectionId = macAddress;
             this.details = ImmutableMap.of(
-                    Device.DETAIL_MODEL, xml.nodeText(doc, "/root/device/modelDescription"),
-                    Device.DETAIL_SERIAL_NUMBER, xml.nodeText(doc, "/root/device/serialNumber"),
-                    Device.DETAIL_USER_SPECIFIED_NAME, xml.nodeText(doc, "/root/device/friendlyName"),
-                    Device.DETAIL_FIRMWARE_VERSON, xml.nodeText(doc, "/root/device/firmwareVersion") );
+                    Device.DETAIL_MODEL, setup.get("modelDescription"),
+                    Device.DETAIL_SERIAL_NUMBER, setup.get("serialNumber"),
+                    Device.DETAIL_USER_SPECIFIED_NAME, setup.get("friendlyName"),
+                    Device.DETAIL_FIRMWARE_VERSON, setup.get("firmwareVersion"));
             success = true;
         }
         return success;
     }
 
+    @VisibleForTesting
     boolean poll() {
-        DeviceState deviceState = null;
-        if (isConnected()) {
-            try {
-                deviceState = read();
-            } catch(RuntimeException e) {
-                log.error("unexpected exception during poll of {} (continuing)", this, e);
+        return pollAsync().join();
+    }
+
+    /**
+     * Start a poll. The request runs on the HTTP client's threads. Skipped if events are arriving. Cancelling the
+     * returned future aborts the request, and counts as a failed poll.
+     *
+     * @return future true if the device was read successfully
+     */
+    private CompletableFuture<Boolean> pollAsync() {
+        if (!isConnected()) {
+            return CompletableFuture.completedFuture(false);
+        } // else
+        if (isEventDriven() && System.nanoTime() - lastEventNanos
+                < TimeUnit.MILLISECONDS.toNanos(pollingPolicy.getMaxPeriodMillis())) {
+            return CompletableFuture.completedFuture(true); // heard from device recently, no need to poll
+        } // else
+        CompletableFuture<Map<String, String>> request = execWemoInsightSoapRequestAsync(
+                CONTROL_INSIGHT, GET_INSIGHT_PARAMS, "", EVENT_INSIGHTPARAMS);
+        CompletableFuture<Boolean> poll = request
+                .thenApply(this::parseInsightParamsResponse)
+                .handle((deviceState, e) -> {
+                    if (e != null) {
+                        log.error("unexpected exception during poll of {} (continuing)", this, e);
+                    }
+                    return pollCompleted(e == null ? deviceState : null);
+                });
+        poll.whenComplete((result, e) -> {
+            if (poll.isCancelled()) { // deadline passed
+                request.cancel(true);
+                pollCompleted(null);
             }
+        });
+        return poll;
+    }
+
+    /**
+     * Handle the result of a poll.
+     *
+     * @param deviceState state read, or null if the poll failed
+     * @return true if the poll succeeded
+     */
+    private boolean pollCompleted(DeviceState deviceState) {
+        if (isConnected()) {
             if (deviceState == null) {
                 consecutiveReadErrors++;
                 if (consecutiveReadErrors > MAX_CONSECUTIVE_READ_ERRORS) {
@@ -198,16 +354,42 @@ public class WemoInsightConnector implements DeviceConnector {
                 consecutiveReadErrors = 0;
                 deviceStateConsumer.accept(deviceState);
             }
+            adaptPollPeriod(deviceState);
         }
         return deviceState != null;
     }
 
+    /**
+     * Choose the period until the next poll, based on this poll and the previous one.
+     *
+     * @param deviceState state read by this poll, or null if it failed
+     */
+    private void adaptPollPeriod(DeviceState deviceState) {
+        double watts = deviceState == null ? Double.NaN : deviceState.getWatts();
+        int nextPeriodMillis = pollingPolicy.nextPeriod(
+                pollPeriodMillis, lastWatts, watts, stateProcessor.getApplianceThreshold(handle));
+        if (nextPeriodMillis != pollPeriodMillis) {
+            log.debug("poll period for {} now {} ms", this, nextPeriodMillis);
+        }
+        pollPeriodMillis = nextPeriodMillis;
+        lastWatts = watts;
+    }
+
+    @VisibleForTesting
+    int getPollPeriodMillis() {
+        return pollPeriodMillis;
+    }
+
     @VisibleForTesting
     DeviceState read() {
+        return parseInsightParamsResponse(execWemoInsightSoapRequest(
+                CONTROL_INSIGHT, GET_INSIGHT_PARAMS, "", EVENT_INSIGHTPARAMS));
+    }
+
+    private DeviceState parseInsightParamsResponse(Map<String, String> values) {
         DeviceState result = null;
-        Document doc = execWemoInsightSoapRequest(CONTROL_INSIGHT, URN_INSIGHT, ACTION_INSIGHTPARAMS, "");
-        if (doc != null) {
-            String insightParams = soap.getXml().nodeText(doc, "//InsightParams");
+        if (values != null) {
+            String insightParams = values.get(EVENT_INSIGHTPARAMS);
             if (insightParams != null) {
                 result = processInsightParams(insightParams);
             } else {
@@ -220,21 +402,31 @@ public class WemoInsightConnector implements DeviceConnector {
     }
 
     private DeviceState processInsightParams(String insightParams) {
-        String[] params = insightParams.split("\\|");
-        if (params.length >= 8) {
-            boolean switchClosed = !params[0].equals("0");
-            double milliwatts = Double.valueOf(params[7]);
-            log.debug("InsightParams={} / instantaneous power={} mw", insightParams, params[7]);
-            return new DeviceState(this)
-                    .setInstantaneousWatts(milliwatts / 1000.0)
-                    .setRelayClosed(switchClosed);
+        InsightState state = new InsightState(detectionId);
+        if (state.decode(insightParams)) {
+            log.debug("InsightParams={} / {}", insightParams, state);
+            return state.setHandle(handle);
         } // else
         return null;
     }
 
-    private Document execWemoInsightSoapRequest(String control, String urn, String action, String content) {
+    private Map<String, String> execWemoInsightSoapRequest(String control, SoapOperation operation, String content,
+                                                           String... elementNames) {
+        String url = String.format("http://%s:%d/upnp/control/%s", hostAddress, port, control);
+        return soap.execSoapRequestForValues(url, operation, content, elementNames);
+    }
+
+    private CompletableFuture<Map<String, String>> execWemoInsightSoapRequestAsync(String control,
+                                                                                   SoapOperation operation,
+                                                                                   String content,
+                                                                                   String... elementNames) {
         String url = String.format("http://%s:%d/upnp/control/%s", hostAddress, port, control);
-        return soap.execSoapRequest(url, urn, action, content);
+        return soap.execSoapRequestForValuesAsync(url, operation, content, elementNames);
+    }
+
+    @Override
+    public PollMetrics getPollMetrics() {
+        return poller.getMetrics();
     }
 
     @Override
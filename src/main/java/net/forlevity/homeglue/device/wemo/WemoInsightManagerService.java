@@ -8,7 +8,6 @@ package net.forlevity.homeglue.device.wemo;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
-import com.google.inject.name.Named;
 import lombok.Getter;
 import lombok.extern.log4j.Log4j2;
 import net.forlevity.homeglue.device.DeviceConnector;
@@ -37,19 +36,16 @@ public class WemoInsightManagerService extends QueueWorkerService<SsdpServiceDef
     private final Map<String, WemoInsightConnector> devices = new ConcurrentHashMap<>();
 
     private final WemoInsightConnectorFactory connectorFactory;
-    private final long pollPeriodMillis;
 
     @Inject
     WemoInsightManagerService(ServiceDependencies dependencies,
                               SsdpDiscoveryService ssdpDiscoveryService,
-                              WemoInsightConnectorFactory connectorFactory,
-                              @Named("wemo.poll.period.millis") int pollPeriodMillis) {
+                              WemoInsightConnectorFactory connectorFactory) {
         super(SsdpServiceDefinition.class, dependencies);
         ssdpDiscoveryService.registerSsdp(
                 service -> (SSDP_SERIALNUMBER.matcher(service.getSerialNumber()).matches()
                         && SSDP_LOCATION.matcher(service.getLocation()).matches()), this,1);
         this.connectorFactory = connectorFactory;
-        this.pollPeriodMillis = pollPeriodMillis;
     }
 
     /**
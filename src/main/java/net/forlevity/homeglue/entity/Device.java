@@ -75,6 +75,15 @@ public class Device {
     @CollectionTable(name="device_details", joinColumns=@JoinColumn(name="id"))
     private Map<String, String> details = new HashMap<>();
 
+    /**
+     * Create a device with no details, not connected.
+     *
+     * @param detectionId detection id
+     */
+    public Device(String detectionId) {
+        this.detectionId = detectionId;
+    }
+
     public void setConnected(boolean isConnected) {
         if (connected != isConnected) {
             lastStateChange = Instant.now();
@@ -0,0 +1,54 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.http;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.Map;
+
+/**
+ * Snapshot of HTTP connection pool usage, in total and by host.
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class HttpPoolMetrics {
+
+    /**
+     * Snapshot of connection pool usage for one host.
+     */
+    @Getter
+    @ToString
+    @AllArgsConstructor
+    public static class Host {
+        /** Connections in use. */
+        private final int leased;
+        /** Idle keep-alive connections. */
+        private final int available;
+        /** Async requests running. */
+        private final int active;
+        /** Async requests waiting because the host is at its concurrency limit. */
+        private final int queued;
+        /** Async requests completed, successfully or not. */
+        private final long completed;
+    }
+
+    /** Connections in use. */
+    private final int leased;
+    /** Idle keep-alive connections. */
+    private final int available;
+    /** Requests waiting for a connection from the pool. */
+    private final int pending;
+    /** Maximum connections. */
+    private final int max;
+    /** Maximum concurrent requests per host. */
+    private final int maxPerHost;
+    /** By host:port. */
+    private final Map<String, Host> hosts;
+}
@@ -0,0 +1,30 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Reads a response body as it arrives, e.g. straight from the connection, instead of from a String.
+ *
+ * @param <T> result type
+ */
+@FunctionalInterface
+public interface ResponseParser<T> {
+
+    /**
+     * Parse a response body. The stream is closed afterward; the parser need not read all of it.
+     *
+     * @param body response body
+     * @param charset charset from the response content type, or null if not specified
+     * @return parsed result
+     * @throws IOException on network problems
+     */
+    T parse(InputStream body, Charset charset) throws IOException;
+}
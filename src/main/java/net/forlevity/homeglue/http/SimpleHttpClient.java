@@ -9,8 +9,15 @@ package net.forlevity.homeglue.http;
 import com.google.inject.ImplementedBy;
 import org.apache.http.entity.ContentType;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * A simple HTTP client interface for doing simple things with web services. Also useful for simulated network.
@@ -38,4 +45,224 @@ public interface SimpleHttpClient {
      * @throws IOException on network problems
      */
     String post(String url, Map<String, String> headers, String payload, ContentType contentType) throws IOException;
+
+    /**
+     * POST an already encoded payload to a web service. The default implementation decodes the payload with the
+     * content type's charset and calls post().
+     *
+     * @param url the url
+     * @param headers additional headers, or null for none
+     * @param payload payload to send, which must not be modified while the request runs
+     * @param contentType content type of payload
+     * @return response body as string (regardless of HTTP status code)
+     * @throws IOException on network problems
+     */
+    default String postBytes(String url, Map<String, String> headers, byte[] payload, ContentType contentType)
+            throws IOException {
+        return post(url, headers, decode(payload, contentType), contentType);
+    }
+
+    /**
+     * GET with default settings, and parse the response body as it arrives. The default implementation gets the body
+     * as a string and parses its UTF-8 encoding.
+     *
+     * @param url the url
+     * @param parser response body parser
+     * @param <T> result type
+     * @return parsed response
+     * @throws IOException on network problems, or if the response status is not 2xx
+     */
+    default <T> T get(String url, ResponseParser<T> parser) throws IOException {
+        return parse(get(url), parser);
+    }
+
+    /**
+     * POST an already encoded payload to a web service, and parse the response body as it arrives. The default
+     * implementation gets the body as a string and parses its UTF-8 encoding.
+     *
+     * @param url the url
+     * @param headers additional headers, or null for none
+     * @param payload payload to send, which must not be modified while the request runs
+     * @param contentType content type of payload
+     * @param parser response body parser
+     * @param <T> result type
+     * @return parsed response
+     * @throws IOException on network problems, or if the response status is not 2xx
+     */
+    default <T> T postBytes(String url, Map<String, String> headers, byte[] payload, ContentType contentType,
+                            ResponseParser<T> parser) throws IOException {
+        return parse(postBytes(url, headers, payload, contentType), parser);
+    }
+
+    /**
+     * GET with default settings, without waiting for the response. The default implementation runs synchronously.
+     *
+     * @param url the url
+     * @return future response body as string, or failed with IOException on network problems
+     */
+    default CompletableFuture<String> getAsync(String url) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        try {
+            result.complete(get(url));
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * HEAD with default settings, without waiting for the response. The default implementation runs synchronously.
+     *
+     * @param url the url
+     * @return future that completes when the response arrives, or failed with IOException on network problems, or
+     *         with HttpResponseException if the response status is not 2xx
+     */
+    default CompletableFuture<Void> headAsync(String url) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            send("HEAD", url, null, null, null);
+            result.complete(null);
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * POST to a web service, without waiting for the response. The default implementation runs synchronously.
+     *
+     * @param url the url
+     * @param headers additional headers, or null for none
+     * @param payload payload to send
+     * @param contentType content type of payload
+     * @return future response body as string, or failed with IOException on network problems
+     */
+    default CompletableFuture<String> postAsync(String url, Map<String, String> headers, String payload,
+                                                ContentType contentType) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        try {
+            result.complete(post(url, headers, payload, contentType));
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * POST an already encoded payload to a web service, without waiting for the response. The default implementation
+     * decodes the payload with the content type's charset and calls postAsync().
+     *
+     * @param url the url
+     * @param headers additional headers, or null for none
+     * @param payload payload to send, which must not be modified while the request runs
+     * @param contentType content type of payload
+     * @return future response body as string, or failed with IOException on network problems
+     */
+    default CompletableFuture<String> postBytesAsync(String url, Map<String, String> headers, byte[] payload,
+                                                     ContentType contentType) {
+        return postAsync(url, headers, decode(payload, contentType), contentType);
+    }
+
+    /**
+     * POST an already encoded payload to a web service without waiting for the response, and parse the response body
+     * as it arrives. Cancelling the returned future cancels the request. The default implementation gets the body as
+     * a string and parses its UTF-8 encoding.
+     *
+     * @param url the url
+     * @param headers additional headers, or null for none
+     * @param payload payload to send, which must not be modified while the request runs
+     * @param contentType content type of payload
+     * @param parser response body parser
+     * @param <T> result type
+     * @return future parsed response, or failed with IOException on network problems
+     */
+    default <T> CompletableFuture<T> postBytesAsync(String url, Map<String, String> headers, byte[] payload,
+                                                    ContentType contentType, ResponseParser<T> parser) {
+        CompletableFuture<String> response = postBytesAsync(url, headers, payload, contentType);
+        CompletableFuture<T> result = new CompletableFuture<>();
+        response.whenComplete((body, e) -> {
+            if (e != null) {
+                result.completeExceptionally(e instanceof CompletionException && e.getCause() != null
+                        ? e.getCause() : e);
+                return;
+            } // else
+            try {
+                result.complete(parse(body, parser));
+            } catch (IOException | RuntimeException parseException) {
+                result.completeExceptionally(parseException);
+            }
+        });
+        result.whenComplete((parsed, e) -> {
+            if (result.isCancelled()) {
+                response.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Send a request with any method, e.g. a UPnP SUBSCRIBE or NOTIFY, and get the response headers. The default
+     * implementation only supports GET, HEAD (sent as a GET) and POST, and returns no headers.
+     *
+     * @param method HTTP method
+     * @param url the url
+     * @param headers additional headers, or null for none
+     * @param payload payload to send, or null for none
+     * @param contentType content type of payload, or null if no payload
+     * @return response headers, names in lower case
+     * @throws IOException on network problems, or if the response status is not 2xx
+     */
+    default Map<String, String> send(String method, String url, Map<String, String> headers, String payload,
+                                     ContentType contentType) throws IOException {
+        if (method.equals("GET") || method.equals("HEAD")) {
+            get(url);
+        } else if (method.equals("POST")) {
+            post(url, headers, payload, contentType);
+        } else {
+            throw new IOException(method + " not supported by " + getClass().getSimpleName());
+        }
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Send a request with any method, without waiting for the response. The default implementation runs synchronously.
+     *
+     * @param method HTTP method
+     * @param url the url
+     * @param headers additional headers, or null for none
+     * @param payload payload to send, or null for none
+     * @param contentType content type of payload, or null if no payload
+     * @return future response headers, names in lower case, or failed with IOException on network problems or if the
+     *         response status is not 2xx
+     */
+    default CompletableFuture<Map<String, String>> sendAsync(String method, String url, Map<String, String> headers,
+                                                             String payload, ContentType contentType) {
+        CompletableFuture<Map<String, String>> result = new CompletableFuture<>();
+        try {
+            result.complete(send(method, url, headers, payload, contentType));
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Get connection pool metrics.
+     *
+     * @return metrics, or null if this client does not pool connections
+     */
+    default HttpPoolMetrics getPoolMetrics() {
+        return null;
+    }
+
+    static <T> T parse(String body, ResponseParser<T> parser) throws IOException {
+        try (InputStream stream = new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8))) {
+            return parser.parse(stream, StandardCharsets.UTF_8);
+        }
+    }
+
+    static String decode(byte[] payload, ContentType contentType) {
+        Charset charset = contentType.getCharset() == null ? StandardCharsets.ISO_8859_1 : contentType.getCharset();
+        return new String(payload, charset);
+    }
 }
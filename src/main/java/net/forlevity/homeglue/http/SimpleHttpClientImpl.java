@@ -6,40 +6,214 @@
 
 package net.forlevity.homeglue.http;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import com.google.inject.name.Named;
+import lombok.extern.log4j.Log4j2;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.ParseException;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.fluent.Executor;
 import org.apache.http.client.fluent.Request;
+import org.apache.http.client.fluent.Response;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
 
 /**
- * Standard implementation of SimpleHttpClient.
+ * Standard implementation of SimpleHttpClient. Connections are pooled and kept alive between requests to the same
+ * host, up to a limit per host. Async requests run on a small thread pool; requests to a host that already has as
+ * many requests running as it may have connections wait in a per-host queue, not on a thread. The pool and threads
+ * are released by close().
  */
-public class SimpleHttpClientImpl implements SimpleHttpClient {
+@Log4j2
+@Singleton
+public class SimpleHttpClientImpl implements SimpleHttpClient, Closeable {
+
+    private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 1000;
+
+    /**
+     * Reads the result of an executed request.
+     */
+    @FunctionalInterface
+    private interface ResponseReader<T> {
+        T read(Response response) throws IOException;
+    }
+
+    /**
+     * Executes a request and reads its result.
+     */
+    @FunctionalInterface
+    private interface Call<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * Async requests for one host:port.
+     */
+    private class Host {
+        private final Queue<Runnable> waiting = new ArrayDeque<>(); // guarded by this
+        private int active = 0; // guarded by this
+        private long completed = 0; // guarded by this
+
+        void submit(Runnable request) {
+            synchronized (this) {
+                if (active >= maxPerHost) {
+                    waiting.add(request);
+                    return;
+                } // else
+                active++;
+            }
+            ioThreads.execute(request);
+        }
+
+        void finished() {
+            Runnable next;
+            synchronized (this) {
+                completed++;
+                next = waiting.poll();
+                if (next == null) {
+                    active--;
+                    return;
+                }
+            }
+            ioThreads.execute(next);
+        }
+
+        synchronized HttpPoolMetrics.Host metrics(PoolStats stats) {
+            return new HttpPoolMetrics.Host(stats == null ? 0 : stats.getLeased(),
+                    stats == null ? 0 : stats.getAvailable(), active, waiting.size(), completed);
+        }
+    }
 
     private final int connectTimeoutMillis;
     private final int socketTimeoutMillis;
+    private final int maxPerHost;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient client;
+    private final Executor executor;
+    private final ExecutorService ioThreads;
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
 
     @Inject
     public SimpleHttpClientImpl(@Named("http.connect.timeout.millis") int connectTimeoutMillis,
-                                @Named("http.socket.timeout.millis") int socketTimeoutMillis) {
+                                @Named("http.socket.timeout.millis") int socketTimeoutMillis,
+                                @Named("http.max.connections") int maxConnections,
+                                @Named("http.max.connections.per.host") int maxPerHost,
+                                @Named("http.keepalive.millis") int keepAliveMillis,
+                                @Named("http.threads") int threads) {
         this.connectTimeoutMillis = connectTimeoutMillis;
         this.socketTimeoutMillis = socketTimeoutMillis;
+        this.maxPerHost = maxPerHost;
+        this.connectionManager = new PoolingHttpClientConnectionManager(keepAliveMillis, TimeUnit.MILLISECONDS);
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxPerHost);
+        connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+        this.client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectionRequestTimeout(socketTimeoutMillis)
+                        .build())
+                .evictExpiredConnections()
+                .evictIdleConnections(keepAliveMillis, TimeUnit.MILLISECONDS)
+                .build();
+        this.executor = Executor.newInstance(client);
+        this.ioThreads = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("http-%d").setDaemon(true).build());
     }
 
     @Override
     public String get(String url) throws IOException {
-        return Request.Get(url)
-                .connectTimeout(connectTimeoutMillis)
-                .socketTimeout(socketTimeoutMillis)
-                .execute().returnContent().asString();
+        return executor.execute(getRequest(url)).returnContent().asString();
     }
 
     @Override
     public String post(String url, Map<String, String> headers, String payload, ContentType contentType)
             throws IOException {
+        return executor.execute(postRequest(url, headers, payload, contentType)).returnContent().asString();
+    }
+
+    @Override
+    public String postBytes(String url, Map<String, String> headers, byte[] payload, ContentType contentType)
+            throws IOException {
+        return executor.execute(postRequest(url, headers, payload, contentType)).returnContent().asString();
+    }
+
+    @Override
+    public <T> T get(String url, ResponseParser<T> parser) throws IOException {
+        return executor.execute(getRequest(url)).handleResponse(response -> parseResponse(response, parser));
+    }
+
+    @Override
+    public <T> T postBytes(String url, Map<String, String> headers, byte[] payload, ContentType contentType,
+                           ResponseParser<T> parser) throws IOException {
+        return executor.execute(postRequest(url, headers, payload, contentType))
+                .handleResponse(response -> parseResponse(response, parser));
+    }
+
+    /**
+     * Hand a response body to a parser straight from the connection. Closing the body stream reads any part the
+     * parser did not, so the connection can be reused.
+     *
+     * @param response response
+     * @param parser parser
+     * @param <T> result type
+     * @return parsed response
+     * @throws IOException on network problems, or if the response status is not 2xx
+     */
+    private static <T> T parseResponse(HttpResponse response, ResponseParser<T> parser) throws IOException {
+        StatusLine status = response.getStatusLine();
+        HttpEntity entity = response.getEntity();
+        if (status.getStatusCode() < 200 || status.getStatusCode() >= 300) {
+            EntityUtils.consume(entity);
+            throw new HttpResponseException(status.getStatusCode(), status.getReasonPhrase());
+        } // else
+        if (entity == null) {
+            return parser.parse(new ByteArrayInputStream(new byte[0]), null);
+        } // else
+        Charset charset = null;
+        try {
+            ContentType contentType = ContentType.get(entity);
+            charset = contentType == null ? null : contentType.getCharset();
+        } catch (ParseException | UnsupportedCharsetException e) {
+            log.debug("ignoring response content type: {}", e.getMessage());
+        }
+        try (InputStream body = entity.getContent()) {
+            return parser.parse(body, charset);
+        }
+    }
+
+    private Request getRequest(String url) {
+        return Request.Get(url)
+                .connectTimeout(connectTimeoutMillis)
+                .socketTimeout(socketTimeoutMillis);
+    }
+
+    private Request postRequest(String url, Map<String, String> headers, String payload, ContentType contentType) {
         Request request = Request.Post(url)
                 .connectTimeout(connectTimeoutMillis)
                 .socketTimeout(socketTimeoutMillis);
@@ -47,6 +221,199 @@ public class SimpleHttpClientImpl implements SimpleHttpClient {
             headers.forEach((name, value) -> request.setHeader(name, value));
         }
         request.bodyString(payload, contentType);
-        return request.execute().returnContent().asString();
+        return request;
+    }
+
+    private Request postRequest(String url, Map<String, String> headers, byte[] payload, ContentType contentType) {
+        Request request = Request.Post(url)
+                .connectTimeout(connectTimeoutMillis)
+                .socketTimeout(socketTimeoutMillis);
+        if (headers != null) {
+            headers.forEach((name, value) -> request.setHeader(name, value));
+        }
+        request.bodyByteArray(payload, contentType);
+        return request;
+    }
+
+    @Override
+    public Map<String, String> send(String method, String url, Map<String, String> headers, String payload,
+                                    ContentType contentType) throws IOException {
+        return execute(anyRequest(method, url, headers, payload, contentType));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, String>> sendAsync(String method, String url, Map<String, String> headers,
+                                                            String payload, ContentType contentType) {
+        HttpEntityEnclosingRequestBase request;
+        try {
+            request = anyRequest(method, url, headers, payload, contentType);
+        } catch (IllegalArgumentException e) {
+            CompletableFuture<Map<String, String>> result = new CompletableFuture<>();
+            result.completeExceptionally(new IOException("invalid url " + url, e));
+            return result;
+        }
+        return submit(url, () -> execute(request), request::abort);
+    }
+
+    private HttpEntityEnclosingRequestBase anyRequest(String method, String url, Map<String, String> headers,
+                                                      String payload, ContentType contentType) {
+        HttpEntityEnclosingRequestBase request = new HttpEntityEnclosingRequestBase() {
+            @Override
+            public String getMethod() {
+                return method;
+            }
+        };
+        request.setURI(URI.create(url));
+        request.setConfig(RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutMillis)
+                .setSocketTimeout(socketTimeoutMillis)
+                .setConnectionRequestTimeout(socketTimeoutMillis)
+                .build());
+        if (headers != null) {
+            headers.forEach(request::setHeader);
+        }
+        if (payload != null) {
+            request.setEntity(new StringEntity(payload, contentType));
+        }
+        return request;
+    }
+
+    private Map<String, String> execute(HttpEntityEnclosingRequestBase request) throws IOException {
+        return client.execute(request, response -> {
+            EntityUtils.consume(response.getEntity());
+            StatusLine status = response.getStatusLine();
+            if (status.getStatusCode() < 200 || status.getStatusCode() >= 300) {
+                throw new HttpResponseException(status.getStatusCode(), status.getReasonPhrase());
+            }
+            Map<String, String> responseHeaders = new HashMap<>();
+            for (Header header : response.getAllHeaders()) {
+                responseHeaders.put(header.getName().toLowerCase(Locale.ROOT), header.getValue());
+            }
+            return responseHeaders;
+        });
+    }
+
+    @Override
+    public CompletableFuture<String> getAsync(String url) {
+        return submit(url, getRequest(url), SimpleHttpClientImpl::readString);
+    }
+
+    @Override
+    public CompletableFuture<Void> headAsync(String url) {
+        Request request = Request.Head(url)
+                .connectTimeout(connectTimeoutMillis)
+                .socketTimeout(socketTimeoutMillis);
+        return submit(url, request, response -> {
+            response.returnContent(); // throws HttpResponseException unless status is 2xx
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<String> postAsync(String url, Map<String, String> headers, String payload,
+                                               ContentType contentType) {
+        return submit(url, postRequest(url, headers, payload, contentType), SimpleHttpClientImpl::readString);
+    }
+
+    @Override
+    public CompletableFuture<String> postBytesAsync(String url, Map<String, String> headers, byte[] payload,
+                                                    ContentType contentType) {
+        return submit(url, postRequest(url, headers, payload, contentType), SimpleHttpClientImpl::readString);
+    }
+
+    @Override
+    public <T> CompletableFuture<T> postBytesAsync(String url, Map<String, String> headers, byte[] payload,
+                                                   ContentType contentType, ResponseParser<T> parser) {
+        return submit(url, postRequest(url, headers, payload, contentType),
+                response -> response.handleResponse(httpResponse -> parseResponse(httpResponse, parser)));
+    }
+
+    @Override
+    public HttpPoolMetrics getPoolMetrics() {
+        Map<String, PoolStats> statsByHost = new HashMap<>();
+        connectionManager.getRoutes().forEach(route ->
+                statsByHost.put(route.getTargetHost().toHostString(), connectionManager.getStats(route)));
+        Map<String, HttpPoolMetrics.Host> hostMetrics = new HashMap<>();
+        hosts.forEach((name, host) -> hostMetrics.put(name, host.metrics(statsByHost.get(name))));
+        PoolStats total = connectionManager.getTotalStats();
+        return new HttpPoolMetrics(total.getLeased(), total.getAvailable(), total.getPending(), total.getMax(),
+                maxPerHost, hostMetrics);
+    }
+
+    /**
+     * Abandon async requests that have not finished, and close all connections. Requests made after closing fail.
+     */
+    @Override
+    public void close() {
+        ioThreads.shutdownNow();
+        try {
+            client.close(); // also stops the connection evictor and shuts down the connection manager
+        } catch (IOException e) {
+            log.warn("error closing http client", e);
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(String url, Request request, ResponseReader<T> reader) {
+        return submit(url, () -> reader.read(executor.execute(request)), request::abort);
+    }
+
+    /**
+     * Run a request on the I/O threads. Cancelling the returned future aborts the request, or drops it if it has not
+     * started yet.
+     *
+     * @param url url, to find host
+     * @param call executes the request and reads the response
+     * @param abort aborts the request
+     * @param <T> result type
+     * @return future response
+     */
+    private <T> CompletableFuture<T> submit(String url, Call<T> call, Runnable abort) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Host host;
+        try {
+            URI uri = URI.create(url);
+            host = hosts.computeIfAbsent(uri.getHost() + (uri.getPort() < 0 ? "" : ":" + uri.getPort()),
+                    name -> new Host());
+        } catch (IllegalArgumentException e) {
+            result.completeExceptionally(new IOException("invalid url " + url, e));
+            return result;
+        }
+        Runnable request = () -> {
+            if (result.isDone()) {
+                host.finished(); // cancelled while waiting
+                return;
+            } // else
+            T response = null;
+            Exception failure = null;
+            try {
+                response = call.call();
+            } catch (Exception e) {
+                failure = e;
+            } finally {
+                host.finished(); // before completing, so the host's next request is not held up by callbacks
+            }
+            if (failure == null) {
+                result.complete(response);
+            } else {
+                result.completeExceptionally(failure);
+            }
+        };
+        result.whenComplete((response, e) -> {
+            if (result.isCancelled()) {
+                abort.run();
+            }
+        });
+        try {
+            host.submit(request);
+        } catch (RejectedExecutionException e) {
+            log.warn("http request rejected: {}", url);
+            host.finished();
+            result.completeExceptionally(new IOException("http request rejected", e));
+        }
+        return result;
+    }
+
+    private static String readString(Response response) throws IOException {
+        return response.returnContent().asString();
     }
 }
@@ -32,7 +32,9 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -49,6 +51,7 @@ public class H2HibernateService extends AbstractIdleService implements Persisten
     private final Integer h2WebserverPort;
     private final Properties settings;
     private final ReadWriteLock safeShutdown = new ReentrantReadWriteLock();
+    private final List<Runnable> shutdownTasks = new CopyOnWriteArrayList<>();
 
     private SessionFactory sessionFactory = null;
     private Server h2WebServer = null;
@@ -132,6 +135,7 @@ public class H2HibernateService extends AbstractIdleService implements Persisten
                 h2WebServer.stop();
                 h2WebServer = null;
             }
+            shutdownTasks.forEach(this::runShutdownTask);
             safeShutdown.writeLock().lock(); // wait for in-flight transactions (never unlocks)
             if (sessionFactory == null) {
                 log.error("stop() called but no sessionFactory exists");
@@ -149,7 +153,9 @@ public class H2HibernateService extends AbstractIdleService implements Persisten
             throw new IllegalStateException("sessionFactory not initialized");
         }
         Lock lock = safeShutdown.readLock();
-        lock.lock();
+        if (!lock.tryLock()) { // would wait forever
+            throw new IllegalStateException("persistence is shutting down");
+        }
         try {
             return unlockedExec(operation);
         } finally {
@@ -157,6 +163,11 @@ public class H2HibernateService extends AbstractIdleService implements Persisten
         }
     }
 
+    @Override
+    public void beforeShutdown(Runnable task) {
+        shutdownTasks.add(task);
+    }
+
     @Override
     @SuppressWarnings("unchecked") // is checked!
     public <T> T unproxy(Class<T> entityClass, T entity) {
@@ -170,6 +181,14 @@ public class H2HibernateService extends AbstractIdleService implements Persisten
         return (T) unproxied;
     }
 
+    private void runShutdownTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            log.error("unexpected exception in shutdown task", e);
+        }
+    }
+
     private <RT> RT unlockedExec(Function<Session, RT> operation) {
         RT result;
         Session session = sessionFactory.openSession();
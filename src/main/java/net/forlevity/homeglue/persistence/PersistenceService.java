@@ -40,4 +40,12 @@ public interface PersistenceService extends Service {
      * @return entity (not a proxy)
      */
     <T> T unproxy(Class<T> entityClass, T entity);
+
+    /**
+     * Register a task to run when the service is stopping, before it stops accepting work units. Services that
+     * cache changes in memory use this to write them back, whatever order the services are stopped in.
+     *
+     * @param task task
+     */
+    void beforeShutdown(Runnable task);
 }
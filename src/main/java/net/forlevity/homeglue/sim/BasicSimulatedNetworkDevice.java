@@ -46,6 +46,13 @@ public class BasicSimulatedNetworkDevice implements SimulatedNetworkDevice {
         return ERROR_RESPONSE;
     }
 
+    @Override
+    public Map<String, String> send(String method, String url, Map<String, String> headers, String payload,
+                                    ContentType contentType) throws IOException {
+        checkUrl(url);
+        return SimulatedNetworkDevice.super.send(method, url, headers, payload, contentType);
+    }
+
     private void checkUrl(String url) throws ConnectException, UnknownHostException {
         String prefix1 = String.format("http://%s:", getInetAddress().getHostAddress());
         String prefix2 = String.format("%s%d/", prefix1, getWebPort());
@@ -8,7 +8,9 @@ package net.forlevity.homeglue.sim;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import net.forlevity.homeglue.http.ResponseParser;
 import net.forlevity.homeglue.http.SimpleHttpClient;
+import net.forlevity.homeglue.http.SimpleHttpClientImpl;
 import net.forlevity.homeglue.upnp.SafeCloseable;
 import net.forlevity.homeglue.upnp.SsdpSearcher;
 import net.forlevity.homeglue.upnp.SsdpServiceDefinition;
@@ -66,6 +68,37 @@ public class SimulatedNetwork implements SimpleHttpClient, SsdpSearcher {
         return target(url).post(url, headers, payload, contentType);
     }
 
+    @Override
+    public <T> T get(String url, ResponseParser<T> parser) throws IOException {
+        return target(url).get(url, parser);
+    }
+
+    @Override
+    public <T> T postBytes(String url, Map<String, String> headers, byte[] payload, ContentType contentType,
+                           ResponseParser<T> parser) throws IOException {
+        return target(url).postBytes(url, headers, payload, contentType, parser);
+    }
+
+    @Override
+    public Map<String, String> send(String method, String url, Map<String, String> headers, String payload,
+                                    ContentType contentType) throws IOException {
+        return target(url).send(method, url, headers, payload, contentType);
+    }
+
+    /**
+     * Set the client that simulated devices use to send event notifications back to the application.
+     *
+     * @param eventClient http client
+     */
+    @Inject
+    public void setEventClient(SimpleHttpClientImpl eventClient) {
+        devices.forEach(device -> {
+            if (device instanceof SimulatedWemo) {
+                ((SimulatedWemo) device).setEventClient(eventClient);
+            }
+        });
+    }
+
     private SimulatedNetworkDevice target(String url) throws UnknownHostException {
         for (Iterator<SimulatedNetworkDevice> iterator = devices.iterator(); iterator.hasNext();) {
             SimulatedNetworkDevice candidate = iterator.next();
@@ -7,38 +7,74 @@
 package net.forlevity.homeglue.sim;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
 import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.log4j.Log4j2;
+import net.forlevity.homeglue.http.ResponseParser;
+import net.forlevity.homeglue.http.SimpleHttpClient;
 import net.forlevity.homeglue.upnp.SafeCloseable;
 import net.forlevity.homeglue.upnp.SsdpServiceDefinition;
 import net.forlevity.homeglue.util.ResourceHelper;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.entity.ContentType;
 import org.w3c.dom.Document;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
 /**
- * Lo-fi simulation of a Belkin WeMo Insight plug meter device.
+ * Lo-fi simulation of a Belkin WeMo Insight plug meter device. Accepts UPnP event subscriptions to basicevent1 and
+ * insight1, and sends NOTIFY to subscribers when its InsightParams change (if it has an event client to send with).
  */
 @Log4j2
 @Getter
 public class SimulatedWemo extends SimulatedUpnpDevice {
 
+    private static final String INSIGHTPARAMS_RESPONSE = "net/forlevity/homeglue/sim/insightparams_response.xml";
+    private static final String EVENT_BASICEVENT = "basicevent1";
+    private static final String EVENT_INSIGHT = "insight1";
+
+    @AllArgsConstructor
+    private static class Subscriber {
+        final String service;
+        final String callbackUrl;
+        int seq;
+    }
+
     private final String setupXml;
+    @Getter(AccessLevel.NONE)
+    private final byte[] setupXmlBytes;
     private final String deviceSerialNumber;
     private final String macAddress;
+    private final String defaultInsightParams;
+    private volatile String insightParams;
+    @Getter(AccessLevel.NONE)
+    private final Map<String, Subscriber> subscribers = new ConcurrentHashMap<>();
+
+    @Setter
+    private SimpleHttpClient eventClient = null;
 
     @VisibleForTesting
     public SimulatedWemo(InetAddress inetAddress, int port, String location) {
         super(inetAddress, port);
         this.setupXml = ResourceHelper.resourceAsString(location);
+        this.setupXmlBytes = setupXml.getBytes(StandardCharsets.UTF_8);
         Document setupDocument = xml.parse(setupXml);
         this.deviceSerialNumber = xml.nodeText(setupDocument, "//serialNumber");
         this.macAddress = xml.nodeText(setupDocument, "//macAddress");
+        this.defaultInsightParams = xml.nodeText(
+                xml.parse(ResourceHelper.resourceAsString(INSIGHTPARAMS_RESPONSE)), "//InsightParams");
+        this.insightParams = defaultInsightParams;
         setServices(Collections.singleton(new UpnpServiceInfo(ROOT_DEVICE_SERVICE_TYPE,
                 String.format("uuid:Insight-1_0-%s::%s", deviceSerialNumber, ROOT_DEVICE_SERVICE_TYPE))) );
     }
@@ -57,6 +93,15 @@ public class SimulatedWemo extends SimulatedUpnpDevice {
         return super.get(url);
     }
 
+    @Override
+    public <T> T get(String url, ResponseParser<T> parser) throws IOException {
+        if (url.equals(getLocation())) {
+            log.info("streaming setup.xml for {}", deviceSerialNumber);
+            return parser.parse(new ByteArrayInputStream(setupXmlBytes), StandardCharsets.UTF_8);
+        }
+        return super.get(url, parser);
+    }
+
     @Override
     public String post(String url, Map<String, String> headers, String payload, ContentType contentType)
             throws IOException {
@@ -66,11 +111,90 @@ public class SimulatedWemo extends SimulatedUpnpDevice {
                 && payload.equals(ResourceHelper.resourceAsString("net/forlevity/homeglue/sim/insightparams_request.xml"))
                 && headers.get("SOAPAction").equals("\"urn:Belkin:service:insight:1#GetInsightParams\"")
                 && contentType.equals(ContentType.TEXT_XML) ) {
-            return ResourceHelper.resourceAsString("net/forlevity/homeglue/sim/insightparams_response.xml");
+            return ResourceHelper.resourceAsString(INSIGHTPARAMS_RESPONSE).replace(defaultInsightParams, insightParams);
         }
         return super.post(url, headers, payload, contentType);
     }
 
+    @Override
+    public Map<String, String> send(String method, String url, Map<String, String> headers, String payload,
+                                    ContentType contentType) throws IOException {
+        String prefix = String.format("http://%s:%d/upnp/event/", getInetAddress().getHostAddress(), getWebPort());
+        String service = url.startsWith(prefix) ? url.substring(prefix.length()) : "";
+        if (!service.equals(EVENT_BASICEVENT) && !service.equals(EVENT_INSIGHT)) {
+            return super.send(method, url, headers, payload, contentType);
+        }
+        String sid = headers.get("SID");
+        if (method.equals("UNSUBSCRIBE")) {
+            if (sid == null || subscribers.remove(sid) == null) {
+                throw new HttpResponseException(412, "Precondition Failed");
+            }
+            return Collections.emptyMap();
+        } else if (method.equals("SUBSCRIBE")) {
+            String timeout = headers.getOrDefault("TIMEOUT", "Second-300");
+            if (sid != null) { // renewal
+                if (!subscribers.containsKey(sid)) {
+                    throw new HttpResponseException(412, "Precondition Failed");
+                }
+                return ImmutableMap.of("sid", sid, "timeout", timeout);
+            } // else new subscription
+            String callback = headers.get("CALLBACK");
+            if (callback == null || !callback.startsWith("<") || !callback.endsWith(">")
+                    || !"upnp:event".equals(headers.get("NT"))) {
+                throw new HttpResponseException(412, "Precondition Failed");
+            }
+            sid = "uuid:" + UUID.randomUUID();
+            Subscriber subscriber = new Subscriber(service, callback.substring(1, callback.length() - 1), 0);
+            subscribers.put(sid, subscriber);
+            log.info("{} subscribed to {} on {}", subscriber.callbackUrl, service, deviceSerialNumber);
+            sendEvent(sid, subscriber); // initial event
+            return ImmutableMap.of("sid", sid, "timeout", timeout);
+        }
+        return super.send(method, url, headers, payload, contentType);
+    }
+
+    /**
+     * Change the simulated meter reading, and notify subscribers.
+     *
+     * @param insightParams new InsightParams, e.g. "1|1526997105|27829|24703|130320|426068|10|4155|..."
+     */
+    public void setInsightParams(String insightParams) {
+        this.insightParams = insightParams;
+        subscribers.forEach(this::sendEvent);
+    }
+
+    /**
+     * Forget all subscriptions, e.g. as if the device restarted.
+     */
+    public void clearSubscriptions() {
+        subscribers.clear();
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    private void sendEvent(String sid, Subscriber subscriber) {
+        if (eventClient == null) {
+            log.debug("no event client, not sending event for {}", deviceSerialNumber);
+            return;
+        } // else
+        String variable = subscriber.service.equals(EVENT_BASICEVENT) ? "BinaryState" : "InsightParams";
+        String body = String.format("<e:propertyset xmlns:e=\"urn:schemas-upnp-org:event-1-0\">"
+                + "<e:property><%s>%s</%s></e:property></e:propertyset>", variable, insightParams, variable);
+        int seq;
+        synchronized (subscriber) {
+            seq = subscriber.seq++;
+        }
+        try {
+            eventClient.send("NOTIFY", subscriber.callbackUrl, ImmutableMap.of("NT", "upnp:event",
+                    "NTS", "upnp:propchange", "SID", sid, "SEQ", Integer.toString(seq)),
+                    body, ContentType.TEXT_XML);
+        } catch (IOException e) {
+            log.info("failed to send NOTIFY to {} : {}", subscriber.callbackUrl, e.getMessage());
+        }
+    }
+
     @Override
     public SafeCloseable startDiscovery(String serviceType,
                                         Consumer<SsdpServiceDefinition> serviceConsumer) {
@@ -13,58 +13,114 @@ import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import lombok.AllArgsConstructor;
 import lombok.extern.log4j.Log4j2;
+import net.forlevity.homeglue.http.SimpleHttpClient;
 import net.forlevity.homeglue.util.ServiceDependencies;
+import net.forlevity.homeglue.util.TimerWheel;
+import org.apache.http.client.HttpResponseException;
 
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 
 /**
  * Application service that periodically SSDP scans the network for UPnP services. Users of SsdpDiscoveryService may
  * register interest in particuar UPnP services and get notified on matching service discovery.
+ *
+ * A full multicast sweep only runs every few scan periods, to find new devices. In between, services found by the last
+ * sweep are refreshed by sending an HTTP HEAD to all known locations at once: if the device answers, its services
+ * are dispatched again as if rediscovered. A device that does not answer is forgotten, and the next scan is a sweep,
+ * in case the device came back at a new location.
  */
 @Log4j2
 @Singleton
 public class SsdpDiscoveryService extends AbstractIdleService {
 
     private final SsdpSearcher ssdpSearcher;
-    private final ScheduledExecutorService executor;
+    private final SimpleHttpClient httpClient;
+    private final TimerWheel timer;
+    private final boolean ownsTimer;
     private final ServiceDependencies serviceDependencies;
     private final int ssdpScanPeriodMillis;
     private final int ssdpScanLengthMillis;
     private final int startupDelayMillis;
     private final int minimumInactiveMillis;
+    private final int multicastInterval;
     private Instant lastSearchEndTime = Instant.EPOCH;
     private final Object lastSearchLock = new Object();
+    // known services by location, guarded by lastSearchLock
+    private Map<String, Set<SsdpServiceDefinition>> knownServices = new HashMap<>();
+    private int refreshesSinceMulticast = 0; // guarded by lastSearchLock
     private final List<Registration> registrations = new ArrayList<>();
-    private ScheduledFuture<?> searcherFuture = null;
+    private TimerWheel.Timeout searcherFuture = null;
 
     @Inject
     public SsdpDiscoveryService(SsdpSearcher ssdpSearcher,
-                                ScheduledExecutorService executor,
+                                SimpleHttpClient httpClient,
+                                TimerWheel timer,
                                 ServiceDependencies serviceDependencies,
                                 @Named("ssdp.scan.period.millis") int ssdpScanPeriodMillis,
                                 @Named("ssdp.scan.length.millis") int ssdpScanLengthMillis,
                                 @Named("ssdp.startup.delay.millis") int startupDelayMillis,
-                                @Named("ssdp.minimum.inactive.millis") int minimumInactiveMillis) {
+                                @Named("ssdp.minimum.inactive.millis") int minimumInactiveMillis,
+                                @Named("ssdp.multicast.interval") int multicastInterval) {
+        this(ssdpSearcher, httpClient, timer, false, serviceDependencies, ssdpScanPeriodMillis, ssdpScanLengthMillis,
+                startupDelayMillis, minimumInactiveMillis, multicastInterval);
+    }
+
+    private SsdpDiscoveryService(SsdpSearcher ssdpSearcher,
+                                 SimpleHttpClient httpClient,
+                                 TimerWheel timer,
+                                 boolean ownsTimer,
+                                 ServiceDependencies serviceDependencies,
+                                 int ssdpScanPeriodMillis,
+                                 int ssdpScanLengthMillis,
+                                 int startupDelayMillis,
+                                 int minimumInactiveMillis,
+                                 int multicastInterval) {
         this.ssdpSearcher = ssdpSearcher;
-        this.executor = executor;
+        this.httpClient = httpClient;
+        this.timer = timer;
+        this.ownsTimer = ownsTimer;
         this.serviceDependencies = serviceDependencies;
         this.ssdpScanPeriodMillis = ssdpScanPeriodMillis;
         this.ssdpScanLengthMillis = ssdpScanLengthMillis;
         this.startupDelayMillis = startupDelayMillis;
         this.minimumInactiveMillis = minimumInactiveMillis;
+        this.multicastInterval = multicastInterval;
     }
 
+    /**
+     * Create a discovery service that refreshes known services between multicast sweeps. It has its own timer,
+     * which is stopped when the service stops.
+     *
+     * @param ssdpSearcher searcher
+     * @param httpClient http client for refresh
+     * @param multicastInterval run a multicast sweep every this many scans, 1 for every scan
+     */
+    public SsdpDiscoveryService(SsdpSearcher ssdpSearcher, SimpleHttpClient httpClient, int multicastInterval) {
+        this(ssdpSearcher, httpClient, new TimerWheel(new ScheduledThreadPoolExecutor(1), 10, 64), true,
+                ServiceDependencies.NONE, 50, 0, 0, 0, multicastInterval);
+    }
+
+    /**
+     * Create a discovery service that runs a multicast sweep on every scan.
+     *
+     * @param ssdpSearcher searcher
+     */
     public SsdpDiscoveryService(SsdpSearcher ssdpSearcher) {
-        this(ssdpSearcher, new ScheduledThreadPoolExecutor(1), ServiceDependencies.NONE, 50, 0, 0, 0);
+        this(ssdpSearcher, null, 1);
     }
 
     /**
@@ -89,17 +145,20 @@ public class SsdpDiscoveryService extends AbstractIdleService {
     @Override
     protected void startUp() {
         serviceDependencies.waitForDependencies(this);
-        searcherFuture = executor.scheduleAtFixedRate(this::runOnce, startupDelayMillis, ssdpScanPeriodMillis, TimeUnit.MILLISECONDS);
+        searcherFuture = timer.scheduleAtFixedRate(this::runOnce, startupDelayMillis, ssdpScanPeriodMillis, TimeUnit.MILLISECONDS);
     }
 
     @Override
     protected void shutDown() {
         searcherFuture.cancel(true);
+        if (ownsTimer) {
+            timer.stop();
+        }
     }
 
     /**
-     * Execute SSDP discovery requests, but suppress execution if not enough time has passed since last discovery.
-     * @throws InterruptedException if interrupted
+     * Execute SSDP discovery requests or refresh known services, but suppress execution if not enough time has passed
+     * since last discovery.
      */
     @VisibleForTesting
     public void runOnce() {
@@ -108,15 +167,13 @@ public class SsdpDiscoveryService extends AbstractIdleService {
             if (lastSearchEndTime.plusMillis(minimumInactiveMillis).isAfter(Instant.now())) {
                 log.warn("an SSDP search did not complete on time, ended at {}", lastSearchEndTime);
             } else {
-                try {
-                    // search for root device since Belkin Wemo Insight does not respond to 'all'
-                    search(SsdpSearcher.ROOT_DEVICE_SERVICE_TYPE);
-                    // regular search for all services
-                    search(null);
-                } catch (InterruptedException e) {
-                    // if shutDown was called, the executor is terminating this thread
-                    log.debug("interrupted during search", e);
-                    Thread.currentThread().interrupt();
+                if (knownServices.isEmpty() || refreshesSinceMulticast + 1 >= multicastInterval) {
+                    multicastSearch();
+                    refreshesSinceMulticast = 0;
+                } else if (refreshKnownServices()) {
+                    refreshesSinceMulticast++;
+                } else {
+                    refreshesSinceMulticast = multicastInterval; // a device is missing, maybe moved: sweep next
                 }
                 lastSearchEndTime = Instant.now();
             }
@@ -124,15 +181,102 @@ public class SsdpDiscoveryService extends AbstractIdleService {
         log.trace("SSDP search done");
     }
 
+    /**
+     * Run a full multicast sweep, and remember the services it found for later refreshes.
+     */
+    private void multicastSearch() {
+        // the searcher may call back on any thread
+        Map<String, Set<SsdpServiceDefinition>> found = new ConcurrentHashMap<>();
+        Consumer<SsdpServiceDefinition> handler = service -> {
+            if (dispatch(service)) {
+                found.computeIfAbsent(service.getLocation(), location -> ConcurrentHashMap.newKeySet()).add(service);
+            }
+        };
+        try {
+            // search for root device since Belkin Wemo Insight does not respond to 'all'
+            search(SsdpSearcher.ROOT_DEVICE_SERVICE_TYPE, handler);
+            // regular search for all services
+            search(null, handler);
+        } catch (InterruptedException e) {
+            // if shutDown was called, the timer is interrupting this task
+            log.debug("interrupted during search", e);
+            Thread.currentThread().interrupt();
+        }
+        knownServices = found;
+    }
+
+    /**
+     * Probe all known locations at once, and dispatch the services at locations that answer. Any HTTP response,
+     * even an error status, means the device is there. Probes still pending when the next scan is due are abandoned,
+     * so unreachable devices cannot hold up scanning.
+     *
+     * @return true if every known location answered
+     */
+    private boolean refreshKnownServices() {
+        Map<String, CompletableFuture<Void>> probes = new HashMap<>();
+        knownServices.keySet().forEach(location -> probes.put(location, httpClient.headAsync(location)));
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(Math.max(0, ssdpScanPeriodMillis - minimumInactiveMillis));
+        Map<String, Set<SsdpServiceDefinition>> refreshed = new HashMap<>();
+        try {
+            for (Map.Entry<String, CompletableFuture<Void>> probe : probes.entrySet()) {
+                String location = probe.getKey();
+                if (answered(location, probe.getValue(), deadline)) {
+                    Set<SsdpServiceDefinition> services = knownServices.get(location);
+                    refreshed.put(location, services);
+                    services.forEach(service -> dispatch(new SsdpServiceDefinition(service.getSerialNumber(),
+                            service.getServiceType(), service.getLocation(), service.getRemoteIp())));
+                }
+            }
+        } catch (InterruptedException e) {
+            // if shutDown was called, the timer is interrupting this task
+            log.debug("interrupted during refresh", e);
+            Thread.currentThread().interrupt();
+            probes.values().forEach(probe -> probe.cancel(true));
+            return true;
+        }
+        log.debug("refreshed {} of {} known locations", refreshed.size(), knownServices.size());
+        boolean allAnswered = refreshed.size() == knownServices.size();
+        knownServices = refreshed;
+        return allAnswered;
+    }
+
+    /**
+     * Wait for a probe to finish.
+     *
+     * @param location location probed
+     * @param probe pending probe
+     * @param deadline System.nanoTime() after which to give up
+     * @return true if the device at the location answered
+     * @throws InterruptedException if interrupted
+     */
+    private static boolean answered(String location, CompletableFuture<Void> probe, long deadline)
+            throws InterruptedException {
+        try {
+            probe.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            return true;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof HttpResponseException) {
+                return true; // e.g. a device that does not support HEAD
+            } // else
+            log.debug("known location {} did not answer: {}", location, e.getCause().getMessage());
+        } catch (TimeoutException e) {
+            log.debug("known location {} did not answer in time", location);
+            probe.cancel(true);
+        }
+        return false;
+    }
+
     /**
      * Execute a single SSDP discovery request, handling services as they come in.
      *
      * @param serviceType the service type or null
+     * @param handler consumer for discovered services
      * @throws InterruptedException if interrupted
      */
     @SuppressWarnings("try") // auto-closeable resource handle is never referenced in body of corresponding try
-    private void search(String serviceType) throws InterruptedException {
-        try (SafeCloseable handle = ssdpSearcher.startDiscovery(serviceType, this::dispatch)) {
+    private void search(String serviceType, Consumer<SsdpServiceDefinition> handler) throws InterruptedException {
+        try (SafeCloseable handle = ssdpSearcher.startDiscovery(serviceType, handler)) {
             Thread.sleep(ssdpScanLengthMillis); // wait for scan results to come in
         } // autoclose
     }
@@ -141,18 +285,20 @@ public class SsdpDiscoveryService extends AbstractIdleService {
      * For a discovered service, look through existing registrations and send matching service descriptions.
      *
      * @param service discovered service
+     * @return true if a registration matched
      */
-    private void dispatch(SsdpServiceDefinition service) {
+    private boolean dispatch(SsdpServiceDefinition service) {
         synchronized (registrations) {
             log.debug("found service {} / {} at {}",
                     service.getServiceType(), service.getSerialNumber(), service.getLocation());
             for (Registration registration : registrations) {
                 if (registration.predicate.test(service)) {
                     registration.serviceQueue.accept(service);
-                    break;
+                    return true;
                 }
             }
         }
+        return false;
     }
 
     @AllArgsConstructor
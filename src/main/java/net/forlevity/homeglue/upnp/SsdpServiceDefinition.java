@@ -11,20 +11,26 @@ import lombok.AllArgsConstructor;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.ToString;
+import net.forlevity.homeglue.util.Timestamped;
 
 import java.net.InetAddress;
+import java.time.Instant;
 
 @Getter
 @AllArgsConstructor
 @EqualsAndHashCode
 @ToString
-public class SsdpServiceDefinition {
+public class SsdpServiceDefinition implements Timestamped {
 
     private final String serialNumber;
     private final String serviceType;
     private final String location;
     private final InetAddress remoteIp;
 
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private final Instant timestamp = Instant.now();
+
     public SsdpServiceDefinition(SsdpService ssdpService) {
         this.serialNumber = ssdpService.getSerialNumber();
         this.serviceType = ssdpService.getServiceType();
@@ -0,0 +1,342 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.upnp;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import net.forlevity.homeglue.http.SimpleHttpClient;
+import net.forlevity.homeglue.util.TimerWheel;
+import net.forlevity.homeglue.util.Xml;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Subscribes to UPnP (GENA) events from devices. Each subscription has a callback URL on our webserver, where the
+ * device sends NOTIFY requests with the values of evented state variables. Subscriptions are renewed halfway through
+ * their timeout. If a subscription cannot be renewed, e.g. because the device restarted and forgot it, the listener
+ * is told the subscription lapsed, and a new subscription is attempted periodically until one succeeds.
+ */
+@Log4j2
+@Singleton
+public class UpnpEventSubscriber {
+
+    public static final String CALLBACK_PATH = "/api/upnp/event/";
+
+    /**
+     * Receives events from a subscription.
+     */
+    public interface Listener {
+
+        /**
+         * Handle an event. Called on a webserver thread.
+         *
+         * @param properties evented state variable names and values
+         */
+        void event(Map<String, String> properties);
+
+        /**
+         * The subscription lapsed. No events will arrive until it is active again.
+         */
+        void lapsed();
+    }
+
+    /**
+     * Subscription to events from one service on a device.
+     */
+    public class Subscription {
+
+        @Getter
+        private final String eventUrl;
+        private final String token = UUID.randomUUID().toString();
+        private final Listener listener;
+        private String sid = null; // guarded by this
+        private TimerWheel.Timeout renewal = null; // guarded by this
+        private boolean closed = false; // guarded by this
+        private volatile boolean active = false;
+
+        private Subscription(String eventUrl, Listener listener) {
+            this.eventUrl = eventUrl;
+            this.listener = listener;
+        }
+
+        /**
+         * Check whether the device has accepted this subscription and it has not lapsed since.
+         *
+         * @return true if events are expected
+         */
+        public boolean isActive() {
+            return active;
+        }
+
+        /**
+         * Stop receiving events, and unsubscribe if subscribed.
+         */
+        public void close() {
+            String unsubscribeSid;
+            synchronized (this) {
+                closed = true;
+                if (renewal != null) {
+                    renewal.cancel(false);
+                }
+                unsubscribeSid = sid;
+                sid = null;
+            }
+            active = false;
+            subscriptions.remove(token);
+            if (unsubscribeSid != null) {
+                httpClient.sendAsync("UNSUBSCRIBE", eventUrl, ImmutableMap.of("SID", unsubscribeSid), null, null)
+                        .whenComplete((response, e) -> {
+                            if (e != null) {
+                                log.debug("failed to unsubscribe from {} : {}", eventUrl, e.getMessage());
+                            }
+                        });
+            }
+        }
+
+        /**
+         * Subscribe, or renew the subscription, then schedule the next renewal or retry once the device answers.
+         */
+        @VisibleForTesting
+        void renew() {
+            String currentSid;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                } // else
+                currentSid = sid;
+            }
+            CompletableFuture<Integer> attempt;
+            if (currentSid == null) {
+                attempt = subscribeAgain();
+            } else {
+                attempt = request(ImmutableMap.of("SID", currentSid, "TIMEOUT", timeoutHeader()))
+                        .thenCompose(timeoutSecs -> {
+                            if (timeoutSecs >= 0) {
+                                return CompletableFuture.completedFuture(timeoutSecs);
+                            } // else
+                            log.info("failed to renew subscription to {}, subscribing again", eventUrl);
+                            synchronized (this) {
+                                sid = null;
+                            }
+                            return subscribeAgain();
+                        });
+            }
+            attempt.thenAccept(this::renewed);
+        }
+
+        private CompletableFuture<Integer> subscribeAgain() {
+            return request(ImmutableMap.of("CALLBACK", "<" + callbackUrl(this) + ">",
+                    "NT", "upnp:event", "TIMEOUT", timeoutHeader()));
+        }
+
+        /**
+         * Schedule the next renewal or retry, and tell the listener if the subscription lapsed.
+         *
+         * @param timeoutSecs subscription timeout granted by device in seconds, or -1 if failed
+         */
+        private void renewed(int timeoutSecs) {
+            boolean wasActive = active;
+            active = timeoutSecs >= 0;
+            synchronized (this) {
+                if (!closed) {
+                    long delaySecs = active ? Math.max(1, timeoutSecs / 2) : retrySecs;
+                    renewal = timer.schedule(this::renew, delaySecs, TimeUnit.SECONDS);
+                }
+            }
+            if (wasActive && !active) {
+                log.warn("subscription to {} lapsed", eventUrl);
+                listener.lapsed();
+            }
+        }
+
+        /**
+         * Send SUBSCRIBE.
+         *
+         * @param headers request headers
+         * @return future subscription timeout granted by device in seconds, or -1 if failed
+         */
+        private CompletableFuture<Integer> request(Map<String, String> headers) {
+            return httpClient.sendAsync("SUBSCRIBE", eventUrl, headers, null, null).handle((response, e) -> {
+                if (e != null) {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    log.debug("failed to subscribe to {} : {} {}",
+                            eventUrl, cause.getClass().getSimpleName(), cause.getMessage());
+                    return -1;
+                } // else
+                String newSid = response.get("sid");
+                synchronized (this) {
+                    if (newSid != null) {
+                        sid = newSid;
+                    }
+                    if (sid == null) {
+                        log.warn("no SID in response to SUBSCRIBE {}", eventUrl);
+                        return -1;
+                    }
+                }
+                return parseTimeout(response.get("timeout"));
+            });
+        }
+
+        /**
+         * Check a NOTIFY belongs to this subscription. The first NOTIFY may arrive before the SUBSCRIBE response.
+         *
+         * @param notifySid SID header from NOTIFY
+         * @return true if accepted
+         */
+        private synchronized boolean accepts(String notifySid) {
+            return !closed && (sid == null || sid.equals(notifySid));
+        }
+    }
+
+    private final SimpleHttpClient httpClient;
+    private final TimerWheel timer;
+    private final Xml xml = new Xml();
+    private final int webserverPort;
+    private final String callbackHost;
+    private final int timeoutSecs;
+    private final int retrySecs;
+    private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+    @Inject
+    public UpnpEventSubscriber(SimpleHttpClient httpClient,
+                               TimerWheel timer,
+                               @Named("webserver.port") int webserverPort,
+                               @Named("upnp.callback.host") String callbackHost,
+                               @Named("upnp.subscription.timeout.secs") int timeoutSecs,
+                               @Named("upnp.subscription.retry.secs") int retrySecs) {
+        this.httpClient = httpClient;
+        this.timer = timer;
+        this.webserverPort = webserverPort;
+        this.callbackHost = callbackHost;
+        this.timeoutSecs = timeoutSecs;
+        this.retrySecs = retrySecs;
+    }
+
+    /**
+     * Subscribe to events. The first SUBSCRIBE is sent on the timer, soon after returning, and requests go through the
+     * http client's async path, so no caller or timer thread waits on a device. If it fails, it is retried later.
+     *
+     * @param eventUrl device's event subscription URL for the service
+     * @param listener listener
+     * @return subscription
+     */
+    public Subscription subscribe(String eventUrl, Listener listener) {
+        Subscription subscription = new Subscription(eventUrl, listener);
+        subscriptions.put(subscription.token, subscription);
+        synchronized (subscription) {
+            subscription.renewal = timer.schedule(subscription::renew, 0, TimeUnit.SECONDS);
+        }
+        return subscription;
+    }
+
+    /**
+     * Handle a NOTIFY request received at a callback URL.
+     *
+     * @param token last part of callback URL path
+     * @param sid SID header
+     * @param body request body, a UPnP property set
+     * @return true if accepted, false if there is no such subscription
+     */
+    public boolean handleNotify(String token, String sid, String body) {
+        Subscription subscription = subscriptions.get(token);
+        if (subscription == null || !subscription.accepts(sid)) {
+            log.debug("NOTIFY for unknown subscription {} {}", token, sid);
+            return false;
+        } // else
+        Map<String, String> properties = parseProperties(body);
+        log.debug("event from {} : {}", subscription.eventUrl, properties);
+        subscription.listener.event(properties);
+        return true;
+    }
+
+    /**
+     * Get the values from a UPnP event property set, e.g.
+     * &lt;e:propertyset&gt;&lt;e:property&gt;&lt;BinaryState&gt;1&lt;/BinaryState&gt;&lt;/e:property&gt;&lt;/e:propertyset&gt;
+     *
+     * @param body property set xml
+     * @return map of variable name to value
+     */
+    @VisibleForTesting
+    Map<String, String> parseProperties(String body) {
+        Map<String, String> properties = new HashMap<>();
+        Document doc = xml.parse(body);
+        if (doc.getDocumentElement() == null) {
+            return properties;
+        } // else
+        for (Node property = doc.getDocumentElement().getFirstChild(); property != null;
+             property = property.getNextSibling()) {
+            for (Node variable = property.getFirstChild(); variable != null; variable = variable.getNextSibling()) {
+                if (variable.getNodeType() == Node.ELEMENT_NODE) {
+                    properties.put(variable.getNodeName(), variable.getTextContent());
+                }
+            }
+        }
+        return properties;
+    }
+
+    private String timeoutHeader() {
+        return "Second-" + timeoutSecs;
+    }
+
+    private int parseTimeout(String timeout) {
+        if (timeout != null && timeout.startsWith("Second-")) {
+            try {
+                return Integer.parseInt(timeout.substring("Second-".length()).trim());
+            } catch (NumberFormatException e) {
+                log.debug("TIMEOUT header not understood: {}", timeout);
+            }
+        }
+        return timeoutSecs; // missing or "Second-infinite": renew at our own pace anyway
+    }
+
+    private String callbackUrl(Subscription subscription) {
+        URI eventUri = URI.create(subscription.eventUrl);
+        String host = callbackHost.isEmpty() ? localAddressFor(eventUri.getHost()) : callbackHost;
+        return String.format("http://%s:%d%s%s", host, webserverPort, CALLBACK_PATH, subscription.token);
+    }
+
+    /**
+     * Find our address on the network that a device is on. A connected datagram socket picks the local address
+     * without sending anything.
+     *
+     * @param deviceHost device address
+     * @return local address
+     */
+    private static String localAddressFor(String deviceHost) {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(InetAddress.getByName(deviceHost), 1900);
+            InetAddress local = socket.getLocalAddress();
+            if (local != null && !local.isAnyLocalAddress()) {
+                return local.getHostAddress();
+            }
+        } catch (IOException e) {
+            log.debug("no route to {} : {}", deviceHost, e.getMessage());
+        }
+        try {
+            return InetAddress.getLocalHost().getHostAddress();
+        } catch (IOException e) {
+            return "127.0.0.1";
+        }
+    }
+}
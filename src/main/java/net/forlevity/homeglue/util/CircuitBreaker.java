@@ -0,0 +1,169 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.util;
+
+import com.google.common.base.Preconditions;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Circuit breaker for calls to something that may stop responding, e.g. a device on the network. While CLOSED, calls
+ * are allowed. After a number of consecutive failures the breaker opens, and calls are rejected without being made.
+ * Once the open period has passed the breaker is HALF_OPEN, and one call is allowed through as a probe: if it succeeds
+ * the breaker closes, if it fails the breaker opens again for twice as long, up to a maximum.
+ *
+ * Callers must report the outcome of every allowed call with success() or failure().
+ */
+@Log4j2
+public class CircuitBreaker {
+
+    public enum State {
+        /** Calls allowed. */
+        CLOSED,
+        /** Calls rejected. */
+        OPEN,
+        /** One probe call allowed, waiting for its outcome. */
+        HALF_OPEN
+    }
+
+    /**
+     * Snapshot of a circuit breaker's state and counters.
+     */
+    @Getter
+    @ToString
+    @AllArgsConstructor
+    public static class Snapshot {
+        /** Current state. */
+        private final State state;
+        /** Failures since last success. */
+        private final int consecutiveFailures;
+        /** Length of current or next open period. */
+        private final long openMillis;
+        /** Number of times the breaker opened. */
+        private final long opened;
+        /** Calls allowed through as probes. */
+        private final long probes;
+        /** Calls rejected. */
+        private final long rejected;
+    }
+
+    @Getter
+    private final String name;
+    private final int failureThreshold;
+    private final long minOpenMillis;
+    private final long maxOpenMillis;
+    private final LongSupplier nanoClock;
+
+    // guarded by this
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openMillis;
+    private long stateChangeNanos;
+    private long opened = 0;
+    private long probes = 0;
+    private long rejected = 0;
+
+    /**
+     * Create a circuit breaker.
+     *
+     * @param name name for logging
+     * @param failureThreshold consecutive failures that open the breaker
+     * @param minOpenMillis length of first open period
+     * @param maxOpenMillis longest open period
+     */
+    public CircuitBreaker(String name, int failureThreshold, long minOpenMillis, long maxOpenMillis) {
+        this(name, failureThreshold, minOpenMillis, maxOpenMillis, System::nanoTime);
+    }
+
+    CircuitBreaker(String name, int failureThreshold, long minOpenMillis, long maxOpenMillis, LongSupplier nanoClock) {
+        Preconditions.checkArgument(failureThreshold > 0, "failureThreshold must be positive");
+        Preconditions.checkArgument(minOpenMillis > 0, "minOpenMillis must be positive");
+        Preconditions.checkArgument(maxOpenMillis >= minOpenMillis, "maxOpenMillis must be >= minOpenMillis");
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.minOpenMillis = minOpenMillis;
+        this.maxOpenMillis = maxOpenMillis;
+        this.nanoClock = nanoClock;
+        this.openMillis = minOpenMillis;
+        this.stateChangeNanos = nanoClock.getAsLong();
+    }
+
+    /**
+     * Ask to make a call.
+     *
+     * @return true if the call may be made, false if it should fail right away
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.CLOSED) {
+            return true;
+        } // else
+        // if a probe never reported its outcome, allow another one after the open period
+        if (elapsedMillis() >= openMillis) {
+            if (state == State.OPEN) {
+                log.info("circuit {} half open, probing", name);
+            }
+            changeState(State.HALF_OPEN);
+            probes++;
+            return true;
+        } // else
+        rejected++;
+        return false;
+    }
+
+    /**
+     * Report that an allowed call succeeded.
+     */
+    public synchronized void success() {
+        consecutiveFailures = 0;
+        if (state != State.CLOSED) {
+            log.info("circuit {} closed", name);
+            openMillis = minOpenMillis;
+            changeState(State.CLOSED);
+        }
+    }
+
+    /**
+     * Report that an allowed call failed.
+     */
+    public synchronized void failure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN) {
+            openMillis = Math.min(maxOpenMillis, openMillis * 2);
+            open();
+        } else if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            open();
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(state, consecutiveFailures, openMillis, opened, probes, rejected);
+    }
+
+    private void open() {
+        log.warn("circuit {} open for {} ms after {} failures", name, openMillis, consecutiveFailures);
+        opened++;
+        changeState(State.OPEN);
+    }
+
+    private void changeState(State newState) {
+        state = newState;
+        stateChangeNanos = nanoClock.getAsLong();
+    }
+
+    private long elapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(nanoClock.getAsLong() - stateChangeNanos);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.util;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Circuit breakers by name, e.g. one per device host, all with the same settings.
+ */
+@Singleton
+public class CircuitBreakers {
+
+    private final int failureThreshold;
+    private final long minOpenMillis;
+    private final long maxOpenMillis;
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    @Inject
+    public CircuitBreakers(@Named("circuit.failure.threshold") int failureThreshold,
+                           @Named("circuit.open.millis") long minOpenMillis,
+                           @Named("circuit.max.open.millis") long maxOpenMillis) {
+        this.failureThreshold = failureThreshold;
+        this.minOpenMillis = minOpenMillis;
+        this.maxOpenMillis = maxOpenMillis;
+    }
+
+    /**
+     * Get the circuit breaker with a name, creating it if needed.
+     *
+     * @param name name, e.g. host:port
+     * @return circuit breaker
+     */
+    public CircuitBreaker get(String name) {
+        return breakers.computeIfAbsent(name,
+                key -> new CircuitBreaker(key, failureThreshold, minOpenMillis, maxOpenMillis));
+    }
+
+    /**
+     * Get a snapshot of every circuit breaker.
+     *
+     * @return map of name to snapshot, sorted by name
+     */
+    public Map<String, CircuitBreaker.Snapshot> snapshots() {
+        Map<String, CircuitBreaker.Snapshot> result = new TreeMap<>();
+        breakers.forEach((name, breaker) -> result.put(name, breaker.snapshot()));
+        return result;
+    }
+}
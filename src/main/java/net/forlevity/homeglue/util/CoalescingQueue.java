@@ -0,0 +1,394 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.util;
+
+import com.google.common.base.Preconditions;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.IOException;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+/**
+ * Bounded FIFO blocking queue that coalesces items by key. When an item is added and the newest pending item with the
+ * same key may be replaced by it (as decided by a caller-supplied predicate), the pending item is replaced in place
+ * instead of adding a new one. When the queue is full, the overflow policy decides what happens.
+ *
+ * With the SPILL policy, items that do not fit go to a SpillFile on disk instead, and every later item follows them
+ * there until the spill file has been read back, so that order is preserved.
+ *
+ * @param <T> item type
+ */
+@Log4j2
+public class CoalescingQueue<T> extends AbstractQueue<T> implements BlockingQueue<T> {
+
+    /**
+     * What to do with a new item when the queue is full and it cannot be coalesced.
+     */
+    public enum OverflowPolicy {
+        /** put() waits for space, offer() fails. */
+        BLOCK,
+        /** The new item is discarded. */
+        DROP_NEWEST,
+        /** The oldest pending item is discarded to make room. */
+        DROP_OLDEST,
+        /** The new item is written to disk, to be read back when the queue drains. */
+        SPILL
+    }
+
+    /**
+     * Pending item. The item may be replaced while it is queued.
+     */
+    private static class Entry<T> {
+        final Object key;
+        T item;
+
+        Entry(Object key, T item) {
+            this.key = key;
+            this.item = item;
+        }
+    }
+
+    private final Function<T, ?> keyFunction;
+    private final BiPredicate<T, T> canReplace;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final SpillFile<T> spill;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Deque<Entry<T>> entries = new ArrayDeque<>(); // guarded by lock
+    private final Map<Object, Entry<T>> newestByKey = new HashMap<>(); // guarded by lock
+    private long coalesced = 0; // guarded by lock
+    private long dropped = 0; // guarded by lock
+    private long spilled = 0; // guarded by lock
+
+    /**
+     * Create a new coalescing queue.
+     *
+     * @param keyFunction function returning the key for an item
+     * @param canReplace predicate (pending item, new item) returning true if the new item may replace the pending one
+     * @param capacity maximum number of pending items
+     * @param overflowPolicy what to do when full, other than SPILL
+     */
+    public CoalescingQueue(Function<T, ?> keyFunction, BiPredicate<T, T> canReplace,
+                           int capacity, OverflowPolicy overflowPolicy) {
+        this(keyFunction, canReplace, capacity, overflowPolicy, null);
+    }
+
+    /**
+     * Create a new coalescing queue.
+     *
+     * @param keyFunction function returning the key for an item
+     * @param canReplace predicate (pending item, new item) returning true if the new item may replace the pending one
+     * @param capacity maximum number of pending items in memory
+     * @param overflowPolicy what to do when full
+     * @param spill spill file, required if and only if overflow policy is SPILL
+     */
+    public CoalescingQueue(Function<T, ?> keyFunction, BiPredicate<T, T> canReplace,
+                           int capacity, OverflowPolicy overflowPolicy, SpillFile<T> spill) {
+        Preconditions.checkArgument(capacity > 0, "capacity must be at least 1");
+        Preconditions.checkArgument((overflowPolicy == OverflowPolicy.SPILL) == (spill != null),
+                "spill file must be provided with SPILL policy only");
+        this.keyFunction = keyFunction;
+        this.canReplace = canReplace;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.spill = spill;
+    }
+
+    /**
+     * Get the number of items that replaced a pending item instead of being added.
+     *
+     * @return count
+     */
+    public long getCoalesced() {
+        lock.lock();
+        try {
+            return coalesced;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of items discarded because the queue was full.
+     *
+     * @return count
+     */
+    public long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of items written to the spill file.
+     *
+     * @return count
+     */
+    public long getSpilled() {
+        lock.lock();
+        try {
+            return spilled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(T item) {
+        Preconditions.checkNotNull(item);
+        lock.lock();
+        try {
+            if (overflowPolicy == OverflowPolicy.BLOCK && mustWait(item)) {
+                return false;
+            } // else
+            return insert(item);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(T item, long timeout, TimeUnit unit) throws InterruptedException {
+        Preconditions.checkNotNull(item);
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (overflowPolicy == OverflowPolicy.BLOCK && mustWait(item)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            return insert(item);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(T item) throws InterruptedException {
+        Preconditions.checkNotNull(item);
+        lock.lockInterruptibly();
+        try {
+            while (overflowPolicy == OverflowPolicy.BLOCK && mustWait(item)) {
+                notFull.await();
+            }
+            insert(item);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (!hasEntries()) {
+                notEmpty.await();
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (!hasEntries()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T poll() {
+        lock.lock();
+        try {
+            return hasEntries() ? removeFirst() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T peek() {
+        lock.lock();
+        try {
+            return hasEntries() ? entries.peekFirst().item : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size() + (spill == null ? 0 : spill.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super T> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super T> collection, int maxElements) {
+        Preconditions.checkArgument(collection != this);
+        lock.lock();
+        try {
+            int count = 0;
+            while (count < maxElements && hasEntries()) {
+                collection.add(removeFirst());
+                count++;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Iterate over a snapshot of the pending items in memory (not including any spilled items).
+     *
+     * @return iterator
+     */
+    @Override
+    public Iterator<T> iterator() {
+        lock.lock();
+        try {
+            List<T> snapshot = new ArrayList<>(entries.size());
+            entries.forEach(entry -> snapshot.add(entry.item));
+            return snapshot.iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean mustWait(T item) {
+        return entries.size() >= capacity && !canCoalesce(item);
+    }
+
+    private boolean canCoalesce(T item) {
+        Entry<T> newest = newestByKey.get(keyFunction.apply(item));
+        return newest != null && canReplace.test(newest.item, item);
+    }
+
+    private boolean insert(T item) {
+        if (spill != null && !spill.isEmpty()) {
+            return spill(item); // preserve order
+        } // else
+        Object key = keyFunction.apply(item);
+        Entry<T> newest = newestByKey.get(key);
+        if (newest != null && canReplace.test(newest.item, item)) {
+            newest.item = item;
+            coalesced++;
+            return true;
+        } // else
+        if (entries.size() >= capacity) {
+            if (overflowPolicy == OverflowPolicy.SPILL) {
+                return spill(item);
+            } // else
+            dropped++;
+            if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                return false;
+            } // else
+            removeFirst();
+        }
+        append(key, item);
+        notEmpty.signal();
+        return true;
+    }
+
+    private void append(Object key, T item) {
+        Entry<T> entry = new Entry<>(key, item);
+        entries.addLast(entry);
+        newestByKey.put(key, entry);
+    }
+
+    private boolean spill(T item) {
+        try {
+            spill.append(item);
+            spilled++;
+            notEmpty.signal();
+            return true;
+        } catch (IOException | RuntimeException e) {
+            log.error("failed to spill item, dropping it", e);
+            dropped++;
+            return false;
+        }
+    }
+
+    /**
+     * Check whether there are entries in memory, and if not, read more from the spill file if there is one.
+     *
+     * @return true if there are entries in memory
+     */
+    private boolean hasEntries() {
+        if (entries.isEmpty() && spill != null && !spill.isEmpty()) {
+            try {
+                spill.read(capacity).forEach(item -> append(keyFunction.apply(item), item));
+            } catch (IOException | RuntimeException e) {
+                int lost = spill.discard();
+                log.error("failed to read spill file, dropping {} items", lost, e);
+                dropped += lost;
+            }
+        }
+        return !entries.isEmpty();
+    }
+
+    private T removeFirst() {
+        Entry<T> entry = entries.removeFirst();
+        if (newestByKey.get(entry.key) == entry) {
+            newestByKey.remove(entry.key);
+        }
+        notFull.signal();
+        return entry.item;
+    }
+}
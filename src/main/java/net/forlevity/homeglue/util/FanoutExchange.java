@@ -6,29 +6,138 @@
 
 package net.forlevity.homeglue.util;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.inject.Inject;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import net.forlevity.homeglue.util.CoalescingQueue.OverflowPolicy;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * Defines a simple typed exchange where messages of some type are distributed to a list of consumers.
- * Distribution is on handler thread, consumers are assumed to be fast.
+ *
+ * In synchronous mode, distribution is on handler thread and consumers are assumed to be fast. In asynchronous mode,
+ * each consumer gets its own bounded queue and thread, so a slow consumer only delays itself. What happens when a
+ * consumer's queue is full is decided per consumer by its overflow policy. Items are only delivered while the service
+ * is running.
  *
  * @param <T> message type
  */
-public class FanoutExchange<T> implements Consumer<T> {
+@Log4j2
+public class FanoutExchange<T> extends AbstractIdleService implements Consumer<T> {
+
+    /**
+     * A consumer with its own queue and thread.
+     *
+     * @param <T> message type
+     */
+    public static class Sink<T> {
+
+        @Getter
+        private final String name;
+
+        @Getter
+        private final OverflowPolicy overflowPolicy;
+
+        private final CoalescingQueue<T> queue;
+        private final QueueWorker<T> worker;
+        private final Thread thread;
+
+        private Sink(Class<T> itemType, Consumer<T> consumer, int capacity, OverflowPolicy overflowPolicy) {
+            this.name = consumer.getClass().getSimpleName();
+            this.overflowPolicy = overflowPolicy;
+            SpillFile<T> spill = overflowPolicy == OverflowPolicy.SPILL ? new SpillFile<>(itemType, name) : null;
+            this.queue = new CoalescingQueue<>(Function.identity(), (pending, newer) -> false,
+                    capacity, overflowPolicy, spill);
+            this.worker = new QueueWorker<>(itemType, consumer, queue);
+            this.worker.setQueueSizeAlertThreshold(capacity / 2);
+            this.thread = new Thread(worker, "fanout-" + name);
+        }
+
+        public QueueMetrics getMetrics() {
+            return worker.getMetrics();
+        }
+
+        public long getDropped() {
+            return queue.getDropped();
+        }
+
+        public long getSpilled() {
+            return queue.getSpilled();
+        }
+    }
 
     private final Collection<Consumer<T>> sinks;
 
+    @Getter
+    private final List<Sink<T>> asyncSinks;
+
+    /**
+     * Create a synchronous exchange.
+     *
+     * @param sinks consumers
+     */
     @Inject
     public FanoutExchange(Set<Consumer<T>> sinks) {
         this.sinks = sinks;
+        this.asyncSinks = ImmutableList.of();
+    }
+
+    /**
+     * Create an asynchronous exchange.
+     *
+     * @param itemType message type
+     * @param sinks consumers
+     * @param capacity queue capacity for each consumer
+     * @param overflowPolicy function returning the overflow policy for each consumer
+     */
+    public FanoutExchange(Class<T> itemType, Set<Consumer<T>> sinks, int capacity,
+                          Function<Consumer<T>, OverflowPolicy> overflowPolicy) {
+        this.asyncSinks = sinks.stream()
+                .map(sink -> new Sink<>(itemType, sink, capacity, overflowPolicy.apply(sink)))
+                .collect(ImmutableList.toImmutableList());
+        this.sinks = asyncSinks.stream().map(sink -> sink.worker).collect(Collectors.toList());
+    }
+
+    @Override
+    protected void startUp() {
+        asyncSinks.forEach(sink -> {
+            log.info("starting {} with {} overflow policy", sink.thread.getName(), sink.overflowPolicy);
+            sink.thread.start();
+        });
+    }
+
+    @Override
+    protected void shutDown() {
+        asyncSinks.forEach(sink -> sink.thread.interrupt());
+        asyncSinks.forEach(sink -> Uninterruptibles.joinUninterruptibly(sink.thread));
     }
 
     @Override
     public void accept(T item) {
         sinks.forEach(sink -> sink.accept(item));
     }
+
+    /**
+     * Get a map of overflow policy by consumer name, from configuration like "Name1:POLICY,Name2:POLICY".
+     *
+     * @param config configuration string, may be empty
+     * @return map
+     */
+    public static Map<String, OverflowPolicy> parsePolicies(String config) {
+        return ImmutableList.copyOf(config.split(",")).stream()
+                .map(String::trim)
+                .filter(entry -> !entry.isEmpty())
+                .map(entry -> entry.split(":"))
+                .collect(Collectors.toMap(pair -> pair[0].trim(), pair -> OverflowPolicy.valueOf(pair[1].trim())));
+    }
 }
@@ -0,0 +1,82 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.util;
+
+import com.google.common.base.Preconditions;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Thread safe array indexed by a small non-negative int handle, e.g. a DeviceHandles handle, that grows as needed.
+ * Storage is allocated in fixed size chunks, so growing never copies elements and never loses a concurrent write.
+ *
+ * @param <T> element type
+ */
+public class HandleArray<T> {
+
+    private static final int CHUNK_BITS = 6;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final List<AtomicReferenceArray<T>> chunks = new CopyOnWriteArrayList<>();
+
+    /**
+     * Get the element for a handle.
+     *
+     * @param handle handle
+     * @return element, or null if never set or handle is negative
+     */
+    public T get(int handle) {
+        int chunk = handle >> CHUNK_BITS;
+        if (handle < 0 || chunk >= chunks.size()) {
+            return null;
+        } // else
+        return chunks.get(chunk).get(handle & CHUNK_MASK);
+    }
+
+    /**
+     * Set the element for a handle.
+     *
+     * @param handle non-negative handle
+     * @param value element, or null to clear
+     */
+    public void set(int handle, T value) {
+        chunk(handle).set(handle & CHUNK_MASK, value);
+    }
+
+    /**
+     * Call a function for each element that is set, in handle order.
+     *
+     * @param action function
+     */
+    public void forEach(Consumer<T> action) {
+        for (AtomicReferenceArray<T> chunk : chunks) {
+            for (int ix = 0; ix < CHUNK_SIZE; ix++) {
+                T value = chunk.get(ix);
+                if (value != null) {
+                    action.accept(value);
+                }
+            }
+        }
+    }
+
+    private AtomicReferenceArray<T> chunk(int handle) {
+        Preconditions.checkArgument(handle >= 0, "invalid handle");
+        int chunk = handle >> CHUNK_BITS;
+        if (chunk >= chunks.size()) {
+            synchronized (chunks) {
+                while (chunk >= chunks.size()) {
+                    chunks.add(new AtomicReferenceArray<>(CHUNK_SIZE));
+                }
+            }
+        }
+        return chunks.get(chunk);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.util;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values with power-of-2 buckets. Bucket n counts values that need n bits, i.e.
+ * bucket 0 holds 0, bucket 1 holds 1, bucket 2 holds 2-3, bucket 3 holds 4-7, etc. Percentiles are approximate:
+ * the upper bound of the bucket that holds the percentile.
+ */
+public class Histogram {
+
+    private static final int BUCKETS = 48;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public Histogram() {
+        for (int ix = 0; ix < BUCKETS; ix++) {
+            buckets[ix] = new LongAdder();
+        }
+    }
+
+    /**
+     * Record a value. Negative values are recorded as 0.
+     *
+     * @param value value
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value))].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Get an approximate point-in-time snapshot of this histogram.
+     *
+     * @return snapshot
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int ix = 0; ix < BUCKETS; ix++) {
+            counts[ix] = buckets[ix].sum();
+            count += counts[ix];
+        }
+        long maxValue = max.get();
+        return new Snapshot(count, count == 0 ? 0 : sum.sum() / count, maxValue,
+                percentile(counts, count, 0.5, maxValue),
+                percentile(counts, count, 0.9, maxValue),
+                percentile(counts, count, 0.99, maxValue));
+    }
+
+    private static long percentile(long[] counts, long count, double fraction, long maxValue) {
+        long rank = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int ix = 0; ix < BUCKETS; ix++) {
+            seen += counts[ix];
+            if (seen >= rank && seen > 0) {
+                return Math.min(maxValue, ix == 0 ? 0 : (1L << ix) - 1);
+            }
+        }
+        return maxValue;
+    }
+
+    /**
+     * Summary of a histogram.
+     */
+    @Getter
+    @ToString
+    @AllArgsConstructor
+    public static class Snapshot {
+        private final long count;
+        private final long mean;
+        private final long max;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+    }
+}
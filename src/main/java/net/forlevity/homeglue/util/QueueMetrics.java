@@ -0,0 +1,83 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.util;
+
+import lombok.Getter;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timings for one QueueWorker queue. Every accepted item counts as enqueued, so items that a
+ * CoalescingQueue merged into a pending item or dropped are also counted separately: depth is enqueued minus
+ * coalesced, dropped and dequeued. Queue time is only recorded for Timestamped items, measured from the item
+ * timestamp, in milliseconds. Handler time is per call to the processor, which is one item or one batch.
+ */
+public class QueueMetrics {
+
+    private final BlockingQueue<?> queue;
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder dequeued = new LongAdder();
+    private final LongAccumulator peakDepth = new LongAccumulator(Math::max, 0);
+
+    @Getter
+    private final Histogram queueMillis = new Histogram();
+
+    @Getter
+    private final Histogram handlerMicros = new Histogram();
+
+    /**
+     * Create metrics for a queue.
+     *
+     * @param queue the queue
+     */
+    public QueueMetrics(BlockingQueue<?> queue) {
+        this.queue = queue;
+    }
+
+    public long getEnqueued() {
+        return enqueued.sum();
+    }
+
+    public long getDequeued() {
+        return dequeued.sum();
+    }
+
+    public long getCoalesced() {
+        return queue instanceof CoalescingQueue ? ((CoalescingQueue<?>) queue).getCoalesced() : 0;
+    }
+
+    public long getDropped() {
+        return queue instanceof CoalescingQueue ? ((CoalescingQueue<?>) queue).getDropped() : 0;
+    }
+
+    public int getDepth() {
+        return queue.size();
+    }
+
+    public long getPeakDepth() {
+        return peakDepth.get();
+    }
+
+    void recordEnqueued(int depthAfter) {
+        enqueued.increment();
+        peakDepth.accumulate(depthAfter);
+    }
+
+    void recordDequeued(Object item) {
+        dequeued.increment();
+        if (item instanceof Timestamped) {
+            long timestampMillis = ((Timestamped) item).getTimestampMillis();
+            queueMillis.record(System.currentTimeMillis() - timestampMillis);
+        }
+    }
+
+    void recordHandler(long startNanos) {
+        handlerMicros.record((System.nanoTime() - startNanos) / 1000);
+    }
+}
@@ -7,20 +7,24 @@
 package net.forlevity.homeglue.util;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.experimental.Accessors;
 import lombok.extern.log4j.Log4j2;
 
-import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 /**
  * A runnable that processes items one at a time. Internally, the items are
  * placed in a queue. Each item is passed to a processor as it dequeues.
- * Quits if interrupt()ed.
+ * Alternatively, items can be dequeued in batches and passed to a batch
+ * processor. Quits if interrupt()ed.
  *
  * @param <T> item type
  */
@@ -46,9 +50,15 @@ public class QueueWorker<T> implements Runnable, Consumer<T> {
     @Getter
     private final BlockingQueue<T> queue;
 
+    @Getter
+    private final QueueMetrics metrics;
+
     private final Consumer<T> processor;
+    private final Consumer<List<T>> batchProcessor;
+    private final int maxBatchSize;
+    private final long maxBatchWaitNanos;
     private final Class<T> itemType;
-    private Instant suppressQueueLengthAlertUntil = Instant.now();
+    private long suppressQueueLengthAlertUntilNanos = System.nanoTime();
 
     /**
      * Create a queue processing thread. Items are passed to the processor
@@ -59,11 +69,63 @@ public class QueueWorker<T> implements Runnable, Consumer<T> {
      * @param itemType item type - must be an interface
      * @param processor processor to call on items
      */
-    @SuppressWarnings("unchecked")
     public QueueWorker(Class<T> itemType, Consumer<T> processor) {
+        this(itemType, processor, new LinkedBlockingQueue<>());
+    }
+
+    /**
+     * Create a queue processing thread that handles items one at a time, using the given queue. If the queue is
+     * bounded, accept() blocks or discards items according to the queue's put() method.
+     *
+     * @param itemType item type - must be an interface
+     * @param processor processor to call on items
+     * @param queue empty queue
+     */
+    public QueueWorker(Class<T> itemType, Consumer<T> processor, BlockingQueue<T> queue) {
         this.itemType = itemType;
-        this.queue = new LinkedBlockingQueue<>();
+        this.queue = queue;
+        this.metrics = new QueueMetrics(queue);
         this.processor = processor;
+        this.batchProcessor = null;
+        this.maxBatchSize = 1;
+        this.maxBatchWaitNanos = 0;
+    }
+
+    /**
+     * Create a queue processing thread that handles items in batches. Each batch has
+     * everything that is queued, up to maxBatchSize items. If fewer items are queued,
+     * waits up to maxBatchWaitMillis for more before passing the batch to the processor.
+     *
+     * @param itemType item type - must be an interface
+     * @param batchProcessor processor to call on batches
+     * @param maxBatchSize maximum number of items per batch
+     * @param maxBatchWaitMillis maximum time to wait for a batch to fill, or 0 to not wait
+     */
+    public QueueWorker(Class<T> itemType, Consumer<List<T>> batchProcessor,
+                       int maxBatchSize, long maxBatchWaitMillis) {
+        this(itemType, batchProcessor, maxBatchSize, maxBatchWaitMillis, new LinkedBlockingQueue<>());
+    }
+
+    /**
+     * Create a queue processing thread that handles items in batches, using the given queue. If the queue is
+     * bounded, accept() blocks or discards items according to the queue's put() method.
+     *
+     * @param itemType item type - must be an interface
+     * @param batchProcessor processor to call on batches
+     * @param maxBatchSize maximum number of items per batch
+     * @param maxBatchWaitMillis maximum time to wait for a batch to fill, or 0 to not wait
+     * @param queue empty queue
+     */
+    public QueueWorker(Class<T> itemType, Consumer<List<T>> batchProcessor,
+                       int maxBatchSize, long maxBatchWaitMillis, BlockingQueue<T> queue) {
+        Preconditions.checkArgument(maxBatchSize > 0, "maxBatchSize must be at least 1");
+        this.itemType = itemType;
+        this.queue = queue;
+        this.metrics = new QueueMetrics(queue);
+        this.processor = null;
+        this.batchProcessor = batchProcessor;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxBatchWaitMillis);
     }
 
     @Override
@@ -84,31 +146,77 @@ public class QueueWorker<T> implements Runnable, Consumer<T> {
 
     @VisibleForTesting
     public void processQueue() throws InterruptedException {
-        while (processSingleQueueEntry())
-            ;
+        if (batchProcessor == null) {
+            while (processSingleQueueEntry())
+                ;
+        } else {
+            while (processBatch())
+                ;
+        }
     }
 
     private boolean processSingleQueueEntry() throws InterruptedException {
         T entry = queue.take();
+        metrics.recordDequeued(entry);
+        long start = System.nanoTime();
         try {
             processor.accept(entry);
         } catch (RuntimeException e) {
             log.error("unexpected exception in {} queue worker (continuing)", itemType.getSimpleName(), e);
         }
+        metrics.recordHandler(start);
+        return !queue.isEmpty() && !Thread.currentThread().isInterrupted();
+    }
+
+    private boolean processBatch() throws InterruptedException {
+        List<T> batch = new ArrayList<>();
+        batch.add(queue.take());
+        queue.drainTo(batch, maxBatchSize - 1);
+        if (batch.size() < maxBatchSize && maxBatchWaitNanos > 0) {
+            long deadline = System.nanoTime() + maxBatchWaitNanos;
+            try {
+                T next;
+                while (batch.size() < maxBatchSize
+                        && (next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) != null) {
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // but still process what we have
+            }
+        }
+        batch.forEach(metrics::recordDequeued);
+        long start = System.nanoTime();
+        try {
+            batchProcessor.accept(batch);
+        } catch (RuntimeException e) {
+            log.error("unexpected exception in {} queue worker processing batch of {} (continuing)",
+                    itemType.getSimpleName(), batch.size(), e);
+        }
+        metrics.recordHandler(start);
         return !queue.isEmpty() && !Thread.currentThread().isInterrupted();
     }
 
     @Override
     public void accept(T item) {
-        queue.offer(item);
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            log.warn("interrupted, {} not queued: {}", itemType.getSimpleName(), item);
+            Thread.currentThread().interrupt();
+            return;
+        }
 
         // warn if queue is growing large
         int size = queue.size();
-        Instant now = Instant.now();
-        if (size > getQueueSizeAlertThreshold() && suppressQueueLengthAlertUntil.isBefore(now)) {
-            log.warn("queue length alert for {}! {} > {}",
-                    itemType.getSimpleName(), size, DEFAULT_QUEUE_SIZE_ALERT_THRESHOLD);
-            suppressQueueLengthAlertUntil = now.plusSeconds(minSecondsBetweenQueueLengthAlerts);
+        metrics.recordEnqueued(size);
+        if (size > getQueueSizeAlertThreshold()) { // only read the clock when there is something to report
+            long now = System.nanoTime();
+            if (now - suppressQueueLengthAlertUntilNanos > 0) {
+                log.warn("queue length alert for {}! {} > {}",
+                        itemType.getSimpleName(), size, DEFAULT_QUEUE_SIZE_ALERT_THRESHOLD);
+                suppressQueueLengthAlertUntilNanos = now + TimeUnit.SECONDS.toNanos(minSecondsBetweenQueueLengthAlerts);
+            }
         }
     }
 }
@@ -7,22 +7,34 @@
 package net.forlevity.homeglue.util;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import com.google.common.util.concurrent.Uninterruptibles;
 import lombok.extern.log4j.Log4j2;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 /**
  * Guava Service wrapper for QueueWorker. If items are consumed before service is started,
  * they will not be processed until it does.
  *
+ * Optionally, items can be split across several partitions by key. Each partition has its own queue and thread,
+ * so items with the same key are processed in order, while items with different keys may be processed in parallel.
+ * Items can also be handled in batches, see handleBatch().
+ *
  * @param <T> type of object in queue
  */
 @Log4j2
 public class QueueWorkerService<T> extends AbstractExecutionThreadService implements Consumer<T> {
 
-    private final QueueWorker<T> worker;
+    private final List<QueueWorker<T>> workers = new ArrayList<>();
+    private final Function<T, ?> partitionKey;
     private final ServiceDependencies dependencies;
     private Thread executionThread = null;
 
@@ -34,7 +46,8 @@ public class QueueWorkerService<T> extends AbstractExecutionThreadService implem
      * @param dependencies service dependencies, or null
      */
     public QueueWorkerService(Class<T> itemType, Consumer<T> serialConsumer, ServiceDependencies dependencies) {
-        this.worker = new QueueWorker<>(itemType, serialConsumer);
+        this.workers.add(new QueueWorker<>(itemType, serialConsumer));
+        this.partitionKey = item -> 0;
         this.dependencies = dependencies;
     }
 
@@ -45,7 +58,68 @@ public class QueueWorkerService<T> extends AbstractExecutionThreadService implem
      * @param dependencies service dependencies, or null
      */
     protected QueueWorkerService(Class<T> itemType, ServiceDependencies dependencies) {
-        this.worker = new QueueWorker<>(itemType, this::handle);
+        this(itemType, dependencies, 1, item -> 0);
+    }
+
+    /**
+     * Create a new partitioned QueueWorkerService. Subclass also overrides handle() to process dequeued items.
+     * handle() may be called concurrently for items in different partitions.
+     *
+     * @param itemType type
+     * @param dependencies service dependencies, or null
+     * @param partitions number of partitions (threads), at least 1
+     * @param partitionKey function returning the key for an item; items with equal keys are processed in order
+     */
+    protected QueueWorkerService(Class<T> itemType, ServiceDependencies dependencies,
+                                 int partitions, Function<T, ?> partitionKey) {
+        this(itemType, dependencies, partitions, partitionKey, 1, 0);
+    }
+
+    /**
+     * Create a new partitioned QueueWorkerService that dequeues items in batches. Subclass overrides handleBatch()
+     * and/or handle() to process dequeued items. Each partition has its own batches.
+     *
+     * @param itemType type
+     * @param dependencies service dependencies, or null
+     * @param partitions number of partitions (threads), at least 1
+     * @param partitionKey function returning the key for an item; items with equal keys are processed in order
+     * @param maxBatchSize maximum items per batch, or 1 to handle items one at a time
+     * @param maxBatchWaitMillis maximum time to wait for a batch to fill, or 0 to take only what is queued
+     */
+    protected QueueWorkerService(Class<T> itemType, ServiceDependencies dependencies,
+                                 int partitions, Function<T, ?> partitionKey,
+                                 int maxBatchSize, long maxBatchWaitMillis) {
+        this(itemType, dependencies, partitions, partitionKey, maxBatchSize, maxBatchWaitMillis, null);
+    }
+
+    /**
+     * Create a new partitioned QueueWorkerService that dequeues items in batches from queues of a specific type,
+     * e.g. a bounded CoalescingQueue. Subclass overrides handleBatch() and/or handle() to process dequeued items.
+     *
+     * @param itemType type
+     * @param dependencies service dependencies, or null
+     * @param partitions number of partitions (threads), at least 1
+     * @param partitionKey function returning the key for an item; items with equal keys are processed in order
+     * @param maxBatchSize maximum items per batch, or 1 to handle items one at a time
+     * @param maxBatchWaitMillis maximum time to wait for a batch to fill, or 0 to take only what is queued
+     * @param queueFactory creates an empty queue for each partition, or null for unbounded queues
+     */
+    protected QueueWorkerService(Class<T> itemType, ServiceDependencies dependencies,
+                                 int partitions, Function<T, ?> partitionKey,
+                                 int maxBatchSize, long maxBatchWaitMillis,
+                                 Supplier<BlockingQueue<T>> queueFactory) {
+        Preconditions.checkArgument(partitions > 0, "partitions must be at least 1");
+        for (int ix = 0; ix < partitions; ix++) {
+            if (queueFactory != null) {
+                this.workers.add(new QueueWorker<>(itemType, this::handleBatch,
+                        maxBatchSize, maxBatchWaitMillis, queueFactory.get()));
+            } else if (maxBatchSize > 1) {
+                this.workers.add(new QueueWorker<>(itemType, this::handleBatch, maxBatchSize, maxBatchWaitMillis));
+            } else {
+                this.workers.add(new QueueWorker<>(itemType, this::handle));
+            }
+        }
+        this.partitionKey = partitionKey;
         this.dependencies = dependencies;
     }
 
@@ -58,28 +132,62 @@ public class QueueWorkerService<T> extends AbstractExecutionThreadService implem
         log.warn("{} default handler for {}", getClass().getSimpleName(), item);
     }
 
+    /**
+     * Subclass may override this to process a batch of items, if batching is enabled. By default, calls handle() on
+     * each item in order.
+     *
+     * @param items items
+     */
+    protected void handleBatch(List<T> items) {
+        for (T item : items) {
+            try {
+                handle(item);
+            } catch (RuntimeException e) {
+                log.error("unexpected exception handling {} (continuing)", item, e);
+            }
+        }
+    }
+
     @Override
     protected final void startUp() throws Exception {
         dependencies.waitForDependencies(this);
     }
 
     /**
-     * Run until interrupted.
+     * Run until interrupted. The first partition runs on the service thread, any others on their own threads.
      */
     @Override
     protected final void run() {
         executionThread = Thread.currentThread();
-        worker.run();
+        List<Thread> partitionThreads = new ArrayList<>();
+        for (int ix = 1; ix < workers.size(); ix++) {
+            Thread thread = new Thread(workers.get(ix), serviceName() + "-" + ix);
+            thread.start();
+            partitionThreads.add(thread);
+        }
+        try {
+            workers.get(0).run();
+        } finally {
+            partitionThreads.forEach(Thread::interrupt);
+            partitionThreads.forEach(Uninterruptibles::joinUninterruptibly);
+        }
     }
 
     /**
-     * Consume an item by putting it on the queue.
+     * Consume an item by putting it on the queue for its partition.
      *
      * @param item item
      */
     @Override
     public void accept(T item) {
-        worker.accept(item);
+        partitionFor(item).accept(item);
+    }
+
+    private QueueWorker<T> partitionFor(T item) {
+        if (workers.size() == 1) {
+            return workers.get(0);
+        } // else
+        return workers.get(Math.floorMod(partitionKey.apply(item).hashCode(), workers.size()));
     }
 
     /**
@@ -96,11 +204,34 @@ public class QueueWorkerService<T> extends AbstractExecutionThreadService implem
 
     @VisibleForTesting
     public void processQueue() throws InterruptedException {
-        worker.processQueue();
+        for (QueueWorker<T> worker : workers) {
+            if (!worker.getQueue().isEmpty()) {
+                worker.processQueue();
+            }
+        }
     }
 
+    /**
+     * Get the queue of the first partition (the only queue, unless partitioned).
+     *
+     * @return queue
+     */
     @VisibleForTesting
     public BlockingQueue<T> getQueue() {
-        return worker.getQueue();
+        return workers.get(0).getQueue();
+    }
+
+    /**
+     * Get metrics for each partition queue.
+     *
+     * @return list of metrics, one per partition
+     */
+    public List<QueueMetrics> getMetrics() {
+        return workers.stream().map(QueueWorker::getMetrics).collect(Collectors.toList());
+    }
+
+    @VisibleForTesting
+    public int getQueueSize() {
+        return workers.stream().mapToInt(worker -> worker.getQueue().size()).sum();
     }
 }
@@ -0,0 +1,310 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.util;
+
+import com.google.common.base.Preconditions;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Bounded multi-producer, single-consumer blocking queue on a pre-allocated ring buffer, in the style of the LMAX
+ * Disruptor. Producers claim a slot with a compare-and-set and never take a lock (except to wake a blocked
+ * consumer with the BLOCKING wait strategy). No memory is allocated per item.
+ *
+ * Only one thread at a time may remove items (take, poll, drainTo, peek). Any thread may add items. When the buffer
+ * is full, put() waits for space using the same wait strategy as the consumer.
+ *
+ * @param <T> item type
+ */
+public class RingBufferQueue<T> extends AbstractQueue<T> implements BlockingQueue<T> {
+
+    /**
+     * How a thread waits for the buffer to become non-empty (consumer) or non-full (producer).
+     */
+    public enum WaitStrategy {
+        /** Park on a lock condition. Lowest CPU use, highest wake-up latency. */
+        BLOCKING,
+        /** Spin, then yield, then sleep briefly in a loop. */
+        SLEEPING,
+        /** Spin, then yield in a loop. Lowest latency, keeps a core busy while idle. */
+        YIELDING
+    }
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    private static final long SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final Object[] buffer;
+    private final AtomicLongArray published; // sequence number last published in each slot
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    private final AtomicLong head = new AtomicLong(); // next sequence to consume, written only by consumer
+    private final AtomicLong tail = new AtomicLong(); // next sequence to claim
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private volatile int blockedThreads = 0; // changed while holding lock
+    private final BooleanSupplier notEmpty = this::available;
+    private final BooleanSupplier notFull = () -> tail.get() - head.get() < capacity();
+
+    /**
+     * Create a new ring buffer queue.
+     *
+     * @param minCapacity minimum capacity, will be rounded up to a power of 2
+     * @param waitStrategy how to wait when empty or full
+     */
+    public RingBufferQueue(int minCapacity, WaitStrategy waitStrategy) {
+        Preconditions.checkArgument(minCapacity > 0 && minCapacity <= (1 << 30), "invalid capacity");
+        int capacity = Integer.highestOneBit(minCapacity);
+        if (capacity < minCapacity) {
+            capacity <<= 1;
+        }
+        this.buffer = new Object[capacity];
+        this.published = new AtomicLongArray(capacity);
+        for (int ix = 0; ix < capacity; ix++) {
+            published.set(ix, -1);
+        }
+        this.mask = capacity - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Get the capacity (a power of 2).
+     *
+     * @return capacity
+     */
+    public int capacity() {
+        return buffer.length;
+    }
+
+    @Override
+    public boolean offer(T item) {
+        Preconditions.checkNotNull(item);
+        long sequence = tryClaim();
+        if (sequence < 0) {
+            return false;
+        } // else
+        publish(sequence, item);
+        return true;
+    }
+
+    @Override
+    public boolean offer(T item, long timeout, TimeUnit unit) throws InterruptedException {
+        Preconditions.checkNotNull(item);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long sequence;
+        while ((sequence = tryClaim()) < 0) {
+            if (!await(notFull, true, deadline)) {
+                return false;
+            }
+        }
+        publish(sequence, item);
+        return true;
+    }
+
+    @Override
+    public void put(T item) throws InterruptedException {
+        Preconditions.checkNotNull(item);
+        long sequence;
+        while ((sequence = tryClaim()) < 0) {
+            await(notFull, false, 0);
+        }
+        publish(sequence, item);
+    }
+
+    @Override
+    public T take() throws InterruptedException {
+        T item;
+        while ((item = poll()) == null) {
+            await(notEmpty, false, 0);
+        }
+        return item;
+    }
+
+    @Override
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        T item;
+        while ((item = poll()) == null) {
+            if (!await(notEmpty, true, deadline)) {
+                return null;
+            }
+        }
+        return item;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long sequence = head.get();
+        int slot = (int) sequence & mask;
+        if (published.get(slot) != sequence) {
+            return null;
+        } // else
+        T item = (T) buffer[slot];
+        buffer[slot] = null;
+        head.set(sequence + 1);
+        wakeBlockedThreads();
+        return item;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T peek() {
+        long sequence = head.get();
+        int slot = (int) sequence & mask;
+        return published.get(slot) == sequence ? (T) buffer[slot] : null;
+    }
+
+    @Override
+    public int size() {
+        long size = tail.get() - head.get(); // includes claimed items that are not published yet
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity() - size();
+    }
+
+    @Override
+    public int drainTo(Collection<? super T> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super T> collection, int maxElements) {
+        Preconditions.checkArgument(collection != this);
+        int count = 0;
+        T item;
+        while (count < maxElements && (item = poll()) != null) {
+            collection.add(item);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Iterate over a snapshot of the published items. Only reliable when called by the consumer thread.
+     *
+     * @return iterator
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Iterator<T> iterator() {
+        List<T> snapshot = new ArrayList<>();
+        for (long sequence = head.get(); ; sequence++) {
+            int slot = (int) sequence & mask;
+            if (published.get(slot) != sequence) {
+                break;
+            }
+            snapshot.add((T) buffer[slot]);
+        }
+        return snapshot.iterator();
+    }
+
+    private boolean available() {
+        long sequence = head.get();
+        return published.get((int) sequence & mask) == sequence;
+    }
+
+    /**
+     * Claim the next sequence number if there is room.
+     *
+     * @return sequence, or -1 if full
+     */
+    private long tryClaim() {
+        while (true) {
+            long sequence = tail.get();
+            if (sequence - head.get() >= capacity()) {
+                return -1;
+            }
+            if (tail.compareAndSet(sequence, sequence + 1)) {
+                return sequence;
+            }
+        }
+    }
+
+    private void publish(long sequence, T item) {
+        int slot = (int) sequence & mask;
+        buffer[slot] = item;
+        published.set(slot, sequence); // volatile write makes item visible to consumer
+        wakeBlockedThreads();
+    }
+
+    private void wakeBlockedThreads() {
+        if (blockedThreads > 0) {
+            lock.lock();
+            try {
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Wait until a condition may be true, according to the wait strategy. May return early.
+     *
+     * @param condition condition
+     * @param timed true if deadline applies
+     * @param deadline deadline from System.nanoTime()
+     * @return false if timed out
+     * @throws InterruptedException if interrupted
+     */
+    private boolean await(BooleanSupplier condition, boolean timed, long deadline) throws InterruptedException {
+        int tries = 0;
+        while (!condition.getAsBoolean()) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long remaining = timed ? deadline - System.nanoTime() : Long.MAX_VALUE;
+            if (remaining <= 0) {
+                return false;
+            }
+            if (tries < SPIN_TRIES && waitStrategy != WaitStrategy.BLOCKING) {
+                tries++;
+            } else if (waitStrategy == WaitStrategy.YIELDING
+                    || (waitStrategy == WaitStrategy.SLEEPING && tries < SPIN_TRIES + YIELD_TRIES)) {
+                tries++;
+                Thread.yield();
+            } else if (waitStrategy == WaitStrategy.SLEEPING) {
+                LockSupport.parkNanos(Math.min(SLEEP_NANOS, remaining));
+            } else {
+                lock.lockInterruptibly();
+                try {
+                    blockedThreads++;
+                    try {
+                        if (!condition.getAsBoolean()) {
+                            if (timed) {
+                                changed.awaitNanos(remaining);
+                            } else {
+                                changed.await();
+                            }
+                        }
+                    } finally {
+                        blockedThreads--;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.util;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * FIFO overflow storage on disk. Items are appended to a temporary file as JSON lines and read back in order. The
+ * file is deleted whenever everything written has been read. Not thread safe.
+ *
+ * @param <T> item type, must be serializable to and from JSON
+ */
+@Log4j2
+public class SpillFile<T> {
+
+    private final Class<T> itemType;
+    private final String name;
+    private final Json json = new Json();
+    private Path path = null;
+    private BufferedWriter writer = null;
+    private BufferedReader reader = null;
+    private long written = 0;
+    private long read = 0;
+
+    /**
+     * Create a new spill file. Nothing is created on disk until the first item is appended.
+     *
+     * @param itemType item type
+     * @param name name used in the temporary file name
+     */
+    public SpillFile(Class<T> itemType, String name) {
+        this.itemType = itemType;
+        this.name = name;
+        // derived getters (e.g. Timestamped.getTimestampMillis) are written but cannot be read back
+        json.objectMapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    }
+
+    /**
+     * Append an item to the end of the file.
+     *
+     * @param item item
+     * @throws IOException if the item could not be written
+     */
+    public void append(T item) throws IOException {
+        if (path == null) {
+            path = Files.createTempFile("homeglue-spill-" + name + "-", ".jsonl");
+            path.toFile().deleteOnExit();
+            writer = Files.newBufferedWriter(path);
+            reader = Files.newBufferedReader(path);
+            log.warn("spilling {} to {}", name, path);
+        }
+        writer.write(json.toJson(item));
+        writer.newLine();
+        writer.flush();
+        written++;
+    }
+
+    /**
+     * Read items from the start of the file.
+     *
+     * @param maxItems maximum number of items to read
+     * @return items, oldest first
+     * @throws IOException if the file could not be read
+     */
+    public List<T> read(int maxItems) throws IOException {
+        List<T> items = new ArrayList<>();
+        while (items.size() < maxItems && read < written) {
+            String line = reader.readLine();
+            if (line == null) {
+                throw new IOException("spill file ended early: " + path);
+            }
+            read++;
+            items.add(json.fromJson(line, itemType));
+        }
+        if (path != null && read == written) {
+            delete();
+        }
+        return items;
+    }
+
+    /**
+     * Get the number of items written and not yet read.
+     *
+     * @return count
+     */
+    public int size() {
+        return (int) (written - read);
+    }
+
+    public boolean isEmpty() {
+        return written == read;
+    }
+
+    /**
+     * Give up on the contents of the file, e.g. after a read error, and delete it.
+     *
+     * @return number of unread items that were discarded
+     */
+    public int discard() {
+        int unread = size();
+        if (path != null) {
+            try {
+                delete();
+            } catch (IOException e) {
+                log.error("failed to delete spill file {}", path, e);
+                path = null;
+                written = 0;
+                read = 0;
+            }
+        }
+        return unread;
+    }
+
+    private void delete() throws IOException {
+        log.info("finished reading spilled {}, deleting {}", name, path);
+        writer.close();
+        reader.close();
+        Files.delete(path);
+        path = null;
+        writer = null;
+        reader = null;
+        written = 0;
+        read = 0;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.util;
+
+import com.google.common.base.Preconditions;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timer wheel. Timers are kept in a ring of buckets, one per tick, each bucket holding the timers that expire
+ * in that tick of this or a later turn of the wheel. Scheduling and cancelling are O(1) for the caller: requests are
+ * handed to the tick thread through lock-free queues. Once per tick, the tick thread moves new timers into buckets,
+ * unlinks cancelled ones, and passes every timer expiring in that tick to a worker pool. Timers fire up to one tick
+ * late, never early.
+ *
+ * A periodic task never runs concurrently with itself. If it throws, the exception is logged and the task stays
+ * scheduled. The tick thread is a daemon thread, started when the first timer is scheduled.
+ */
+@Log4j2
+public class TimerWheel {
+
+    /**
+     * A scheduled task.
+     */
+    public static class Timeout {
+
+        private static final int WAITING = 0;
+        private static final int RUNNING = 1;
+        private static final int CANCELLED = 2;
+        private static final int DONE = 3;
+
+        private final TimerWheel wheel;
+        private final Runnable task;
+        private final long periodNanos; // > 0 fixed rate, < 0 fixed delay, 0 runs once
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        private volatile long deadlineNanos; // relative to wheel start, written before handing to tick thread
+        private Thread runner = null; // guarded by this
+
+        // tick thread only
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(TimerWheel wheel, Runnable task, long deadlineNanos, long periodNanos) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+            this.periodNanos = periodNanos;
+        }
+
+        /**
+         * Cancel this task. It will not run again.
+         *
+         * @param mayInterruptIfRunning true to interrupt the task if it is running now
+         * @return true if cancelled, false if it had already completed or been cancelled
+         */
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            while (true) {
+                int current = state.get();
+                if (current == CANCELLED || current == DONE) {
+                    return false;
+                } // else
+                if (state.compareAndSet(current, CANCELLED)) {
+                    if (current == WAITING) {
+                        wheel.cancelled.add(this);
+                    } else if (mayInterruptIfRunning) {
+                        synchronized (this) {
+                            if (runner != null) {
+                                runner.interrupt();
+                            }
+                        }
+                    }
+                    return true;
+                }
+            }
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        private void run() {
+            if (!state.compareAndSet(WAITING, RUNNING)) {
+                return; // cancelled after it expired
+            } // else
+            synchronized (this) {
+                runner = Thread.currentThread();
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("unexpected exception in scheduled task (continuing)", e);
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                }
+            }
+            if (periodNanos == 0) {
+                state.compareAndSet(RUNNING, DONE);
+            } else {
+                long now = wheel.nanoTime();
+                deadlineNanos = periodNanos > 0 ? Math.max(now, deadlineNanos + periodNanos) : now - periodNanos;
+                if (state.compareAndSet(RUNNING, WAITING)) {
+                    wheel.pending.add(this);
+                }
+            }
+            if (state.get() == CANCELLED) {
+                Thread.interrupted(); // don't leave an interrupt meant for this task on a pool thread
+            }
+        }
+    }
+
+    /**
+     * Doubly linked list of timers. Only used by the tick thread.
+     */
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.prev = tail;
+            timeout.next = null;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            } else {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.bucket = null;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+    }
+
+    private final Executor workers;
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startNanos = System.nanoTime();
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final Thread tickThread;
+    private volatile boolean stopped = false;
+
+    /**
+     * Create a timer wheel.
+     *
+     * @param workers executor that runs expired tasks
+     * @param tickMillis length of a tick, i.e. timer resolution
+     * @param wheelSize number of buckets, rounded up to a power of 2
+     */
+    public TimerWheel(Executor workers, int tickMillis, int wheelSize) {
+        Preconditions.checkArgument(tickMillis > 0, "tickMillis must be at least 1");
+        Preconditions.checkArgument(wheelSize > 0 && wheelSize <= (1 << 20), "wheelSize must be 1 to 2^20");
+        this.workers = workers;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(wheelSize - 1) << 1;
+        size = wheelSize == 1 ? 1 : size;
+        this.wheel = new Bucket[size];
+        for (int ix = 0; ix < size; ix++) {
+            wheel[ix] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.tickThread = new Thread(this::runTicks, "timer-wheel");
+        this.tickThread.setDaemon(true);
+    }
+
+    /**
+     * Run a task once after a delay.
+     *
+     * @param task task
+     * @param delay delay
+     * @param unit delay units
+     * @return handle to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        return add(task, unit.toNanos(delay), 0);
+    }
+
+    /**
+     * Run a task periodically. If a run ends after the next one was due, the next one starts right away, and any
+     * other missed runs are skipped instead of running back to back to catch up.
+     *
+     * @param task task
+     * @param initialDelay delay before first run
+     * @param period time between start of each run
+     * @param unit time units
+     * @return handle to cancel the task
+     */
+    public Timeout scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+        Preconditions.checkArgument(period > 0, "period must be positive");
+        return add(task, unit.toNanos(initialDelay), unit.toNanos(period));
+    }
+
+    /**
+     * Run a task periodically, with a fixed delay between the end of one run and the start of the next.
+     *
+     * @param task task
+     * @param initialDelay delay before first run
+     * @param delay time between end of a run and start of the next
+     * @param unit time units
+     * @return handle to cancel the task
+     */
+    public Timeout scheduleWithFixedDelay(Runnable task, long initialDelay, long delay, TimeUnit unit) {
+        Preconditions.checkArgument(delay > 0, "delay must be positive");
+        return add(task, unit.toNanos(initialDelay), -unit.toNanos(delay));
+    }
+
+    /**
+     * Stop the tick thread. Scheduled tasks will not run.
+     */
+    public void stop() {
+        stopped = true;
+        tickThread.interrupt();
+    }
+
+    private Timeout add(Runnable task, long delayNanos, long periodNanos) {
+        Preconditions.checkState(!stopped, "timer wheel is stopped");
+        Timeout timeout = new Timeout(this, task, nanoTime() + Math.max(0, delayNanos), periodNanos);
+        pending.add(timeout);
+        if (!started.get() && started.compareAndSet(false, true)) {
+            tickThread.start();
+        }
+        return timeout;
+    }
+
+    private long nanoTime() {
+        return System.nanoTime() - startNanos;
+    }
+
+    private void runTicks() {
+        long tick = 0;
+        List<Timeout> expired = new ArrayList<>();
+        while (!stopped) {
+            long sleepNanos = (tick + 1) * tickNanos - nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                continue;
+            } // else
+            removeCancelled();
+            transferPending(tick);
+            expire(wheel[(int) (tick & mask)], expired);
+            for (Timeout timeout : expired) {
+                try {
+                    workers.execute(timeout::run);
+                } catch (RejectedExecutionException e) {
+                    log.warn("worker pool rejected scheduled task, dropping it");
+                }
+            }
+            expired.clear();
+            tick++;
+        }
+        log.debug("timer wheel stopped");
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    private void transferPending(long currentTick) {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.state.get() == Timeout.CANCELLED) {
+                continue;
+            }
+            long deadlineTick = timeout.deadlineNanos / tickNanos;
+            timeout.remainingRounds = (deadlineTick - currentTick) / wheel.length;
+            wheel[(int) (Math.max(deadlineTick, currentTick) & mask)].add(timeout);
+        }
+    }
+
+    private void expire(Bucket bucket, List<Timeout> expired) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.remainingRounds <= 0) {
+                bucket.remove(timeout);
+                expired.add(timeout);
+            } else {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.util;
+
+import java.time.Instant;
+
+/**
+ * Object that knows when it was created. QueueWorker uses this to measure how long items wait in the queue.
+ */
+public interface Timestamped {
+
+    Instant getTimestamp();
+
+    default long getTimestampMillis() {
+        return getTimestamp().toEpochMilli();
+    }
+}
@@ -16,23 +16,64 @@ import org.xml.sax.SAXParseException;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Object to handle XML document parsing and XPath query operations. Malformed XML and queries result in
  * empty results (and log entries), rather than exceptions.
+ *
+ * To read a few values from a small document, e.g. a device response, extract() pulls them out in one streaming pass
+ * without building a DOM. XPath queries are compiled once per thread and reused.
+ *
+ * Parsers, factories and XPath objects are not thread safe, and are costly to create, so each thread that uses an Xml
+ * gets its own set, made once and reset before each reuse. The shared factories are only used to make them.
  */
 @Log4j2
 public class Xml implements ErrorHandler {
 
+    /**
+     * Parsing objects confined to one thread.
+     */
+    private static class ThreadParsers {
+        final DocumentBuilder documentBuilder;
+        final XPath xPath;
+        final Map<String, XPathExpression> compiledQueries = new HashMap<>();
+        final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+        boolean documentBuilderUsed = false;
+
+        ThreadParsers(DocumentBuilder documentBuilder, XPath xPath) {
+            this.documentBuilder = documentBuilder;
+            this.xPath = xPath;
+            xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        }
+    }
+
+    // factories guarded by this
     private final DocumentBuilderFactory xmlDocumentBuilderFactory = DocumentBuilderFactory.newInstance();
     private final XPathFactory xPathFactory = XPathFactory.newInstance();
+    private final ThreadLocal<ThreadParsers> threadParsers = ThreadLocal.withInitial(this::makeThreadParsers);
 
     /**
      * Parse XML String.
@@ -58,7 +99,7 @@ public class Xml implements ErrorHandler {
      * @return DOM, or empty document if parsing failed
      */
     public Document parse(InputStream stream) {
-        DocumentBuilder documentBuilder = makeDocumentBuilder();
+        DocumentBuilder documentBuilder = documentBuilder();
         Document result = null;
         try {
             result = documentBuilder.parse(stream);
@@ -77,14 +118,127 @@ public class Xml implements ErrorHandler {
     public String nodeText(Document doc, String query) {
         Node node = null;
         try {
-            node = (Node) xPathFactory.newXPath().evaluate(query, doc, XPathConstants.NODE);
+            ThreadParsers parsers = threadParsers.get();
+            XPathExpression expression = parsers.compiledQueries.get(query);
+            if (expression == null) {
+                parsers.xPath.reset();
+                expression = parsers.xPath.compile(query);
+                parsers.compiledQueries.put(query, expression);
+            }
+            node = (Node) expression.evaluate(doc, XPathConstants.NODE);
         } catch (XPathExpressionException e) {
             log.warn("failed to get text from node", e);
         }
         return node == null ? null : node.getTextContent();
     }
 
-    private DocumentBuilder makeDocumentBuilder() {
+    /**
+     * Get the text content of elements by name, in one pass without building a DOM. Names are matched without
+     * namespace prefix, and only the first element with each name is used. Elements inside another element being
+     * read are not matched. Stops reading once all are found.
+     *
+     * @param xml some XML text
+     * @param elementNames element names, e.g. "InsightParams"
+     * @return map of element name to text content, without names that were not found, or empty if parsing failed
+     */
+    public Map<String, String> extract(String xml, String... elementNames) {
+        try {
+            return extract(threadParsers.get().xmlInputFactory.createXMLStreamReader(new StringReader(xml)),
+                    elementNames);
+        } catch (XMLStreamException e) {
+            log.debug("failed to parse XML", e);
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Get the text content of elements by name from an XML InputStream, in one pass without building a DOM.
+     *
+     * @param stream stream of XML text
+     * @param elementNames element names
+     * @return map of element name to text content, without names that were not found, or empty if parsing failed
+     * @see #extract(String, String...)
+     */
+    public Map<String, String> extract(InputStream stream, String... elementNames) {
+        return extract(stream, null, elementNames);
+    }
+
+    /**
+     * Get the text content of elements by name from an XML InputStream with a known charset, e.g. an HTTP response
+     * body, in one pass without building a DOM.
+     *
+     * @param stream stream of XML text
+     * @param charset charset, or null to detect from the document
+     * @param elementNames element names
+     * @return map of element name to text content, without names that were not found, or empty if parsing failed
+     * @see #extract(String, String...)
+     */
+    public Map<String, String> extract(InputStream stream, Charset charset, String... elementNames) {
+        try {
+            XMLInputFactory xmlInputFactory = threadParsers.get().xmlInputFactory;
+            return extract(charset == null ? xmlInputFactory.createXMLStreamReader(stream)
+                    : xmlInputFactory.createXMLStreamReader(stream, charset.name()), elementNames);
+        } catch (XMLStreamException e) {
+            log.debug("failed to parse XML", e);
+            return Collections.emptyMap();
+        }
+    }
+
+    private Map<String, String> extract(XMLStreamReader reader, String... elementNames) throws XMLStreamException {
+        Set<String> wanted = new HashSet<>(Arrays.asList(elementNames));
+        Map<String, String> result = new HashMap<>();
+        try {
+            StringBuilder text = null; // content of element being captured, including any child elements
+            String capturing = null;
+            int depth = 0; // element depth inside captured element
+            while (!wanted.isEmpty() && reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    if (capturing != null) {
+                        depth++;
+                    } else if (wanted.contains(reader.getLocalName())) {
+                        capturing = reader.getLocalName();
+                        text = new StringBuilder();
+                        depth = 0;
+                    }
+                } else if (capturing != null && (event == XMLStreamConstants.CHARACTERS
+                        || event == XMLStreamConstants.CDATA || event == XMLStreamConstants.SPACE)) {
+                    text.append(reader.getText());
+                } else if (capturing != null && event == XMLStreamConstants.END_ELEMENT) {
+                    if (depth == 0) {
+                        result.put(capturing, text.toString());
+                        wanted.remove(capturing);
+                        capturing = null;
+                    } else {
+                        depth--;
+                    }
+                }
+            }
+        } catch (XMLStreamException e) {
+            log.debug("failed to parse XML", e);
+            return Collections.emptyMap();
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+
+    /**
+     * Get this thread's document builder, reset if it was used before.
+     *
+     * @return document builder
+     */
+    private DocumentBuilder documentBuilder() {
+        ThreadParsers parsers = threadParsers.get();
+        if (parsers.documentBuilderUsed) {
+            parsers.documentBuilder.reset();
+            parsers.documentBuilder.setErrorHandler(this); // reset clears it
+        }
+        parsers.documentBuilderUsed = true;
+        return parsers.documentBuilder;
+    }
+
+    private synchronized ThreadParsers makeThreadParsers() {
         DocumentBuilder documentBuilder;
         try {
             documentBuilder = xmlDocumentBuilderFactory.newDocumentBuilder();
@@ -92,7 +246,7 @@ public class Xml implements ErrorHandler {
             throw new UnsupportedOperationException(e);
         }
         documentBuilder.setErrorHandler(this);
-        return documentBuilder;
+        return new ThreadParsers(documentBuilder, xPathFactory.newXPath());
     }
 
     @Override
@@ -11,15 +11,19 @@ import net.forlevity.homeglue.device.DeviceStateProcessorService;
 import net.forlevity.homeglue.device.generic_upnp.GenericUpnpManagerService;
 import net.forlevity.homeglue.device.wemo.WemoInsightManagerService;
 import net.forlevity.homeglue.http.SimpleHttpClient;
+import net.forlevity.homeglue.http.SimpleHttpClientImpl;
 import net.forlevity.homeglue.persistence.PersistenceService;
 import net.forlevity.homeglue.sim.SimulatedNetwork;
 import net.forlevity.homeglue.sink.IftttDeviceEventService;
 import net.forlevity.homeglue.testing.IntegrationTests;
 import net.forlevity.homeglue.upnp.SsdpDiscoveryService;
 import net.forlevity.homeglue.upnp.SsdpSearcher;
+import net.forlevity.homeglue.util.TimerWheel;
 import net.forlevity.homeglue.web.WebserverService;
 import org.junit.jupiter.api.Test;
 
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 public class ApplicationTest extends IntegrationTests {
@@ -48,6 +52,10 @@ public class ApplicationTest extends IntegrationTests {
         assertFalse(injector.getInstance(WemoInsightManagerService.class).isRunning());
         assertFalse(injector.getInstance(GenericUpnpManagerService.class).isRunning());
         assertFalse(injector.getInstance(SsdpDiscoveryService.class).isRunning());
+        assertThrows(IllegalStateException.class, // timer thread is stopped too
+                () -> injector.getInstance(TimerWheel.class).schedule(() -> { }, 1, TimeUnit.SECONDS));
+        assertTrue(injector.getInstance(SimpleHttpClientImpl.class) // http client is closed too
+                .getAsync("http://localhost/").isCompletedExceptionally());
     }
 
     @Test
@@ -0,0 +1,47 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.device;
+
+import net.forlevity.homeglue.testing.HomeglueTests;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class AdaptivePollingPolicyTest extends HomeglueTests {
+
+    private final AdaptivePollingPolicy policy = new AdaptivePollingPolicy(1000, 6000);
+
+    @Test
+    public void flatReadingsBackOff() {
+        assertEquals(2000, policy.nextPeriod(1000, 100.0, 100.0, Double.NaN));
+        assertEquals(4000, policy.nextPeriod(2000, 100.0, 105.0, Double.NaN));
+        assertEquals(6000, policy.nextPeriod(4000, 0.0, 0.5, Double.NaN));
+        assertEquals(6000, policy.nextPeriod(6000, 0.0, 0.0, 50.0));
+    }
+
+    @Test
+    public void changingReadingsPollFast() {
+        assertEquals(1000, policy.nextPeriod(6000, 100.0, 120.0, Double.NaN));
+        assertEquals(1000, policy.nextPeriod(6000, 0.0, 2.0, Double.NaN));
+        assertEquals(1000, policy.nextPeriod(6000, Double.NaN, 100.0, Double.NaN));
+        assertEquals(1000, policy.nextPeriod(6000, 100.0, Double.NaN, Double.NaN));
+    }
+
+    @Test
+    public void nearThresholdPollsFast() {
+        assertEquals(1000, policy.nextPeriod(6000, 45.0, 45.0, 50.0));
+        assertEquals(1000, policy.nextPeriod(6000, 55.0, 55.0, 50.0));
+        assertEquals(2000, policy.nextPeriod(1000, 100.0, 100.0, 50.0));
+    }
+
+    @Test
+    public void invalidPeriods() {
+        assertThrows(IllegalArgumentException.class, () -> new AdaptivePollingPolicy(0, 1000));
+        assertThrows(IllegalArgumentException.class, () -> new AdaptivePollingPolicy(2000, 1000));
+    }
+}
@@ -21,17 +21,17 @@ public class ApplianceStateDeciderTest extends HomeglueTests {
         ApplianceStateDecider decider = new ApplianceStateDecider();
         ApplianceDetector applianceDetector = new ApplianceDetector().withDefaultSettings();
         Device.from(new DeviceState("new")).setApplianceDetector(applianceDetector);
-        assertFalse(decider.applianceOn(applianceDetector, 0.0));
-        assertFalse(decider.applianceOn(applianceDetector, 1.0)); // default is 5w threshold
-        assertTrue(decider.applianceOn(applianceDetector, 6.0));
-        assertFalse(decider.applianceOn(applianceDetector, -1.0));
+        assertFalse(decider.applianceOn(0, applianceDetector, 0.0));
+        assertFalse(decider.applianceOn(0, applianceDetector, 1.0)); // default is 5w threshold
+        assertTrue(decider.applianceOn(0, applianceDetector, 6.0));
+        assertFalse(decider.applianceOn(0, applianceDetector, -1.0));
 
         applianceDetector.setMinWatts(0); // effectively always on
-        assertTrue(decider.applianceOn(applianceDetector, 0.0));
-        assertTrue(decider.applianceOn(applianceDetector, 0.001));
+        assertTrue(decider.applianceOn(0, applianceDetector, 0.0));
+        assertTrue(decider.applianceOn(0, applianceDetector, 0.001));
 
         applianceDetector.setMinWatts(50);
-        assertFalse(decider.applianceOn(applianceDetector, 49.99));
-        assertTrue(decider.applianceOn(applianceDetector, 50.01));
+        assertFalse(decider.applianceOn(0, applianceDetector, 49.99));
+        assertTrue(decider.applianceOn(0, applianceDetector, 50.01));
     }
 }
\ No newline at end of file
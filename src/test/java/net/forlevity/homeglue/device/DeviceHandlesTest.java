@@ -0,0 +1,45 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.device;
+
+import net.forlevity.homeglue.testing.HomeglueTests;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DeviceHandlesTest extends HomeglueTests {
+
+    @Test
+    public void denseAndStable() {
+        DeviceHandles handles = new DeviceHandles();
+        assertEquals(DeviceHandles.NONE, handles.find("a"));
+        assertEquals(0, handles.of("a"));
+        assertEquals(1, handles.of("b"));
+        assertEquals(0, handles.of("a"));
+        assertEquals(1, handles.find("b"));
+        assertEquals("b", handles.detectionId(1));
+        assertNull(handles.detectionId(2));
+        assertEquals(2, handles.size());
+    }
+
+    @Test
+    public void concurrentAssignment() {
+        DeviceHandles handles = new DeviceHandles();
+        Set<Integer> assigned = ConcurrentHashMap.newKeySet();
+        IntStream.range(0, 1000).parallel().forEach(ix -> assigned.add(handles.of("device" + (ix % 500))));
+        assertEquals(500, assigned.size());
+        assertEquals(500, handles.size());
+        IntStream.range(0, 500).forEach(handle -> {
+            assertTrue(assigned.contains(handle));
+            assertEquals(handle, handles.find(handles.detectionId(handle)));
+        });
+    }
+}
@@ -6,32 +6,45 @@
 
 package net.forlevity.homeglue.device;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import net.forlevity.homeglue.entity.ApplianceDetector;
 import net.forlevity.homeglue.entity.Device;
 import net.forlevity.homeglue.entity.Relay;
 import net.forlevity.homeglue.testing.FakePersistence;
 import net.forlevity.homeglue.testing.HomeglueTests;
+import net.forlevity.homeglue.device.DeviceStateProcessorServiceImpl.QueueType;
+import net.forlevity.homeglue.util.CoalescingQueue.OverflowPolicy;
+import net.forlevity.homeglue.util.RingBufferQueue.WaitStrategy;
 import net.forlevity.homeglue.util.ServiceDependencies;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
 
+import java.io.Serializable;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 public class DeviceStateProcessorServiceTest extends HomeglueTests {
 
-    DeviceConnectorInstances deviceConnectorInstances = new DeviceConnectorInstances();
+    DeviceHandles handles = new DeviceHandles();
+    DeviceConnectorInstances deviceConnectorInstances = new DeviceConnectorInstances(handles);
 
     @Test
     public void testNewDevice() {
         List<DeviceEvent> events = new ArrayList<>();
         FakePersistence persistence = new FakePersistence();
-        DeviceStateProcessorService processor = new DeviceStateProcessorServiceImpl(ServiceDependencies.NONE, persistence, new ApplianceStateDecider(), events::add, deviceConnectorInstances);
+        DeviceModelService model = new DeviceModelService(persistence);
+        DeviceStateProcessorService processor = new DeviceStateProcessorServiceImpl(ServiceDependencies.NONE, handles, model, new ApplianceStateDecider(), events::add, deviceConnectorInstances, 1, 10, 0, QueueType.COALESCING, 100, OverflowPolicy.BLOCK, WaitStrategy.BLOCKING);
 
         // event generated
         DeviceState state = new DeviceState("new");
@@ -39,8 +52,13 @@ public class DeviceStateProcessorServiceTest extends HomeglueTests {
         assertEquals(1, events.size());
         assertEquals(DeviceEvent.NEW_DEVICE, events.get(0).getEvent());
         assertEquals("new", events.get(0).getDetectionId());
+        assertEquals(handles.find("new"), state.getHandle());
+        assertEquals(state.getHandle(), events.get(0).getHandle());
+        assertSame(state, processor.getLastState("new"));
+        assertSame(state, processor.getLastState(state.getHandle()));
 
         // device saved
+        model.flush();
         ArgumentCaptor<Device> deviceArgumentCaptor = ArgumentCaptor.forClass(Device.class);
         verify(persistence.getSession()).saveOrUpdate(deviceArgumentCaptor.capture());
         assertEquals("new", deviceArgumentCaptor.getValue().getDetectionId());
@@ -50,7 +68,8 @@ public class DeviceStateProcessorServiceTest extends HomeglueTests {
     public void testNewDeviceWithRelayAndMeter() {
         List<DeviceEvent> events = new ArrayList<>();
         FakePersistence persistence = new FakePersistence();
-        DeviceStateProcessorService processor = new DeviceStateProcessorServiceImpl(ServiceDependencies.NONE, persistence, new ApplianceStateDecider(), events::add, deviceConnectorInstances);
+        DeviceModelService model = new DeviceModelService(persistence);
+        DeviceStateProcessorService processor = new DeviceStateProcessorServiceImpl(ServiceDependencies.NONE, handles, model, new ApplianceStateDecider(), events::add, deviceConnectorInstances, 1, 10, 0, QueueType.COALESCING, 100, OverflowPolicy.BLOCK, WaitStrategy.BLOCKING);
 
         // event generated
         DeviceState state = new DeviceState("new", ImmutableMap.of("key", "value"))
@@ -63,6 +82,7 @@ public class DeviceStateProcessorServiceTest extends HomeglueTests {
         events.clear();
 
         // device saved
+        model.flush();
         ArgumentCaptor<Device> deviceArgumentCaptor = ArgumentCaptor.forClass(Device.class);
         verify(persistence.getSession()).saveOrUpdate(deviceArgumentCaptor.capture());
         Device device = deviceArgumentCaptor.getValue();
@@ -78,8 +98,11 @@ public class DeviceStateProcessorServiceTest extends HomeglueTests {
         assertFalse(existingDevice.isConnected());
 
         FakePersistence persistence = new FakePersistence().setResolver(id -> existingDevice);
-        DeviceStateProcessorService processor = new DeviceStateProcessorServiceImpl(ServiceDependencies.NONE, persistence, new ApplianceStateDecider(), events::add, deviceConnectorInstances);
+
+        DeviceModelService model = new DeviceModelService(persistence);
+        DeviceStateProcessorService processor = new DeviceStateProcessorServiceImpl(ServiceDependencies.NONE, handles, model, new ApplianceStateDecider(), events::add, deviceConnectorInstances, 1, 10, 0, QueueType.COALESCING, 100, OverflowPolicy.BLOCK, WaitStrategy.BLOCKING);
         processor.handle(new DeviceState("devid"));
+        model.flush();
         ArgumentCaptor<Device> deviceArgumentCaptor = ArgumentCaptor.forClass(Device.class);
         verify(persistence.getSession()).saveOrUpdate(deviceArgumentCaptor.capture());
         assertEquals("devid", deviceArgumentCaptor.getValue().getDetectionId());
@@ -96,12 +119,14 @@ public class DeviceStateProcessorServiceTest extends HomeglueTests {
         Device existingDevice = Device.from(new DeviceState("devid", originalDetails));
         existingDevice.setConnected(true);
         FakePersistence persistence = new FakePersistence().setResolver(id -> existingDevice);
-        DeviceStateProcessorService processor = new DeviceStateProcessorServiceImpl(ServiceDependencies.NONE, persistence, new ApplianceStateDecider(), events::add, deviceConnectorInstances);
+        DeviceModelService model = new DeviceModelService(persistence);
+        DeviceStateProcessorService processor = new DeviceStateProcessorServiceImpl(ServiceDependencies.NONE, handles, model, new ApplianceStateDecider(), events::add, deviceConnectorInstances, 1, 10, 0, QueueType.COALESCING, 100, OverflowPolicy.BLOCK, WaitStrategy.BLOCKING);
 
         Map<String, String> newDeviceDetails = ImmutableMap.of("k1","changed_v1","k2","v2");
         processor.handle(new DeviceState("devid", newDeviceDetails));
 
         // saved?
+        model.flush();
         ArgumentCaptor<Device> deviceArgumentCaptor = ArgumentCaptor.forClass(Device.class);
         verify(persistence.getSession()).saveOrUpdate(deviceArgumentCaptor.capture());
         assertEquals("devid", deviceArgumentCaptor.getValue().getDetectionId());
@@ -127,13 +152,15 @@ public class DeviceStateProcessorServiceTest extends HomeglueTests {
         Device device = Device.from(initialState);
         device.setConnected(true);
         FakePersistence persistence = new FakePersistence().setResolver(id -> device);
-        DeviceStateProcessorService processor = new DeviceStateProcessorServiceImpl(ServiceDependencies.NONE, persistence, new ApplianceStateDecider(), events::add, deviceConnectorInstances);
+        DeviceModelService model = new DeviceModelService(persistence);
+        DeviceStateProcessorService processor = new DeviceStateProcessorServiceImpl(ServiceDependencies.NONE, handles, model, new ApplianceStateDecider(), events::add, deviceConnectorInstances, 1, 10, 0, QueueType.COALESCING, 100, OverflowPolicy.BLOCK, WaitStrategy.BLOCKING);
 
         assertNull(device.getRelay());
         processor.handle(new DeviceState(initialState).setRelayClosed(true));
         processor.handle(new DeviceState(initialState).setRelayClosed(true));
 
         // saved?
+        model.flush();
         ArgumentCaptor<Device> deviceArgumentCaptor = ArgumentCaptor.forClass(Device.class);
         verify(persistence.getSession()).saveOrUpdate(deviceArgumentCaptor.capture());
         assertEquals("devid", deviceArgumentCaptor.getValue().getDetectionId());
@@ -161,12 +188,14 @@ public class DeviceStateProcessorServiceTest extends HomeglueTests {
         Device device = Device.from(initialState);
         device.setConnected(true);
         FakePersistence persistence = new FakePersistence().setResolver(id -> device);
-        DeviceStateProcessorService processor = new DeviceStateProcessorServiceImpl(ServiceDependencies.NONE, persistence, new ApplianceStateDecider(), events::add, deviceConnectorInstances);
+        DeviceModelService model = new DeviceModelService(persistence);
+        DeviceStateProcessorService processor = new DeviceStateProcessorServiceImpl(ServiceDependencies.NONE, handles, model, new ApplianceStateDecider(), events::add, deviceConnectorInstances, 1, 10, 0, QueueType.COALESCING, 100, OverflowPolicy.BLOCK, WaitStrategy.BLOCKING);
 
         assertNull(device.getRelay());
         processor.handle(new DeviceState(initialState).setInstantaneousWatts(0.5));
 
         // saved?
+        model.flush();
         ArgumentCaptor<Device> deviceArgumentCaptor = ArgumentCaptor.forClass(Device.class);
         verify(persistence.getSession()).saveOrUpdate(deviceArgumentCaptor.capture());
         assertEquals("did", deviceArgumentCaptor.getValue().getDetectionId());
@@ -189,6 +218,7 @@ public class DeviceStateProcessorServiceTest extends HomeglueTests {
         events.clear();
         // reconfigure appliance detector
         applianceDetector.setMinWatts(0.1f);
+        model.reload("did");
         processor.handle(new DeviceState(initialState).setInstantaneousWatts(0.5));
         processor.handle(new DeviceState(initialState).setInstantaneousWatts(0.5));
         processor.handle(new DeviceState(initialState).setInstantaneousWatts(0.0));
@@ -198,4 +228,120 @@ public class DeviceStateProcessorServiceTest extends HomeglueTests {
         assertEquals(DeviceEvent.APPLIANCE_OFF, events.get(1).getEvent());
         assertEquals("did", events.get(1).getDetectionId());
     }
+
+    @Test
+    public void unchangedStateIsNotWritten() {
+        List<DeviceEvent> events = new ArrayList<>();
+        DeviceState initialState = new DeviceState("devid");
+        Device device = Device.from(initialState);
+        device.setConnected(true);
+        FakePersistence persistence = new FakePersistence().setResolver(id -> device);
+        DeviceModelService model = new DeviceModelService(persistence);
+        DeviceStateProcessorService processor = new DeviceStateProcessorServiceImpl(ServiceDependencies.NONE, handles, model, new ApplianceStateDecider(), events::add, deviceConnectorInstances, 1, 10, 0, QueueType.COALESCING, 100, OverflowPolicy.BLOCK, WaitStrategy.BLOCKING);
+
+        // first reading creates relay, which must be written
+        processor.handle(new DeviceState(initialState).setRelayClosed(true));
+        assertEquals(1, model.flush());
+
+        // identical readings are handled in memory only
+        processor.handle(new DeviceState(initialState).setRelayClosed(true));
+        processor.handle(new DeviceState(initialState).setRelayClosed(true));
+        assertEquals(0, model.flush());
+        verify(persistence.getSession(), times(1)).saveOrUpdate(device);
+
+        // many changes between flushes are written once
+        processor.handle(new DeviceState(initialState).setRelayClosed(false));
+        processor.handle(new DeviceState(initialState).setRelayClosed(true));
+        processor.handle(new DeviceState(initialState).setRelayClosed(false));
+        assertEquals(1, model.flush());
+        verify(persistence.getSession(), times(2)).saveOrUpdate(device);
+        assertFalse(device.getRelay().isClosed());
+        assertEquals(3, events.size());
+    }
+
+    @Test
+    public void unchangedReadingsSkipDeviceModel() {
+        List<DeviceEvent> events = new ArrayList<>();
+        DeviceState initialState = new DeviceState("steady");
+        Device device = Device.from(initialState);
+        device.setConnected(true);
+        FakePersistence persistence = new FakePersistence().setResolver(id -> "steady".equals(id) ? device : null);
+        DeviceModelService model = spy(new DeviceModelService(persistence));
+        DeviceStateProcessorServiceImpl processor = new DeviceStateProcessorServiceImpl(ServiceDependencies.NONE, handles, model, new ApplianceStateDecider(), events::add, deviceConnectorInstances, 1, 10, 0, QueueType.COALESCING, 100, OverflowPolicy.BLOCK, WaitStrategy.BLOCKING);
+
+        // first reading creates relay and meter, second confirms, then the rest are skipped
+        for (int ix = 0; ix < 10; ix++) {
+            processor.handle(new DeviceState(initialState).setRelayClosed(true).setInstantaneousWatts(0.5));
+        }
+        assertEquals(2, processor.getProcessed());
+        assertEquals(8, processor.getSkipped());
+        verify(model, times(2)).update(eq("steady"), any());
+
+        // changes to other devices do not invalidate the baseline
+        processor.handle(new DeviceState("other"));
+        processor.handle(new DeviceState(initialState).setRelayClosed(true).setInstantaneousWatts(0.5));
+        assertEquals(9, processor.getSkipped());
+        verify(model, times(2)).update(eq("steady"), any());
+        events.clear();
+
+        // transitions are never skipped
+        processor.handle(new DeviceState(initialState).setRelayClosed(true).setInstantaneousWatts(100.0));
+        processor.handle(new DeviceState(initialState).setRelayClosed(false).setInstantaneousWatts(100.0));
+        processor.handle(new DeviceState(initialState).setRelayClosed(false).setInstantaneousWatts(100.0));
+        processor.handle(new DeviceState(initialState).setRelayClosed(false).setInstantaneousWatts(100.0));
+        assertEquals(2, events.size());
+        assertEquals(DeviceEvent.APPLIANCE_ON, events.get(0).getEvent());
+        assertEquals(DeviceEvent.RELAY_OPENED, events.get(1).getEvent());
+        assertEquals(10, processor.getSkipped());
+
+        // appliance has been on too long: readings are not skipped past the deadline
+        device.getApplianceDetector().setMaxOnSeconds(1).setLastStateChange(Instant.now().minusSeconds(10));
+        model.reload("steady");
+        for (int ix = 0; ix < 3; ix++) {
+            processor.handle(new DeviceState(initialState).setRelayClosed(false).setInstantaneousWatts(100.0));
+        }
+        assertEquals(3, events.size());
+        assertEquals(DeviceEvent.ON_TOO_LONG, events.get(2).getEvent());
+        assertEquals(10, processor.getSkipped());
+    }
+
+    @Test
+    public void batchLoadsDevicesInOneTransaction() throws InterruptedException {
+        List<DeviceEvent> events = new ArrayList<>();
+        Map<Serializable, Device> stored = new HashMap<>();
+        for (String detectionId : ImmutableList.of("dev1", "dev2", "dev3")) {
+            stored.put(detectionId, Device.from(new DeviceState(detectionId)));
+        }
+        FakePersistence persistence = spy(new FakePersistence().setResolver(stored::get));
+        DeviceModelService model = new DeviceModelService(persistence);
+        DeviceStateProcessorServiceImpl processor = new DeviceStateProcessorServiceImpl(ServiceDependencies.NONE, handles, model, new ApplianceStateDecider(), events::add, deviceConnectorInstances, 1, 10, 0, QueueType.COALESCING, 100, OverflowPolicy.BLOCK, WaitStrategy.BLOCKING);
+
+        stored.keySet().forEach(detectionId -> processor.accept(new DeviceState(detectionId.toString())));
+        processor.processQueue();
+        verify(persistence, times(1)).exec(any());
+        assertEquals(3, events.size()); // all connected
+    }
+
+    @Test
+    public void coalesceOnlyWithoutLosingTransitions() {
+        DeviceState watts = new DeviceState("id").setInstantaneousWatts(1.0);
+        DeviceState closed = new DeviceState("id").setRelayClosed(true).setInstantaneousWatts(2.0);
+        DeviceState open = new DeviceState("id").setRelayClosed(false);
+        DeviceState details = new DeviceState("id", ImmutableMap.of("k", "v")).setRelayClosed(true);
+
+        assertTrue(DeviceStateProcessorServiceImpl.canReplace(watts, closed, Double.NaN));
+        assertTrue(DeviceStateProcessorServiceImpl.canReplace(closed, new DeviceState(closed), Double.NaN));
+        assertFalse(DeviceStateProcessorServiceImpl.canReplace(closed, open, Double.NaN));
+        assertFalse(DeviceStateProcessorServiceImpl.canReplace(closed, watts, Double.NaN));
+        assertTrue(DeviceStateProcessorServiceImpl.canReplace(closed, details, Double.NaN));
+        assertFalse(DeviceStateProcessorServiceImpl.canReplace(details, closed, Double.NaN));
+
+        // once the threshold is known, a reading is only replaced by one on the same side of it
+        DeviceState over = new DeviceState("id").setInstantaneousWatts(50.0);
+        assertTrue(DeviceStateProcessorServiceImpl.canReplace(watts, closed, 10.0));
+        assertTrue(DeviceStateProcessorServiceImpl.canReplace(over, new DeviceState(over), 10.0));
+        assertFalse(DeviceStateProcessorServiceImpl.canReplace(over, watts, 10.0));
+        assertFalse(DeviceStateProcessorServiceImpl.canReplace(watts, over, 10.0));
+        assertFalse(DeviceStateProcessorServiceImpl.canReplace(closed, details, 10.0));
+    }
 }
@@ -0,0 +1,40 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.device;
+
+import net.forlevity.homeglue.testing.HomeglueTests;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DeviceStateTest extends HomeglueTests {
+
+    @Test
+    public void primitiveAndBoxedViews() {
+        DeviceState state = new DeviceState("id");
+        assertFalse(state.hasWatts());
+        assertFalse(state.hasRelay());
+        assertNull(state.getInstantaneousWatts());
+        assertNull(state.getRelayClosed());
+        assertEquals(DeviceState.RELAY_UNKNOWN, state.getRelay());
+
+        state.setWatts(12.5).setRelay(true);
+        assertEquals(Double.valueOf(12.5), state.getInstantaneousWatts());
+        assertTrue(state.getRelayClosed());
+        assertEquals(DeviceState.RELAY_CLOSED, state.getRelay());
+
+        state.setInstantaneousWatts(null).setRelayClosed(false);
+        assertTrue(Double.isNaN(state.getWatts()));
+        assertFalse(state.isRelayClosed());
+        assertTrue(state.hasRelay());
+
+        DeviceState copy = new DeviceState(state.setWatts(0.0));
+        assertEquals(0.0, copy.getWatts());
+        assertEquals(DeviceState.RELAY_OPEN, copy.getRelay());
+        assertEquals(state.getTimestampMillis(), state.getTimestamp().toEpochMilli());
+    }
+}
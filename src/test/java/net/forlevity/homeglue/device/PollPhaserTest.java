@@ -0,0 +1,81 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.device;
+
+import net.forlevity.homeglue.testing.HomeglueTests;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PollPhaserTest extends HomeglueTests {
+
+    private long now = 10000;
+
+    private PollPhaser phaser(PollPhaser.Mode mode) {
+        return new PollPhaser(mode) {
+            @Override
+            long nowMillis() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void spreadAndRebalance() {
+        PollPhaser phaser = phaser(PollPhaser.Mode.SPREAD);
+        PollPhaser.Phase a = phaser.join(1000);
+        PollPhaser.Phase b = phaser.join(1000);
+        PollPhaser.Phase other = phaser.join(3000);
+        PollPhaser.Phase c = phaser.join(1000);
+        PollPhaser.Phase d = phaser.join(1000);
+        assertEquals(0.0, a.getFraction());
+        assertEquals(0.25, b.getFraction());
+        assertEquals(0.5, c.getFraction());
+        assertEquals(0.75, d.getFraction());
+        assertEquals(0.0, other.getFraction());
+        assertEquals(4, phaser.size(1000));
+
+        b.leave();
+        b.leave(); // no effect
+        assertEquals(3, phaser.size(1000));
+        assertEquals(0.0, a.getFraction());
+        assertEquals(1.0 / 3, c.getFraction());
+        assertEquals(2.0 / 3, d.getFraction());
+    }
+
+    @Test
+    public void align() {
+        PollPhaser phaser = phaser(PollPhaser.Mode.SPREAD);
+        phaser.join(1000);
+        PollPhaser.Phase phase = phaser.join(1000); // offset 500
+        now = 10000;
+        assertEquals(500, phase.align(0, 0)); // next in phase is 10500
+        assertEquals(500, phase.align(700, 0)); // nearest to 10700 is 10500
+        assertEquals(1500, phase.align(1100, 0)); // nearest to 11100 is 11500
+        assertEquals(3500, phase.align(3900, 0)); // slow poller stays in phase
+        assertEquals(1500, phase.align(700, 800)); // 10500 is too soon
+        now = 10490;
+        assertEquals(10, phase.align(0, 0)); // timer was early
+        now = 10510;
+        assertEquals(990, phase.align(1000, 0)); // timer was late
+    }
+
+    @Test
+    public void noneAndRandom() {
+        PollPhaser none = phaser(PollPhaser.Mode.NONE);
+        assertEquals(123, none.join(1000).align(123, 500));
+
+        PollPhaser random = phaser(PollPhaser.Mode.RANDOM);
+        PollPhaser.Phase phase = random.join(1000);
+        double fraction = phase.getFraction();
+        assertTrue(fraction >= 0 && fraction < 1);
+        random.join(1000).leave();
+        assertEquals(fraction, phase.getFraction());
+        long delay = phase.align(1000, 0);
+        assertEquals((long) (fraction * 1000), (now + delay) % 1000);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.device;
+
+import net.forlevity.homeglue.testing.HomeglueTests;
+import net.forlevity.homeglue.util.TimerWheel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PollerCommanderTest extends HomeglueTests {
+
+    private final ExecutorService workers = Executors.newFixedThreadPool(1);
+    private final TimerWheel timer = new TimerWheel(workers, 5, 64);
+
+    @AfterEach
+    public void stop() {
+        timer.stop();
+        workers.shutdownNow();
+    }
+
+    @Test
+    public void waitingCommandsDoNotHoldThreads() throws Exception {
+        // one worker thread, 50 devices each with two commands: the second must wait for the device to be idle
+        List<Future<Command.Result>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int ix = 0; ix < 50; ix++) {
+            PollerCommander commander = new PollerCommander(workers, timer, "device" + ix, () -> { }, 60000, 200);
+            results.add(commander.runCommand(() -> Command.Result.SUCCESS));
+            results.add(commander.runCommand(() -> Command.Result.SUCCESS));
+        }
+        for (Future<Command.Result> result : results) {
+            assertEquals(Command.Result.SUCCESS, result.get(2, TimeUnit.SECONDS));
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(elapsedMillis < 2000, "commands took " + elapsedMillis + " ms"); // sleeping would take 10s
+    }
+
+    @Test
+    public void commandsAreSpacedAndGoBeforePolls() throws Exception {
+        List<String> operations = new CopyOnWriteArrayList<>();
+        List<Long> times = new CopyOnWriteArrayList<>();
+        CountDownLatch polled = new CountDownLatch(1);
+        PollerCommander commander = new PollerCommander(workers, timer, "device", () -> {
+            operations.add("poll");
+            polled.countDown();
+        }, 20, 50);
+        List<Future<Command.Result>> results = new ArrayList<>();
+        for (int ix = 0; ix < 3; ix++) {
+            String name = "command" + ix;
+            results.add(commander.runCommand(() -> {
+                operations.add(name);
+                times.add(System.nanoTime());
+                return Command.Result.SUCCESS;
+            }));
+        }
+        commander.start();
+        for (Future<Command.Result> result : results) {
+            assertEquals(Command.Result.SUCCESS, result.get(2, TimeUnit.SECONDS));
+        }
+        assertTrue(polled.await(2, TimeUnit.SECONDS));
+        commander.stop();
+        assertEquals("command0", operations.get(0));
+        assertEquals("command1", operations.get(1));
+        assertEquals("command2", operations.get(2));
+        assertEquals("poll", operations.get(3));
+        for (int ix = 1; ix < times.size(); ix++) {
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(times.get(ix) - times.get(ix - 1)) >= 49);
+        }
+    }
+
+    @Test
+    public void stopCancelsPendingCommands() {
+        PollerCommander commander = new PollerCommander(workers, timer, "device", () -> { }, 60000, 60000);
+        commander.start();
+        Future<Command.Result> first = commander.runCommand(() -> Command.Result.SUCCESS);
+        Future<Command.Result> second = commander.runCommand(() -> Command.Result.SUCCESS);
+        commander.stop();
+        assertTrue(second.isCancelled() || first.isCancelled());
+        assertTrue(commander.runCommand(() -> Command.Result.SUCCESS).isCancelled());
+    }
+
+    @Test
+    public void commandsForSameTargetAreCoalesced() throws Exception {
+        PollerCommander commander = new PollerCommander(workers, timer, "device", () -> { }, 60000, 20);
+        List<String> operations = new CopyOnWriteArrayList<>();
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<Command.Result> open1 = commander.runCommand("relay", false, () -> {
+            operations.add("open1");
+            running.countDown();
+            release.await();
+            return Command.Result.SUCCESS;
+        });
+        assertTrue(running.await(2, TimeUnit.SECONDS));
+        // same as running command: shares its result
+        assertSame(open1, commander.runCommand("relay", false, () -> {
+            operations.add("open1 again");
+            return Command.Result.DEVICE_ERROR;
+        }));
+        // later commands for the relay replace the waiting one
+        Future<Command.Result> close = commander.runCommand("relay", true, () -> {
+            operations.add("close");
+            return Command.Result.DEVICE_ERROR;
+        });
+        assertSame(close, commander.runCommand("relay", true, () -> {
+            operations.add("close again");
+            return Command.Result.DEVICE_ERROR;
+        }));
+        assertSame(close, commander.runCommand("relay", false, () -> {
+            operations.add("open2");
+            return Command.Result.COMMS_FAILED;
+        }));
+        Future<Command.Result> other = commander.runCommand(() -> {
+            operations.add("other");
+            return Command.Result.SUCCESS;
+        });
+        release.countDown();
+        assertEquals(Command.Result.SUCCESS, open1.get(2, TimeUnit.SECONDS));
+        assertEquals(Command.Result.COMMS_FAILED, close.get(2, TimeUnit.SECONDS));
+        assertEquals(Command.Result.SUCCESS, other.get(2, TimeUnit.SECONDS));
+        assertEquals(3, operations.size(), operations.toString());
+        assertEquals("open1", operations.get(0));
+        assertEquals("open2", operations.get(1));
+        assertEquals("other", operations.get(2));
+        assertEquals(3, commander.getCoalescedCommands());
+    }
+
+    @Test
+    public void deadlineCancelsSlowPolls() throws Exception {
+        List<CompletableFuture<Void>> polls = new CopyOnWriteArrayList<>();
+        CountDownLatch cancelled = new CountDownLatch(2);
+        PollerCommander commander = new PollerCommander(workers, timer, "device", () -> {
+            CompletableFuture<Void> poll = new CompletableFuture<>(); // never completes by itself
+            poll.whenComplete((result, e) -> cancelled.countDown());
+            polls.add(poll);
+            return poll;
+        }, () -> 20, 0).setDeadline(50);
+        commander.start();
+        assertTrue(cancelled.await(2, TimeUnit.SECONDS));
+        commander.stop();
+        assertTrue(polls.get(0).isCancelled());
+        PollMetrics metrics = commander.getMetrics();
+        assertTrue(metrics.getDeadlineExceeded() >= 2);
+        assertTrue(metrics.getDurationMillis().snapshot().getMax() >= 49);
+        assertTrue(metrics.getLatenessMillis().snapshot().getCount() >= 2);
+    }
+
+    @Test
+    public void skippedPollsAreCounted() throws Exception {
+        ExecutorService commandThread = Executors.newSingleThreadExecutor();
+        try {
+            PollerCommander commander = new PollerCommander(commandThread, timer, "device", () -> { }, 10, 0);
+            Future<Command.Result> result = commander.runCommand(() -> {
+                Thread.sleep(200);
+                return Command.Result.SUCCESS;
+            });
+            commander.start();
+            assertEquals(Command.Result.SUCCESS, result.get(2, TimeUnit.SECONDS));
+            commander.stop();
+            PollMetrics metrics = commander.getMetrics();
+            assertTrue(metrics.getSkipped(PollMetrics.SkipReason.BUSY) > 0, metrics.getSkipped().toString());
+            // every trigger is a poll or a skip (one may still be running)
+            long outcomes = metrics.getPolls()
+                    + metrics.getSkipped().values().stream().mapToLong(Long::longValue).sum();
+            long triggers = metrics.getLatenessMillis().snapshot().getCount();
+            assertTrue(triggers == outcomes || triggers == outcomes + 1, triggers + " triggers " + outcomes + " outcomes");
+        } finally {
+            commandThread.shutdownNow();
+        }
+    }
+
+    @Test
+    public void phasedPollersAreSpreadOut() throws InterruptedException {
+        PollPhaser phaser = new PollPhaser(PollPhaser.Mode.SPREAD);
+        List<PollerCommander> commanders = new ArrayList<>();
+        List<Long> secondPoll = new CopyOnWriteArrayList<>();
+        CountDownLatch polled = new CountDownLatch(4);
+        for (int ix = 0; ix < 4; ix++) {
+            int[] polls = {0};
+            commanders.add(new PollerCommander(workers, timer, "device" + ix, () -> {
+                if (++polls[0] == 2) {
+                    secondPoll.add(phaser.nowMillis() % 400);
+                    polled.countDown();
+                }
+            }, 400, 0).setPhaser(phaser));
+        }
+        // first polls are in whatever phase each poller had when it started, then they rebalance to 0, 100, 200, 300
+        commanders.forEach(PollerCommander::start);
+        assertTrue(polled.await(3, TimeUnit.SECONDS));
+        commanders.forEach(PollerCommander::stop);
+        assertEquals(0, phaser.size(400));
+        List<Long> phases = new ArrayList<>(secondPoll);
+        phases.sort(Long::compare);
+        for (int ix = 0; ix < 4; ix++) {
+            assertTrue(phases.get(ix) >= ix * 100 && phases.get(ix) < ix * 100 + 50, "phases " + phases);
+        }
+    }
+}
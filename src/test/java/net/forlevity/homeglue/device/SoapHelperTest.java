@@ -8,18 +8,25 @@ package net.forlevity.homeglue.device;
 
 import net.forlevity.homeglue.http.SimpleHttpClient;
 import net.forlevity.homeglue.testing.HomeglueTests;
+import net.forlevity.homeglue.util.CircuitBreaker;
+import net.forlevity.homeglue.util.CircuitBreakers;
 import net.forlevity.homeglue.util.ResourceHelper;
 import net.forlevity.homeglue.util.Xml;
+import org.apache.http.client.HttpResponseException;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
 import org.w3c.dom.Document;
 
 import java.io.IOException;
+import java.net.ConnectException;
 import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 public class SoapHelperTest extends HomeglueTests {
@@ -39,7 +46,7 @@ public class SoapHelperTest extends HomeglueTests {
     @Test
     @SuppressWarnings("unchecked")
     public void testSoapRequest() throws IOException {
-        SimpleHttpClient mockHttp = mock(SimpleHttpClient.class);
+        SimpleHttpClient mockHttp = mock(SimpleHttpClient.class, CALLS_REAL_METHODS); // bytes are posted as string
         String url = "http://somewhere";
         String urn = "urn:something";
         String action = "DoNothing";
@@ -56,4 +63,48 @@ public class SoapHelperTest extends HomeglueTests {
         assertEquals(String.format("\"%s#%s\"", urn, action), requestHeaders.getValue().get("SOAPAction"));
         assertEquals(11, xml.nodeText(document, "//InsightParams").split("\\|").length);
     }
+
+    @Test
+    public void soapOperationsArePrecompiled() {
+        SoapOperation operation = SoapOperation.of("urn:Belkin:service:insight:1", "GetInsightParams");
+        assertSame(operation, SoapOperation.of("urn:Belkin:service:insight:1", "GetInsightParams"));
+        assertEquals("\"urn:Belkin:service:insight:1#GetInsightParams\"", operation.getHeaders().get("SOAPAction"));
+        assertEquals(ResourceHelper.resourceAsString("net/forlevity/homeglue/sim/insightparams_request.xml"),
+                new String(operation.envelope(""), SoapOperation.CONTENT_TYPE.getCharset()));
+        assertSame(operation.envelope(""), operation.envelope(""));
+
+        SoapOperation set = SoapOperation.of("urn:x", "Set");
+        Document request = xml.parse(new String(set.envelope("<Name>caf\u00e9</Name>"), SoapOperation.CONTENT_TYPE.getCharset()));
+        assertEquals("caf\u00e9", xml.nodeText(request, "//Name"));
+        request = xml.parse(new String(set.envelope("<Value>1</Value>"), SoapOperation.CONTENT_TYPE.getCharset()));
+        assertEquals("1", xml.nodeText(request, "//Value"));
+    }
+
+    @Test
+    public void circuitBreakerStopsRequestsToDeadHost() throws IOException {
+        SimpleHttpClient mockHttp = mock(SimpleHttpClient.class, CALLS_REAL_METHODS);
+        CircuitBreakers breakers = new CircuitBreakers(3, 60000, 60000);
+        SoapHelper soapHelper = new SoapHelper(mockHttp, breakers);
+        String deadUrl = "http://10.0.0.1:49153/upnp/control/insight1";
+        String liveUrl = "http://10.0.0.2:49153/upnp/control/insight1";
+
+        // error status from a live device does not open the circuit
+        doThrow(new HttpResponseException(500, "Internal Server Error")).when(mockHttp).post(eq(liveUrl), any(), any(), any());
+        for (int ix = 0; ix < 5; ix++) {
+            assertNull(soapHelper.execSoapRequest(liveUrl, "urn:x", "Get", ""));
+        }
+        verify(mockHttp, times(5)).post(eq(liveUrl), any(), any(), any());
+
+        // network failures do, then requests are not sent
+        doThrow(new ConnectException("timed out")).when(mockHttp).post(eq(deadUrl), any(), any(), any());
+        for (int ix = 0; ix < 3; ix++) {
+            assertNull(soapHelper.execSoapRequest(deadUrl, "urn:x", "Get", ""));
+        }
+        assertNull(soapHelper.execSoapRequest(deadUrl, "urn:x", "Get", ""));
+        assertNull(soapHelper.execSoapRequestAsync(deadUrl, "urn:x", "Get", "").join());
+        verify(mockHttp, times(3)).post(eq(deadUrl), any(), any(), any());
+        assertEquals(CircuitBreaker.State.OPEN, breakers.snapshots().get("10.0.0.1:49153").getState());
+        assertEquals(2, breakers.snapshots().get("10.0.0.1:49153").getRejected());
+        assertEquals(CircuitBreaker.State.CLOSED, breakers.snapshots().get("10.0.0.2:49153").getState());
+    }
 }
@@ -0,0 +1,61 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.device.wemo;
+
+import net.forlevity.homeglue.testing.HomeglueTests;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InsightStateTest extends HomeglueTests {
+
+    @Test
+    public void decodeAllFields() {
+        InsightState state = new InsightState("x");
+        assertTrue(state.decode("8|1526997105|27829|24703|130320|426068|10|4155|5501513|23446319.000000|6000"));
+        assertEquals(InsightState.STATE_STANDBY, state.getBinaryState());
+        assertTrue(state.isRelayClosed());
+        assertEquals(1526997105L, state.getLastChangeSecs());
+        assertEquals(27829L, state.getOnForSecs());
+        assertEquals(24703L, state.getOnTodaySecs());
+        assertEquals(130320L, state.getOnTotalSecs());
+        assertEquals(426068L, state.getTimePeriodSecs());
+        assertEquals(10.0, state.getAverageWatts());
+        assertEquals(4.155, state.getWatts(), 1e-9);
+        assertEquals(5501513 / 60000.0, state.getTodayWattHours(), 1e-9);
+        assertEquals(23446319 / 60000.0, state.getTotalWattHours(), 1e-9);
+        assertEquals(6.0, state.getStandbyThresholdWatts());
+    }
+
+    @Test
+    public void decodeRequiredFieldsOnly() {
+        InsightState state = new InsightState("x");
+        assertTrue(state.decode("0|1526997105|0|0|0|1209600|0|0.5"));
+        assertEquals(InsightState.STATE_OFF, state.getBinaryState());
+        assertFalse(state.isRelayClosed());
+        assertEquals(0.0005, state.getWatts(), 1e-12);
+        assertTrue(Double.isNaN(state.getTodayWattHours()));
+        assertTrue(Double.isNaN(state.getStandbyThresholdWatts()));
+
+        // bad optional field is ignored
+        state = new InsightState("x");
+        assertTrue(state.decode("1|1526997105|0|0|0|1209600|0|1000|x|-1.5|"));
+        assertEquals(1.0, state.getWatts());
+        assertTrue(Double.isNaN(state.getTodayWattHours()));
+        assertEquals(-1.5 / 60000.0, state.getTotalWattHours(), 1e-12);
+    }
+
+    @Test
+    public void rejectMalformed() {
+        assertFalse(new InsightState("x").decode("1"));
+        assertFalse(new InsightState("x").decode(""));
+        assertFalse(new InsightState("x").decode("1|1526997105|0|0|0|1209600|0"));
+        assertFalse(new InsightState("x").decode("1|1526997105|0|0|0|1209600|0|"));
+        assertFalse(new InsightState("x").decode("1|1526997105|0|0|0|1209600|0|1.2.3"));
+        assertFalse(new InsightState("x").decode("on|1526997105|0|0|0|1209600|0|1000"));
+    }
+}
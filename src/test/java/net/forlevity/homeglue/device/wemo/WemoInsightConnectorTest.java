@@ -6,11 +6,14 @@
 
 package net.forlevity.homeglue.device.wemo;
 
+import com.google.common.collect.ImmutableMap;
 import lombok.extern.log4j.Log4j2;
 import net.forlevity.homeglue.device.*;
 import net.forlevity.homeglue.http.SimpleHttpClient;
 import net.forlevity.homeglue.testing.HomeglueTests;
+import net.forlevity.homeglue.upnp.UpnpEventSubscriber;
 import net.forlevity.homeglue.util.ResourceHelper;
+import net.forlevity.homeglue.util.TimerWheel;
 import org.apache.http.entity.ContentType;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
@@ -20,14 +23,19 @@ import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.*;
 
 @Log4j2
 public class WemoInsightConnectorTest extends HomeglueTests {
 
     SimpleHttpClient httpClient;
+    DeviceStateProcessorService stateProcessor;
+    DeviceStateProcessorService stateConsumer;
+    UpnpEventSubscriber eventSubscriber = mock(UpnpEventSubscriber.class);
     String hostAddress = "10.1.1.1";
 
     @Test
@@ -62,10 +70,83 @@ public class WemoInsightConnectorTest extends HomeglueTests {
         assertEquals(ContentType.TEXT_XML, contentType.getValue());
     }
 
+    @Test
+    public void pollPeriodAdapts() throws IOException {
+        WemoInsightConnector connector = connectedConnector(45678);
+        when(httpClient.post(any(),any(),any(),any()))
+                .thenReturn(ResourceHelper.resourceAsString("net/forlevity/homeglue/sim/insightparams_response.xml"));
+        assertTrue(connector.poll());
+        assertEquals(2500, connector.getPollPeriodMillis());
+        // flat readings, no appliance detector: back off to ceiling
+        for (int expected : new int[] {5000, 10000, 20000, 30000, 30000}) {
+            assertTrue(connector.poll());
+            assertEquals(expected, connector.getPollPeriodMillis());
+        }
+        // reading near appliance threshold: poll fast
+        when(stateProcessor.getApplianceThreshold(anyInt())).thenReturn(4.0);
+        assertTrue(connector.poll());
+        assertEquals(2500, connector.getPollPeriodMillis());
+        when(stateProcessor.getApplianceThreshold(anyInt())).thenReturn(Double.NaN);
+        assertTrue(connector.poll());
+        assertEquals(5000, connector.getPollPeriodMillis());
+        // failed poll: poll fast
+        when(httpClient.post(any(),any(),any(),any())).thenThrow(new IOException("no route to host"));
+        assertFalse(connector.poll());
+        assertEquals(2500, connector.getPollPeriodMillis());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void eventsReplacePolling() throws IOException {
+        UpnpEventSubscriber.Subscription subscription = mock(UpnpEventSubscriber.Subscription.class);
+        when(subscription.isActive()).thenReturn(true);
+        when(eventSubscriber.subscribe(any(), any())).thenReturn(subscription);
+        WemoInsightConnector connector = connectedConnector(45678, true);
+        ArgumentCaptor<String> eventUrl = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<UpnpEventSubscriber.Listener> listener = ArgumentCaptor.forClass(UpnpEventSubscriber.Listener.class);
+        verify(eventSubscriber, times(2)).subscribe(eventUrl.capture(), listener.capture());
+        assertEquals(String.format("http://%s:45678/upnp/event/basicevent1", hostAddress), eventUrl.getAllValues().get(0));
+        assertEquals(String.format("http://%s:45678/upnp/event/insight1", hostAddress), eventUrl.getAllValues().get(1));
+        assertTrue(connector.isEventDriven());
+
+        // events are passed on as device state, and polls are skipped while they are arriving
+        listener.getValue().event(ImmutableMap.of("InsightParams", "8|1526997105|27829|24703|130320|426068|10|4155|5501513|23446319.000000|6000"));
+        listener.getAllValues().get(0).event(ImmutableMap.of("BinaryState", "0"));
+        ArgumentCaptor<DeviceState> state = ArgumentCaptor.forClass(DeviceState.class);
+        verify(stateConsumer, times(2)).accept(state.capture());
+        assertEquals(4.155, state.getAllValues().get(0).getWatts(), 0.001);
+        assertTrue(state.getAllValues().get(0).isRelayClosed());
+        assertFalse(state.getAllValues().get(1).hasWatts());
+        assertFalse(state.getAllValues().get(1).isRelayClosed());
+        assertTrue(connector.poll());
+        verify(httpClient, never()).post(any(), any(), any(), any());
+
+        // subscription lapsed: poll again
+        when(subscription.isActive()).thenReturn(false);
+        listener.getValue().lapsed();
+        assertFalse(connector.isEventDriven());
+        assertEquals(2500, connector.getPollPeriodMillis());
+        when(httpClient.post(any(),any(),any(),any()))
+                .thenReturn(ResourceHelper.resourceAsString("net/forlevity/homeglue/sim/insightparams_response.xml"));
+        assertTrue(connector.poll());
+        verify(httpClient).post(any(), any(), any(), any());
+
+        connector.terminate();
+        verify(subscription, times(2)).close();
+    }
+
     private WemoInsightConnector connectedConnector(int port) throws IOException {
-        httpClient = mock(SimpleHttpClient.class);
+        return connectedConnector(port, false);
+    }
+
+    private WemoInsightConnector connectedConnector(int port, boolean eventsEnabled) throws IOException {
+        httpClient = mock(SimpleHttpClient.class, CALLS_REAL_METHODS); // async methods call sync ones
+        stateProcessor = mock(DeviceStateProcessorService.class);
+        stateConsumer = mock(DeviceStateProcessorService.class);
+        when(stateProcessor.getApplianceThreshold(anyInt())).thenReturn(Double.NaN);
         SoapHelper soapHelper = new SoapHelper(httpClient);
-        WemoInsightConnector connector = new WemoInsightConnector(soapHelper, mock(DeviceConnectorInstances.class), mock(DeviceStateProcessorService.class), mock(OfflineMarkerService.class), hostAddress, port, mock(ScheduledExecutorService.class));
+        WemoInsightConnector connector = new WemoInsightConnector(soapHelper, mock(DeviceConnectorInstances.class), stateConsumer, mock(OfflineMarkerService.class), hostAddress, port, mock(ScheduledExecutorService.class), mock(TimerWheel.class),
+                new DeviceHandles(), stateProcessor, new PollPhaser(PollPhaser.Mode.SPREAD), eventSubscriber, 2500, 30000, 3000, eventsEnabled);
         when(httpClient.get(any())).thenReturn(ResourceHelper.resourceAsString("net/forlevity/homeglue/sim/insight1_setup.xml"));
         log.info("before connecting: {}", connector);
         assertTrue(connector.start());
@@ -8,14 +8,19 @@ package net.forlevity.homeglue.device.wemo;
 
 import lombok.extern.log4j.Log4j2;
 import net.forlevity.homeglue.device.DeviceConnectorInstances;
+import net.forlevity.homeglue.device.DeviceHandles;
+import net.forlevity.homeglue.device.DeviceStateProcessorService;
 import net.forlevity.homeglue.device.LastDeviceStateCache;
 import net.forlevity.homeglue.device.OfflineMarkerService;
+import net.forlevity.homeglue.device.PollPhaser;
 import net.forlevity.homeglue.device.SoapHelper;
 import net.forlevity.homeglue.persistence.PersistenceService;
 import net.forlevity.homeglue.sim.SimulatedNetwork;
 import net.forlevity.homeglue.sim.SimulatedWemo;
 import net.forlevity.homeglue.testing.SimulatedNetworkTests;
 import net.forlevity.homeglue.upnp.SsdpDiscoveryService;
+import net.forlevity.homeglue.upnp.UpnpEventSubscriber;
+import net.forlevity.homeglue.util.TimerWheel;
 import org.junit.jupiter.api.Test;
 
 import java.time.Instant;
@@ -64,12 +69,14 @@ public class WemoInsightManagerServiceTest extends SimulatedNetworkTests {
         SoapHelper soapHelper = new SoapHelper(network);
         telemetryCache = new LastDeviceStateCache();
         WemoInsightConnectorFactory factory = (hostAddress, port) -> new WemoInsightConnector(soapHelper,
-                mock(DeviceConnectorInstances.class), telemetryCache, mock(OfflineMarkerService.class), hostAddress, port, mock(ScheduledExecutorService.class)
+                mock(DeviceConnectorInstances.class), telemetryCache, mock(OfflineMarkerService.class), hostAddress, port, mock(ScheduledExecutorService.class), mock(TimerWheel.class),
+                new DeviceHandles(), mock(DeviceStateProcessorService.class),
+                new PollPhaser(PollPhaser.Mode.SPREAD), mock(UpnpEventSubscriber.class), 2500, 30000, 3000, false
         );
         ssdp = new SsdpDiscoveryService(network);
         PersistenceService persistence = mock(PersistenceService.class);
         when(persistence.exec(any())).thenReturn(new ArrayList<>());
-        manager = new WemoInsightManagerService(null, ssdp, factory, 2500);
+        manager = new WemoInsightManagerService(null, ssdp, factory);
     }
 
     @Test
@@ -89,6 +96,7 @@ public class WemoInsightManagerServiceTest extends SimulatedNetworkTests {
         Instant lastTelemetryTime = telemetryCache.lastDeviceState.get(macAddress).getTimestamp();
 
         // timestamp changes because successful poll
+        Thread.sleep(5); // clock resolution may be 1 ms
         assertTrue(device.poll());
         Instant newTelemetryTime = telemetryCache.lastDeviceState.get(macAddress).getTimestamp();
         assertNotEquals(lastTelemetryTime, newTelemetryTime);
@@ -106,6 +114,7 @@ public class WemoInsightManagerServiceTest extends SimulatedNetworkTests {
         assertEquals(3000, device.getPort());
 
         // next poll works and telemetry timestamp changes
+        Thread.sleep(5);
         assertTrue(device.poll());
         newTelemetryTime = telemetryCache.lastDeviceState.get(macAddress).getTimestamp();
         assertNotEquals(lastTelemetryTime, newTelemetryTime);
@@ -0,0 +1,213 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.http;
+
+import com.google.common.collect.ImmutableMap;
+import com.sun.net.httpserver.HttpServer;
+import net.forlevity.homeglue.testing.HomeglueTests;
+import net.forlevity.homeglue.util.Xml;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.entity.ContentType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SimpleHttpClientImplTest extends HomeglueTests {
+
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger peakRunning = new AtomicInteger();
+    private final AtomicInteger slowRequests = new AtomicInteger();
+    private final ExecutorService serverThreads = Executors.newFixedThreadPool(10);
+    private final List<SimpleHttpClientImpl> clients = new ArrayList<>();
+    private HttpServer server;
+    private String url;
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            peakRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+            byte[] response = "ok".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(response);
+            }
+        });
+        server.createContext("/slow", exchange -> {
+            slowRequests.incrementAndGet();
+            try {
+                Thread.sleep(3000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.createContext("/xml", exchange -> {
+            StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?><r><a>caf\u00e9</a>");
+            for (int ix = 0; ix < 10000; ix++) {
+                xml.append("<b>").append(ix).append("</b>");
+            }
+            byte[] response = xml.append("</r>").toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/xml; charset=\"utf-8\"");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(response);
+            }
+        });
+        server.createContext("/error", exchange -> {
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+        });
+        server.createContext("/ping", exchange -> {
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        server.setExecutor(serverThreads);
+        server.start();
+        url = String.format("http://%s:%d/upnp/control/insight1",
+                server.getAddress().getHostString(), server.getAddress().getPort());
+    }
+
+    @AfterEach
+    public void stopServer() {
+        clients.forEach(SimpleHttpClientImpl::close);
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    private SimpleHttpClient newClient(int connectTimeoutMillis, int socketTimeoutMillis, int maxConnections,
+                                       int maxPerHost, int keepAliveMillis, int threads) {
+        SimpleHttpClientImpl client = new SimpleHttpClientImpl(connectTimeoutMillis, socketTimeoutMillis,
+                maxConnections, maxPerHost, keepAliveMillis, threads);
+        clients.add(client);
+        return client;
+    }
+
+    @Test
+    public void asyncRequestsAreCappedPerHostAndKeptAlive()
+            throws InterruptedException, ExecutionException, TimeoutException {
+        SimpleHttpClient client = newClient(1000, 2000, 20, 2, 30000, 8);
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int ix = 0; ix < 10; ix++) {
+            results.add(client.postAsync(url, null, "<x/>", ContentType.TEXT_XML));
+        }
+        HttpPoolMetrics.Host busy = client.getPoolMetrics().getHosts().values().iterator().next();
+        assertTrue(busy.getQueued() > 0);
+        for (CompletableFuture<String> result : results) {
+            assertEquals("ok", result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(2, peakRunning.get());
+
+        HttpPoolMetrics metrics = client.getPoolMetrics();
+        assertEquals(0, metrics.getLeased());
+        assertEquals(2, metrics.getAvailable()); // connections kept alive for next time
+        HttpPoolMetrics.Host host = metrics.getHosts().values().iterator().next();
+        assertEquals(0, host.getActive());
+        assertEquals(0, host.getQueued());
+        assertEquals(10, host.getCompleted());
+        assertEquals(2, host.getAvailable());
+    }
+
+    @Test
+    public void asyncFailure() {
+        SimpleHttpClient client = newClient(1000, 2000, 20, 2, 30000, 8);
+        server.stop(0);
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> client.getAsync(url).get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IOException);
+    }
+
+    @Test
+    public void cancelAbortsRequest() throws Exception {
+        SimpleHttpClient client = newClient(1000, 5000, 20, 1, 30000, 8);
+        String slowUrl = String.format("http://%s:%d/slow",
+                server.getAddress().getHostString(), server.getAddress().getPort());
+        CompletableFuture<String> slow = client.getAsync(slowUrl);
+        CompletableFuture<String> queued = client.getAsync(slowUrl);
+        while (slowRequests.get() == 0) {
+            Thread.sleep(10);
+        }
+        // cancelling frees the host's only slot right away, and a request that has not started is never sent
+        long start = System.nanoTime();
+        assertTrue(queued.cancel(true));
+        assertTrue(slow.cancel(true));
+        assertEquals("ok", client.getAsync(url).get(2, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+        assertEquals(1, slowRequests.get());
+    }
+
+    @Test
+    public void responsesAreParsedFromStream() throws Exception {
+        SimpleHttpClient client = newClient(1000, 2000, 20, 1, 30000, 8);
+        String base = String.format("http://%s:%d", server.getAddress().getHostString(), server.getAddress().getPort());
+        Xml xml = new Xml();
+        ResponseParser<Map<String, String>> parser = (body, charset) -> {
+            assertEquals(StandardCharsets.UTF_8, charset);
+            return xml.extract(body, charset, "a");
+        };
+
+        // parser stops early, rest of body is drained so the connection is reused
+        assertEquals("caf\u00e9", client.get(base + "/xml", parser).get("a"));
+        assertEquals("caf\u00e9", client.postBytesAsync(base + "/xml", null, "<x/>".getBytes(StandardCharsets.UTF_8),
+                ContentType.TEXT_XML, parser).get(5, TimeUnit.SECONDS).get("a"));
+        assertEquals(1, client.getPoolMetrics().getAvailable());
+
+        // error status is not parsed
+        assertThrows(HttpResponseException.class, () -> client.get(base + "/error", (body, charset) -> {
+            fail("should not parse error response");
+            return null;
+        }));
+    }
+
+    @Test
+    public void headAsyncReportsStatus() throws Exception {
+        SimpleHttpClient client = newClient(1000, 2000, 20, 2, 30000, 8);
+        String base = String.format("http://%s:%d", server.getAddress().getHostString(), server.getAddress().getPort());
+        assertNull(client.headAsync(base + "/ping").get(5, TimeUnit.SECONDS));
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> client.headAsync(base + "/error").get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof HttpResponseException);
+        assertEquals(500, ((HttpResponseException) e.getCause()).getStatusCode());
+    }
+
+    @Test
+    public void sendAsyncAnyMethod() throws Exception {
+        String base = String.format("http://%s:%d", server.getAddress().getHostString(), server.getAddress().getPort());
+        Map<String, String> headers = newClient(1000, 2000, 20, 2, 30000, 8)
+                .sendAsync("SUBSCRIBE", base + "/ping", ImmutableMap.of("NT", "upnp:event"), null, null)
+                .get(5, TimeUnit.SECONDS);
+        assertNotNull(headers.get("date")); // names in lower case
+        ExecutionException e = assertThrows(ExecutionException.class, () -> newClient(1000, 2000, 20, 2, 30000, 8)
+                .sendAsync("UNSUBSCRIBE", base + "/error", null, null, null).get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof HttpResponseException);
+    }
+}
@@ -7,7 +7,9 @@
 package net.forlevity.homeglue.persistence;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.ServiceManager;
+import net.forlevity.homeglue.device.DeviceModelService;
 import net.forlevity.homeglue.device.DeviceState;
 import net.forlevity.homeglue.entity.Device;
 import net.forlevity.homeglue.testing.IntegrationTests;
@@ -15,6 +17,8 @@ import org.hibernate.Session;
 import org.junit.jupiter.api.Test;
 
 import java.util.Collections;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 
 import static org.junit.jupiter.api.Assertions.assertFalse;
@@ -46,5 +50,23 @@ public class PersistenceTest extends IntegrationTests {
         // one of these tests fails if the database is not erased between tests
     }
 
+    @Test
+    public void changedDevicesAreWrittenBeforePersistenceStops() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        DeviceModelService deviceModel = new DeviceModelService(persistence, executor, 60000);
+        ServiceManager serviceManager = new ServiceManager(ImmutableList.of(persistence, deviceModel));
+        serviceManager.startAsync().awaitHealthy();
+        String detectionId = "mydevice";
+        deviceModel.update(detectionId, device -> Device.from(new DeviceState(detectionId, ImmutableMap.of())));
+
+        // runs after the device model's final flush, while persistence still accepts work
+        AtomicBoolean saved = new AtomicBoolean();
+        persistence.beforeShutdown(() -> saved.set(persistence.exec(
+                session -> null != session.bySimpleNaturalId(Device.class).load(detectionId))));
+        serviceManager.stopAsync().awaitStopped();
+        executor.shutdown();
+        assertTrue(saved.get());
+    }
+
     // TODO: test error handling: exception in work unit, exception while committing
 }
\ No newline at end of file
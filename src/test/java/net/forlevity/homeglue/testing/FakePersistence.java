@@ -15,6 +15,8 @@ import org.hibernate.Session;
 import org.hibernate.SimpleNaturalIdLoadAccess;
 
 import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Function;
 
 import static org.mockito.ArgumentMatchers.any;
@@ -34,6 +36,8 @@ public class FakePersistence extends AbstractIdleService implements PersistenceS
     @Setter
     private Function<Serializable, Object> resolver = clazz -> null;
 
+    private final List<Runnable> shutdownTasks = new CopyOnWriteArrayList<>();
+
     @SuppressWarnings({"unchecked","rawtypes"})
     public FakePersistence() {
         session = mock(Session.class);
@@ -56,11 +60,17 @@ public class FakePersistence extends AbstractIdleService implements PersistenceS
         return entity;
     }
 
+    @Override
+    public void beforeShutdown(Runnable task) {
+        shutdownTasks.add(task);
+    }
+
     @Override
     protected void startUp() throws Exception {
     }
 
     @Override
     protected void shutDown() throws Exception {
+        shutdownTasks.forEach(Runnable::run);
     }
 }
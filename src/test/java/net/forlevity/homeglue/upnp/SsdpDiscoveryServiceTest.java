@@ -6,13 +6,16 @@
 
 package net.forlevity.homeglue.upnp;
 
+import com.google.common.collect.ImmutableList;
 import net.forlevity.homeglue.sim.SimulatedNetwork;
 import net.forlevity.homeglue.sim.SimulatedUpnpDevice;
 import net.forlevity.homeglue.sim.UpnpServiceInfo;
 import net.forlevity.homeglue.testing.LinkedUniqueQueue;
 import net.forlevity.homeglue.testing.SimulatedNetworkTests;
+import org.apache.http.client.HttpResponseException;
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Collection;
@@ -22,6 +25,14 @@ import java.util.concurrent.LinkedBlockingQueue;
 import static net.forlevity.homeglue.upnp.SsdpSearcher.ROOT_DEVICE_SERVICE_TYPE;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doCallRealMethod;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 public class SsdpDiscoveryServiceTest extends SimulatedNetworkTests {
 
@@ -70,4 +81,75 @@ public class SsdpDiscoveryServiceTest extends SimulatedNetworkTests {
         assertEquals("urn:x", queueUsn3.take().getServiceType());
         assertEquals(2, queueOtherRootDevices.size());
     }
+
+    @Test
+    public void knownServicesAreRefreshedBetweenSweeps() throws IOException, InterruptedException {
+        InetAddress remoteIp = InetAddress.getByName("10.1.2.3");
+        Collection<UpnpServiceInfo> services = Collections.singleton(new UpnpServiceInfo(ROOT_DEVICE_SERVICE_TYPE, "uuid:1"));
+        SimulatedUpnpDevice device = new SimulatedUpnpDevice(remoteIp, 9000, services);
+        SimulatedNetwork network = spy(new SimulatedNetwork(Collections.singleton(device)));
+        SsdpDiscoveryService service = new SsdpDiscoveryService(network, network, 4);
+        LinkedBlockingQueue<SsdpServiceDefinition> queue = new LinkedBlockingQueue<>();
+        service.registerSsdp(candidate -> true, queue::offer, 0);
+
+        // first scan is a multicast sweep (root device, then all)
+        service.runOnce();
+        verify(network, times(2)).startDiscovery(any(), any());
+        assertEquals(2, queue.size());
+        queue.clear();
+
+        // next scans only probe the known location, device still found though it stopped answering multicast
+        device.setServices(Collections.emptyList());
+        service.runOnce();
+        verify(network, times(2)).startDiscovery(any(), any());
+        assertEquals(1, queue.size());
+        assertEquals("uuid:1", queue.take().getSerialNumber());
+
+        // device answers the probe with an error status: still there
+        doThrow(new HttpResponseException(405, "Method Not Allowed")).when(network)
+                .send(eq("HEAD"), any(), any(), any(), any());
+        service.runOnce();
+        assertEquals(1, queue.size());
+        queue.clear();
+        doCallRealMethod().when(network).send(any(), any(), any(), any(), any());
+
+        // device moved: probe fails, device is not reported
+        device.setWebPort(9001);
+        service.runOnce();
+        verify(network, times(2)).startDiscovery(any(), any());
+        assertTrue(queue.isEmpty());
+
+        // nothing known, so next scan is a multicast sweep
+        device.setServices(services);
+        service.runOnce();
+        verify(network, times(4)).startDiscovery(any(), any());
+        assertEquals(2, queue.size());
+        assertTrue(queue.take().getLocation().contains(":9001/"));
+    }
+
+    @Test
+    public void missingDeviceForcesSweep() throws IOException, InterruptedException {
+        SimulatedUpnpDevice moving = new SimulatedUpnpDevice(InetAddress.getByName("10.1.2.3"), 9000,
+                Collections.singleton(new UpnpServiceInfo(ROOT_DEVICE_SERVICE_TYPE, "uuid:1")));
+        SimulatedUpnpDevice staying = new SimulatedUpnpDevice(InetAddress.getByName("10.1.2.4"), 9000,
+                Collections.singleton(new UpnpServiceInfo(ROOT_DEVICE_SERVICE_TYPE, "uuid:2")));
+        SimulatedNetwork network = spy(new SimulatedNetwork(ImmutableList.of(moving, staying)));
+        SsdpDiscoveryService service = new SsdpDiscoveryService(network, network, 10);
+        LinkedBlockingQueue<SsdpServiceDefinition> queue = new LinkedBlockingQueue<>();
+        service.registerSsdp(candidate -> true, queue::offer, 0);
+        service.runOnce(); // sweep
+        service.runOnce(); // refresh
+        verify(network, times(2)).startDiscovery(any(), any());
+
+        // one device moved: the other is still refreshed, and the next scan is a sweep that finds the moved one
+        moving.setWebPort(9001);
+        queue.clear();
+        service.runOnce();
+        verify(network, times(2)).startDiscovery(any(), any());
+        assertEquals(1, queue.size());
+        assertEquals("uuid:2", queue.take().getSerialNumber());
+        service.runOnce();
+        verify(network, times(4)).startDiscovery(any(), any());
+        assertTrue(queue.stream().anyMatch(found -> found.getLocation().contains(":9001/")));
+    }
 }
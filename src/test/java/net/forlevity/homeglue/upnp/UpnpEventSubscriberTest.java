@@ -0,0 +1,133 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.upnp;
+
+import com.google.common.collect.ImmutableList;
+import net.forlevity.homeglue.http.SimpleHttpClient;
+import net.forlevity.homeglue.sim.SimulatedNetwork;
+import net.forlevity.homeglue.sim.SimulatedWemo;
+import net.forlevity.homeglue.testing.HomeglueTests;
+import net.forlevity.homeglue.util.TimerWheel;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class UpnpEventSubscriberTest extends HomeglueTests {
+
+    private static final String PARAMS_1 = "8|1526997105|27829|24703|130320|426068|10|4155|5501513|23446319.000000|6000";
+    private static final String PARAMS_2 = "1|1526997105|27829|24703|130320|426068|10|64000|5501513|23446319.000000|6000";
+
+    private final List<Map<String, String>> events = new ArrayList<>();
+    private int lapses = 0;
+
+    private final UpnpEventSubscriber.Listener listener = new UpnpEventSubscriber.Listener() {
+        @Override
+        public void event(Map<String, String> properties) {
+            events.add(properties);
+        }
+
+        @Override
+        public void lapsed() {
+            lapses++;
+        }
+    };
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void subscribeRenewAndClose() throws Exception {
+        SimulatedWemo wemo = new SimulatedWemo(InetAddress.getByName("10.0.0.9"), 49153,
+                "net/forlevity/homeglue/sim/insight1_setup.xml");
+        SimulatedNetwork network = new SimulatedNetwork(ImmutableList.of(wemo));
+        TimerWheel timer = mock(TimerWheel.class);
+        when(timer.schedule(any(), eq(0L), any())).thenAnswer(invocation -> { // first attempt runs right away
+            invocation.<Runnable>getArgument(0).run();
+            return null;
+        });
+        UpnpEventSubscriber subscriber = new UpnpEventSubscriber(network, timer, 8081, "127.0.0.1", 300, 60);
+        // deliver simulated device's NOTIFY requests straight to subscriber, like UpnpEventResource
+        SimpleHttpClient eventClient = mock(SimpleHttpClient.class);
+        when(eventClient.send(eq("NOTIFY"), any(), any(), any(), any())).thenAnswer(invocation -> {
+            String url = invocation.getArgument(1);
+            assertTrue(url.startsWith("http://127.0.0.1:8081" + UpnpEventSubscriber.CALLBACK_PATH));
+            String token = url.substring(url.lastIndexOf('/') + 1);
+            Map<String, String> headers = invocation.getArgument(2);
+            assertTrue(subscriber.handleNotify(token, headers.get("SID"), invocation.getArgument(3)));
+            return Collections.emptyMap();
+        });
+        wemo.setEventClient(eventClient);
+
+        // subscribing gets initial state
+        UpnpEventSubscriber.Subscription subscription =
+                subscriber.subscribe("http://10.0.0.9:49153/upnp/event/insight1", listener);
+        verify(timer).schedule(any(), eq(0L), eq(TimeUnit.SECONDS));
+        assertTrue(subscription.isActive());
+        assertEquals(1, wemo.getSubscriberCount());
+        assertEquals(1, events.size());
+        assertEquals(PARAMS_1, events.get(0).get("InsightParams"));
+
+        // change is pushed
+        wemo.setInsightParams(PARAMS_2);
+        assertEquals(2, events.size());
+        assertEquals(PARAMS_2, events.get(1).get("InsightParams"));
+
+        // renewal keeps the subscription
+        subscription.renew();
+        assertTrue(subscription.isActive());
+        assertEquals(1, wemo.getSubscriberCount());
+        assertEquals(2, events.size());
+
+        // device forgot subscription: subscribe again
+        wemo.clearSubscriptions();
+        subscription.renew();
+        assertTrue(subscription.isActive());
+        assertEquals(1, wemo.getSubscriberCount());
+        assertEquals(3, events.size());
+        assertEquals(0, lapses);
+
+        // device unreachable: lapsed
+        wemo.clearSubscriptions();
+        wemo.setWebPort(49154);
+        subscription.renew();
+        assertFalse(subscription.isActive());
+        assertEquals(1, lapses);
+
+        // device back: subscribe again
+        wemo.setWebPort(49153);
+        subscription.renew();
+        assertTrue(subscription.isActive());
+        assertEquals(4, events.size());
+
+        // close unsubscribes, later notifications are refused
+        subscription.close();
+        assertFalse(subscription.isActive());
+        assertEquals(0, wemo.getSubscriberCount());
+        assertFalse(subscriber.handleNotify("x", "uuid:x", "<e:propertyset/>"));
+    }
+
+    @Test
+    public void parseProperties() {
+        UpnpEventSubscriber subscriber = new UpnpEventSubscriber(mock(SimpleHttpClient.class),
+                mock(TimerWheel.class), 8081, "", 300, 60);
+        Map<String, String> properties = subscriber.parseProperties(
+                "<e:propertyset xmlns:e=\"urn:schemas-upnp-org:event-1-0\">"
+                        + "<e:property><BinaryState>1</BinaryState></e:property>\n"
+                        + "<e:property><Brightness>50</Brightness></e:property></e:propertyset>");
+        assertEquals(2, properties.size());
+        assertEquals("1", properties.get("BinaryState"));
+        assertEquals("50", properties.get("Brightness"));
+        assertTrue(subscriber.parseProperties("not xml").isEmpty());
+    }
+}
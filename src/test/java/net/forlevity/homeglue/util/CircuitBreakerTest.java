@@ -0,0 +1,87 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.util;
+
+import net.forlevity.homeglue.testing.HomeglueTests;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CircuitBreakerTest extends HomeglueTests {
+
+    private long nowNanos = 0;
+
+    @Test
+    public void opensProbesAndBacksOff() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 3, 1000, 3000, () -> nowNanos);
+        // failures below threshold, or interrupted by success, keep it closed
+        fail(breaker, 2);
+        assertTrue(breaker.tryAcquire());
+        breaker.success();
+        fail(breaker, 2);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        // third consecutive failure opens
+        fail(breaker, 1);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+        advance(999);
+        assertFalse(breaker.tryAcquire());
+
+        // one probe after open period, failed probe doubles open period
+        advance(1);
+        assertTrue(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+        breaker.failure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(2000, breaker.snapshot().getOpenMillis());
+        advance(1999);
+        assertFalse(breaker.tryAcquire());
+        advance(1);
+        assertTrue(breaker.tryAcquire());
+        breaker.failure();
+        assertEquals(3000, breaker.snapshot().getOpenMillis()); // max
+
+        // successful probe closes and resets
+        advance(3000);
+        assertTrue(breaker.tryAcquire());
+        breaker.success();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        CircuitBreaker.Snapshot snapshot = breaker.snapshot();
+        assertEquals(1000, snapshot.getOpenMillis());
+        assertEquals(0, snapshot.getConsecutiveFailures());
+        assertEquals(3, snapshot.getOpened());
+        assertEquals(3, snapshot.getProbes());
+        assertEquals(4, snapshot.getRejected());
+    }
+
+    @Test
+    public void lostProbeIsRetried() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, 1000, 1000, () -> nowNanos);
+        fail(breaker, 1);
+        advance(1000);
+        assertTrue(breaker.tryAcquire()); // outcome never reported
+        advance(999);
+        assertFalse(breaker.tryAcquire());
+        advance(1);
+        assertTrue(breaker.tryAcquire());
+    }
+
+    private void fail(CircuitBreaker breaker, int times) {
+        for (int ix = 0; ix < times; ix++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.failure();
+        }
+    }
+
+    private void advance(long millis) {
+        nowNanos += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
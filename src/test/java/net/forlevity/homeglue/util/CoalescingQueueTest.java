@@ -0,0 +1,114 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.util;
+
+import com.google.common.collect.ImmutableList;
+import net.forlevity.homeglue.testing.HomeglueTests;
+import net.forlevity.homeglue.util.CoalescingQueue.OverflowPolicy;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CoalescingQueueTest extends HomeglueTests {
+
+    /**
+     * Queue of strings keyed by first character. A pending string can be replaced by a newer one unless it ends in "!".
+     */
+    private static CoalescingQueue<String> queue(int capacity, OverflowPolicy overflowPolicy) {
+        return new CoalescingQueue<>(item -> item.charAt(0),
+                (pending, newer) -> !pending.endsWith("!"), capacity, overflowPolicy);
+    }
+
+    private static List<String> drain(CoalescingQueue<String> queue) {
+        List<String> items = new ArrayList<>();
+        queue.drainTo(items);
+        return items;
+    }
+
+    @Test
+    public void coalescesNewestPerKey() {
+        CoalescingQueue<String> queue = queue(10, OverflowPolicy.BLOCK);
+        queue.offer("a1");
+        queue.offer("b1");
+        queue.offer("a2");
+        queue.offer("a3!");
+        queue.offer("a4");
+        queue.offer("b2");
+        assertEquals(ImmutableList.of("a3!", "b2", "a4"), drain(queue));
+        assertEquals(3, queue.getCoalesced());
+        assertEquals(0, queue.getDropped());
+
+        // dequeued items are no longer coalesced
+        queue.offer("a5");
+        assertEquals("a5", queue.poll());
+        queue.offer("a6");
+        assertEquals(ImmutableList.of("a6"), drain(queue));
+    }
+
+    @Test
+    public void overflowPolicies() throws InterruptedException {
+        CoalescingQueue<String> dropNewest = queue(2, OverflowPolicy.DROP_NEWEST);
+        assertTrue(dropNewest.offer("a!"));
+        assertTrue(dropNewest.offer("b"));
+        assertFalse(dropNewest.offer("c"));
+        assertTrue(dropNewest.offer("b2")); // still coalesced when full
+        assertEquals(ImmutableList.of("a!", "b2"), drain(dropNewest));
+        assertEquals(1, dropNewest.getDropped());
+
+        CoalescingQueue<String> dropOldest = queue(2, OverflowPolicy.DROP_OLDEST);
+        dropOldest.put("a");
+        dropOldest.put("b");
+        dropOldest.put("c");
+        assertEquals(ImmutableList.of("b", "c"), drain(dropOldest));
+        assertEquals(1, dropOldest.getDropped());
+
+        CoalescingQueue<String> block = queue(1, OverflowPolicy.BLOCK);
+        block.put("a");
+        assertFalse(block.offer("b"));
+        assertFalse(block.offer("b", 10, TimeUnit.MILLISECONDS));
+        Thread consumer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+                block.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        consumer.start();
+        block.put("b"); // waits for consumer
+        consumer.join();
+        assertEquals(ImmutableList.of("b"), drain(block));
+        assertEquals(0, block.getDropped());
+    }
+
+    @Test
+    public void spillKeepsOrder() throws InterruptedException {
+        CoalescingQueue<String> spill = new CoalescingQueue<>(item -> item.charAt(0),
+                (pending, newer) -> !pending.endsWith("!"), 2, OverflowPolicy.SPILL,
+                new SpillFile<>(String.class, "test"));
+        spill.put("a1");
+        spill.put("b1");
+        spill.put("c1"); // full, spilled
+        spill.put("a2"); // not coalesced while anything is spilled
+        assertEquals(4, spill.size());
+        assertEquals(2, spill.getSpilled());
+        assertEquals("a1", spill.take());
+        assertEquals(ImmutableList.of("b1", "c1", "a2"), drain(spill));
+        assertEquals(0, spill.size());
+
+        // back in memory when spill has been read
+        spill.put("a3");
+        spill.put("a4");
+        assertEquals(ImmutableList.of("a4"), drain(spill));
+        assertEquals(2, spill.getSpilled());
+        assertEquals(0, spill.getDropped());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.util;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import net.forlevity.homeglue.device.DeviceEvent;
+import net.forlevity.homeglue.device.DeviceState;
+import net.forlevity.homeglue.entity.Device;
+import net.forlevity.homeglue.testing.HomeglueTests;
+import net.forlevity.homeglue.util.CoalescingQueue.OverflowPolicy;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FanoutExchangeTest extends HomeglueTests {
+
+    private static class FastSink implements Consumer<DeviceEvent> {
+        final List<String> received = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void accept(DeviceEvent event) {
+            received.add(event.getEvent());
+        }
+    }
+
+    private static class StuckSink implements Consumer<DeviceEvent> {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> received = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void accept(DeviceEvent event) {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            received.add(event.getEvent());
+        }
+    }
+
+    private static DeviceEvent event(int ix) {
+        return new DeviceEvent(Device.from(new DeviceState("dev")), "event" + ix);
+    }
+
+    private static List<String> events(int from, int to) {
+        return IntStream.range(from, to).mapToObj(ix -> "event" + ix).collect(Collectors.toList());
+    }
+
+    private static void awaitSize(List<?> list, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (list.size() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(size, list.size());
+    }
+
+    @Test
+    public void slowSinkDoesNotStallOthers() throws InterruptedException {
+        FastSink fast = new FastSink();
+        StuckSink stuck = new StuckSink();
+        Set<Consumer<DeviceEvent>> sinks = ImmutableSet.of(fast, stuck);
+        FanoutExchange<DeviceEvent> exchange = new FanoutExchange<>(DeviceEvent.class, sinks, 5,
+                sink -> sink == stuck ? OverflowPolicy.DROP_OLDEST : OverflowPolicy.BLOCK);
+        exchange.startAsync().awaitRunning();
+        FanoutExchange.Sink<DeviceEvent> stuckMetrics = exchange.getAsyncSinks().get(1);
+        exchange.accept(event(0));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (stuckMetrics.getMetrics().getDequeued() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10); // wait for stuck sink to start handling first event
+        }
+        for (int ix = 1; ix < 20; ix++) {
+            exchange.accept(event(ix)); // would block forever if stuck sink held up delivery
+        }
+        awaitSize(fast.received, 20);
+        assertEquals(events(0, 20), fast.received);
+
+        stuck.release.countDown();
+        awaitSize(stuck.received, 6); // one was in progress when released, then 5 newest queued
+        assertEquals("event0", stuck.received.get(0));
+        assertEquals(events(15, 20), stuck.received.subList(1, 6));
+        assertEquals("StuckSink", stuckMetrics.getName());
+        assertEquals(14, stuckMetrics.getDropped());
+        assertEquals(6, stuckMetrics.getMetrics().getDequeued());
+        exchange.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    public void spillsToDisk() throws InterruptedException {
+        StuckSink stuck = new StuckSink();
+        FanoutExchange<DeviceEvent> exchange = new FanoutExchange<>(DeviceEvent.class, ImmutableSet.of(stuck), 3,
+                sink -> OverflowPolicy.SPILL);
+        exchange.startAsync().awaitRunning();
+        for (int ix = 0; ix < 10; ix++) {
+            exchange.accept(event(ix));
+        }
+        FanoutExchange.Sink<DeviceEvent> sink = exchange.getAsyncSinks().get(0);
+        assertTrue(sink.getSpilled() >= 6);
+        assertEquals(0, sink.getDropped());
+
+        stuck.release.countDown();
+        awaitSize(stuck.received, 10);
+        assertEquals(events(0, 10), stuck.received);
+        assertEquals(0, sink.getMetrics().getDepth());
+        exchange.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    public void synchronous() {
+        FastSink fast = new FastSink();
+        FanoutExchange<DeviceEvent> exchange = new FanoutExchange<>(ImmutableSet.of(fast));
+        exchange.accept(event(1));
+        assertEquals(ImmutableList.of("event1"), fast.received);
+        assertTrue(exchange.getAsyncSinks().isEmpty());
+    }
+
+    @Test
+    public void parsePolicies() {
+        assertEquals(ImmutableMap.of(), FanoutExchange.parsePolicies(""));
+        assertEquals(ImmutableMap.of("A", OverflowPolicy.BLOCK, "B", OverflowPolicy.DROP_NEWEST),
+                FanoutExchange.parsePolicies("A:BLOCK, B:DROP_NEWEST"));
+    }
+}
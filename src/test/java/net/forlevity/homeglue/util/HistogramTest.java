@@ -0,0 +1,34 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.util;
+
+import net.forlevity.homeglue.testing.HomeglueTests;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class HistogramTest extends HomeglueTests {
+
+    @Test
+    public void percentilesAreBucketUpperBounds() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.snapshot().getCount());
+        assertEquals(0, histogram.snapshot().getP99());
+
+        for (int value = 1; value <= 100; value++) {
+            histogram.record(value);
+        }
+        histogram.record(-5); // recorded as 0
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(101, snapshot.getCount());
+        assertEquals(50, snapshot.getMean());
+        assertEquals(100, snapshot.getMax());
+        assertEquals(63, snapshot.getP50()); // 51st value is 50, in bucket 32-63
+        assertEquals(100, snapshot.getP90()); // bucket 64-127, capped at max
+        assertEquals(100, snapshot.getP99());
+    }
+}
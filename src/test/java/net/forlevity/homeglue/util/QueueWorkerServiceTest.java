@@ -0,0 +1,166 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.util;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
+import net.forlevity.homeglue.testing.HomeglueTests;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class QueueWorkerServiceTest extends HomeglueTests {
+
+    private static final int KEYS = 10;
+    private static final int ITEMS_PER_KEY = 200;
+
+    /**
+     * Item with a key and a sequence number.
+     */
+    private static class Item {
+        final int key;
+        final int sequence;
+
+        Item(int key, int sequence) {
+            this.key = key;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Records the order in which items are handled, per key.
+     */
+    private static class RecordingService extends QueueWorkerService<Item> {
+        final Map<Integer, List<Integer>> handled = new ConcurrentHashMap<>();
+        final Map<String, Boolean> threads = new ConcurrentHashMap<>();
+        final List<Integer> batchSizes = new ArrayList<>();
+
+        RecordingService(int partitions) {
+            super(Item.class, ServiceDependencies.NONE, partitions, item -> item.key);
+        }
+
+        RecordingService(int maxBatchSize, long maxBatchWaitMillis) {
+            super(Item.class, ServiceDependencies.NONE, 1, item -> 0, maxBatchSize, maxBatchWaitMillis);
+        }
+
+        @Override
+        protected void handleBatch(List<Item> items) {
+            batchSizes.add(items.size());
+            super.handleBatch(items);
+        }
+
+        @Override
+        protected void handle(Item item) {
+            threads.put(Thread.currentThread().getName(), true);
+            handled.computeIfAbsent(item.key, key -> new ArrayList<>()).add(item.sequence);
+        }
+
+        int handledCount() {
+            return handled.values().stream().mapToInt(List::size).sum();
+        }
+    }
+
+    @Test
+    public void partitionedKeepsOrderPerKey() throws Exception {
+        RecordingService service = new RecordingService(4);
+        service.startAsync().awaitRunning();
+        for (int sequence = 0; sequence < ITEMS_PER_KEY; sequence++) {
+            for (int key = 0; key < KEYS; key++) {
+                service.accept(new Item(key, sequence));
+            }
+        }
+        long giveUp = System.currentTimeMillis() + 10000;
+        while (service.handledCount() < KEYS * ITEMS_PER_KEY && System.currentTimeMillis() < giveUp) {
+            Thread.sleep(10);
+        }
+        service.stopAsync().awaitTerminated(5, TimeUnit.SECONDS);
+
+        List<Integer> expected = IntStream.range(0, ITEMS_PER_KEY).boxed().collect(Collectors.toList());
+        for (int key = 0; key < KEYS; key++) {
+            assertEquals(expected, service.handled.get(key));
+        }
+        assertTrue(service.threads.size() > 1);
+    }
+
+    @Test
+    public void processQueueDrainsAllPartitions() throws Exception {
+        RecordingService service = new RecordingService(3);
+        for (int key = 0; key < KEYS; key++) {
+            service.accept(new Item(key, 0));
+        }
+        assertEquals(KEYS, service.getQueueSize());
+        service.processQueue();
+        assertEquals(0, service.getQueueSize());
+        assertEquals(KEYS, service.handledCount());
+    }
+
+    @Test
+    public void metrics() throws Exception {
+        RecordingService service = new RecordingService(1);
+        for (int sequence = 0; sequence < 5; sequence++) {
+            service.accept(new Item(0, sequence));
+        }
+        QueueMetrics metrics = service.getMetrics().get(0);
+        assertEquals(5, metrics.getEnqueued());
+        assertEquals(5, metrics.getDepth());
+        service.processQueue();
+        assertEquals(5, metrics.getDequeued());
+        assertEquals(0, metrics.getDepth());
+        assertEquals(5, metrics.getPeakDepth());
+        assertEquals(5, metrics.getHandlerMicros().snapshot().getCount());
+        assertEquals(0, metrics.getQueueMillis().snapshot().getCount()); // items are not Timestamped
+    }
+
+    @Test
+    public void metricsCountCoalescedAndDropped() {
+        QueueWorker<String> worker = new QueueWorker<>(String.class, item -> { }, new CoalescingQueue<>(
+                item -> item.charAt(0), (pending, newer) -> true, 2, CoalescingQueue.OverflowPolicy.DROP_NEWEST));
+        ImmutableList.of("a1", "a2", "b1", "c1").forEach(worker::accept);
+        QueueMetrics metrics = worker.getMetrics();
+        assertEquals(4, metrics.getEnqueued());
+        assertEquals(1, metrics.getCoalesced());
+        assertEquals(1, metrics.getDropped());
+        assertEquals(2, metrics.getDepth());
+        assertEquals(metrics.getDepth(), metrics.getEnqueued() - metrics.getCoalesced() - metrics.getDropped()
+                - metrics.getDequeued());
+    }
+
+    @Test
+    public void batchesUpToMaxSize() throws Exception {
+        RecordingService service = new RecordingService(4, 0);
+        for (int sequence = 0; sequence < 10; sequence++) {
+            service.accept(new Item(0, sequence));
+        }
+        service.processQueue();
+        assertEquals(ImmutableList.of(4, 4, 2), service.batchSizes);
+        assertEquals(IntStream.range(0, 10).boxed().collect(Collectors.toList()), service.handled.get(0));
+    }
+
+    @Test
+    public void batchWaitsForMoreItems() throws Exception {
+        RecordingService service = new RecordingService(3, 5000);
+        service.accept(new Item(0, 0));
+        Thread producer = new Thread(() -> {
+            Uninterruptibles.sleepUninterruptibly(50, TimeUnit.MILLISECONDS);
+            service.accept(new Item(0, 1));
+            service.accept(new Item(0, 2));
+        });
+        producer.start();
+        service.processQueue(); // returns as soon as the batch is full
+        producer.join();
+        assertEquals(ImmutableList.of(3), service.batchSizes);
+    }
+}
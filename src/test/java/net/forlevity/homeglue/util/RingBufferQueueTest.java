@@ -0,0 +1,94 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.util;
+
+import com.google.common.collect.ImmutableList;
+import net.forlevity.homeglue.testing.HomeglueTests;
+import net.forlevity.homeglue.util.RingBufferQueue.WaitStrategy;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RingBufferQueueTest extends HomeglueTests {
+
+    private static final int PRODUCERS = 4;
+    private static final int ITEMS_PER_PRODUCER = 20000;
+
+    @Test
+    public void boundedFifo() throws InterruptedException {
+        RingBufferQueue<String> queue = new RingBufferQueue<>(3, WaitStrategy.BLOCKING);
+        assertEquals(4, queue.capacity());
+        assertNull(queue.poll());
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+        for (String item : ImmutableList.of("a", "b", "c", "d")) {
+            assertTrue(queue.offer(item));
+        }
+        assertFalse(queue.offer("e"));
+        assertFalse(queue.offer("e", 10, TimeUnit.MILLISECONDS));
+        assertEquals(4, queue.size());
+        assertEquals("a", queue.peek());
+        assertEquals("a", queue.take());
+        assertTrue(queue.offer("e"));
+        List<String> items = new ArrayList<>();
+        assertEquals(2, queue.drainTo(items, 2));
+        assertEquals(ImmutableList.of("b", "c"), items);
+        assertEquals(ImmutableList.of("d", "e"), ImmutableList.copyOf(queue.iterator()));
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void concurrentProducersBlocking() throws InterruptedException {
+        concurrentProducers(WaitStrategy.BLOCKING);
+    }
+
+    @Test
+    public void concurrentProducersSleeping() throws InterruptedException {
+        concurrentProducers(WaitStrategy.SLEEPING);
+    }
+
+    @Test
+    public void concurrentProducersYielding() throws InterruptedException {
+        concurrentProducers(WaitStrategy.YIELDING);
+    }
+
+    /**
+     * Several producers put items through a small buffer, so that producers and consumer both have to wait. Every item
+     * must arrive, in order per producer.
+     */
+    private void concurrentProducers(WaitStrategy waitStrategy) throws InterruptedException {
+        RingBufferQueue<int[]> queue = new RingBufferQueue<>(16, waitStrategy);
+        List<Thread> producers = new ArrayList<>();
+        for (int producer = 0; producer < PRODUCERS; producer++) {
+            int id = producer;
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int sequence = 0; sequence < ITEMS_PER_PRODUCER; sequence++) {
+                        queue.put(new int[]{id, sequence});
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            thread.start();
+            producers.add(thread);
+        }
+        int[] next = new int[PRODUCERS];
+        for (int count = 0; count < PRODUCERS * ITEMS_PER_PRODUCER; count++) {
+            int[] item = queue.poll(10, TimeUnit.SECONDS);
+            assertNotNull(item);
+            assertEquals(next[item[0]]++, item[1]);
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        assertEquals(0, queue.size());
+    }
+}
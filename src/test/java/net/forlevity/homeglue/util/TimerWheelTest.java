@@ -0,0 +1,120 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.util;
+
+import net.forlevity.homeglue.testing.HomeglueTests;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimerWheelTest extends HomeglueTests {
+
+    private final ExecutorService workers = Executors.newFixedThreadPool(4);
+    private final TimerWheel timer = new TimerWheel(workers, 5, 8); // one turn of the wheel is 40ms
+
+    @AfterEach
+    public void stop() {
+        timer.stop();
+        workers.shutdownNow();
+    }
+
+    @Test
+    public void firesAfterDelayIncludingLaterRounds() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(3);
+        long start = System.nanoTime();
+        long[] elapsedMillis = new long[3];
+        int[] delays = {0, 20, 130};
+        for (int ix = 0; ix < delays.length; ix++) {
+            int which = ix;
+            timer.schedule(() -> {
+                elapsedMillis[which] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                fired.countDown();
+            }, delays[ix], TimeUnit.MILLISECONDS);
+        }
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        for (int ix = 0; ix < delays.length; ix++) {
+            assertTrue(elapsedMillis[ix] >= delays[ix], "fired early: " + elapsedMillis[ix]);
+        }
+    }
+
+    @Test
+    public void cancel() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        TimerWheel.Timeout timeout = timer.schedule(runs::incrementAndGet, 50, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.cancel(false));
+        assertFalse(timeout.cancel(false));
+        assertTrue(timeout.isCancelled());
+
+        TimerWheel.Timeout periodic = timer.scheduleAtFixedRate(runs::incrementAndGet, 0, 10, TimeUnit.MILLISECONDS);
+        Thread.sleep(100);
+        periodic.cancel(false);
+        int count = runs.get();
+        assertTrue(count >= 3, "ran " + count + " times");
+        Thread.sleep(50);
+        assertTrue(runs.get() <= count + 1); // at most one run was already in progress
+    }
+
+    @Test
+    public void fixedDelayNeverOverlaps() throws InterruptedException {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        AtomicInteger runs = new AtomicInteger();
+        TimerWheel.Timeout timeout = timer.scheduleWithFixedDelay(() -> {
+            if (running.incrementAndGet() > 1) {
+                overlaps.incrementAndGet();
+            }
+            try {
+                Thread.sleep(15);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+            runs.incrementAndGet();
+        }, 0, 1, TimeUnit.MILLISECONDS);
+        Thread.sleep(200);
+        timeout.cancel(false);
+        assertTrue(runs.get() >= 3);
+        assertEquals(0, overlaps.get());
+    }
+
+    @Test
+    public void cancelInterruptsRunningTask() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        TimerWheel.Timeout timeout = timer.schedule(() -> {
+            started.countDown();
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+        }, 0, TimeUnit.MILLISECONDS);
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        assertTrue(timeout.cancel(true));
+        assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void manyTimers() throws InterruptedException {
+        int count = 10000;
+        CountDownLatch fired = new CountDownLatch(count / 2);
+        for (int ix = 0; ix < count; ix++) {
+            TimerWheel.Timeout timeout = timer.schedule(fired::countDown, ix % 100, TimeUnit.MILLISECONDS);
+            if (ix % 2 == 1) {
+                timeout.cancel(false);
+            }
+        }
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+    }
+}
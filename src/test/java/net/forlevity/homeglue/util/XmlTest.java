@@ -0,0 +1,98 @@
+/*
+ * Part of Homeglue (c) 2018 C. Ivan Cooper - https://github.com/4levity/homeglue
+ * Homeglue is free software. You can modify and/or distribute it under the terms
+ * of the Apache License Version 2.0: https://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package net.forlevity.homeglue.util;
+
+import net.forlevity.homeglue.testing.HomeglueTests;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class XmlTest extends HomeglueTests {
+
+    private final Xml xml = new Xml();
+
+    @Test
+    public void extractMatchesXPath() {
+        String setupXml = ResourceHelper.resourceAsString("net/forlevity/homeglue/sim/insight1_setup.xml");
+        Document doc = xml.parse(setupXml);
+        String[] fields = {"macAddress", "modelDescription", "serialNumber", "friendlyName", "firmwareVersion"};
+        Map<String, String> values = xml.extract(setupXml, fields);
+        assertEquals(fields.length, values.size());
+        for (String field : fields) {
+            assertEquals(xml.nodeText(doc, "/root/device/" + field), values.get(field));
+        }
+
+        String response = ResourceHelper.resourceAsString("net/forlevity/homeglue/sim/insightparams_response.xml");
+        values = xml.extract(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)), "InsightParams");
+        assertEquals(xml.nodeText(xml.parse(response), "//InsightParams"), values.get("InsightParams"));
+    }
+
+    @Test
+    public void extractEdgeCases() {
+        Map<String, String> values = xml.extract(
+                "<s:a xmlns:s=\"urn:x\"><s:b>1<c>2</c>3</s:b><b>4</b><d/><e><![CDATA[<5>]]></e></s:a>",
+                "b", "c", "d", "e", "f");
+        assertEquals("123", values.get("b")); // first match, prefix ignored, includes child text
+        assertFalse(values.containsKey("c")); // inside b
+        assertEquals("", values.get("d"));
+        assertEquals("<5>", values.get("e"));
+        assertFalse(values.containsKey("f"));
+        assertTrue(xml.extract("<a><b>1</a>", "b", "x").isEmpty());
+        assertTrue(xml.extract("not xml", "b").isEmpty());
+    }
+
+    @Test
+    public void compiledQueriesAreReused() {
+        Document doc = xml.parse("<a><b>1</b></a>");
+        assertEquals("1", xml.nodeText(doc, "/a/b"));
+        assertEquals("1", xml.nodeText(doc, "/a/b"));
+        assertNull(xml.nodeText(doc, "/a/c"));
+        assertNull(xml.nodeText(doc, "///"));
+    }
+
+    @Test
+    public void concurrentParsesAreIndependent() throws Exception {
+        String setupXml = ResourceHelper.resourceAsString("net/forlevity/homeglue/sim/insight1_setup.xml");
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int ix = 0; ix < 2000; ix++) {
+                int id = ix;
+                results.add(threads.submit(() -> {
+                    String document = "<a><b>" + id + "</b><c><d>" + (id * 7) + "</d></c></a>";
+                    switch (id % 4) {
+                        case 0:
+                            return String.valueOf(id * 7).equals(xml.nodeText(xml.parse(document), "/a/c/d"));
+                        case 1:
+                            return String.valueOf(id).equals(xml.extract(document, "b").get("b"));
+                        case 2: // a failed parse must not affect the next one
+                            return xml.parse("<a><b>" + id + "</a>").getDocumentElement() == null
+                                    && String.valueOf(id).equals(xml.nodeText(xml.parse(document), "//b"));
+                        default:
+                            return "94103E3D1A5C".equals(xml.nodeText(xml.parse(setupXml), "/root/device/macAddress"));
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+}